@@ -17,6 +17,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -114,7 +115,41 @@ public class AddBean
      */
     public UpsertResult addBeansToDataset(DatasetInfo dataset, List<TestBean> beansToAdd) throws SodaError, InterruptedException
     {
-        return soda2Producer.upsert(dataset.getId(), beansToAdd);
+        try {
+            return addBeansToDataset(dataset, TestBean.class, beansToAdd.iterator(), BeanWriter.DEFAULT_BATCH_SIZE);
+        } catch (IOException e) {
+            throw new SodaError("Unable to serialize the beans: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes beans of any type and adds them to the dataset, batchSize beans at a time.  Only a single
+     * batch is held in memory, so the iterator can come straight from an ORM query that streams its
+     * results.
+     *
+     * @param dataset to add to
+     * @param beanClass the class of the beans being added
+     * @param beansToAdd the beans to add
+     * @param batchSize the number of beans to send in each upsert
+     * @return results from the add
+     */
+    public <T> UpsertResult addBeansToDataset(DatasetInfo dataset, Class<T> beanClass, Iterator<? extends T> beansToAdd, int batchSize) throws SodaError, InterruptedException, IOException
+    {
+        return new BeanWriter<T>(beanClass).upsert(soda2Producer, dataset.getId(), beansToAdd, batchSize);
+    }
+
+    /**
+     * Creates a producer that publishes beans to the dataset in the background, for programs
+     * that generate records continuously rather than as one prebuilt list.  The caller is
+     * responsible for closing the producer.
+     *
+     * @param dataset to add to
+     * @param beanClass the class of the beans that will be added
+     * @return a started producer with the default batching settings
+     */
+    public <T> AsyncBeanProducer<T> newAsyncProducer(DatasetInfo dataset, Class<T> beanClass)
+    {
+        return new AsyncBeanProducer<T>(soda2Producer, dataset.getId(), beanClass);
     }
 
 
@@ -0,0 +1,279 @@
+package com.socrata.examples.beans;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.socrata.api.Soda2Producer;
+import com.socrata.model.UpsertResult;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long lived producer that publishes beans to a dataset in the background.
+ *
+ * Beans are handed over with offer() or put(), and are collected into batches.  A batch is sent
+ * once it has batchSize beans in it, or once it has been open for maxBatchDelayMs, whichever comes
+ * first.  At most maxInFlight upserts are running at any one time.
+ *
+ * The number of beans that have been handed over but not yet sent is bounded by queueCapacity.  When
+ * the producer is at capacity, offer() returns null and put() blocks, so a producer that's faster
+ * than the dataset can absorb gets pushed back on rather than running out of memory.
+ *
+ * Every bean belongs to exactly one batch, and offer()/put() return the future for that batch's
+ * UpsertResult.
+ *
+ * @param <T> the bean class being published
+ */
+public class AsyncBeanProducer<T> implements Closeable
+{
+    public static final int  DEFAULT_BATCH_SIZE = 1000;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MS = 1000;
+    public static final int  DEFAULT_QUEUE_CAPACITY = 100000;
+    public static final int  DEFAULT_MAX_IN_FLIGHT = 4;
+
+    final Soda2Producer     producer;
+    final String            datasetId;
+    final BeanWriter<T>     beanWriter;
+    final int               batchSize;
+    final long              maxBatchDelayMs;
+    final int               queueCapacity;
+
+    final ReentrantLock     lock = new ReentrantLock();
+    final Condition         notFull = lock.newCondition();
+    final Condition         allSent = lock.newCondition();
+
+    final BlockingQueue<Batch>          readyBatches = new LinkedBlockingQueue<Batch>();
+    final ExecutorService               senders;
+    final ScheduledExecutorService      timer;
+
+    Batch       openBatch;
+    int         pendingBeans;
+    int         unfinishedBatches;
+    boolean     closed;
+
+    /**
+     * A set of beans that will be sent in a single upsert.
+     */
+    class Batch
+    {
+        final List<T> beans = Lists.newArrayListWithCapacity(batchSize);
+        final SettableFuture<UpsertResult> future = SettableFuture.create();
+    }
+
+    public AsyncBeanProducer(Soda2Producer producer, String datasetId, Class<T> beanClass)
+    {
+        this(producer, datasetId, beanClass, DEFAULT_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY_MS, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a producer and starts its background threads.
+     *
+     * @param producer the producer to upsert with
+     * @param datasetId the dataset to publish into
+     * @param beanClass the class of the beans that will be published
+     * @param batchSize the maximum number of beans in a single upsert
+     * @param maxBatchDelayMs the longest a bean waits for its batch to fill up before the batch is sent anyway
+     * @param queueCapacity the maximum number of beans that can be waiting to be sent
+     * @param maxInFlight the maximum number of upserts running at the same time
+     */
+    public AsyncBeanProducer(Soda2Producer producer, String datasetId, Class<T> beanClass, int batchSize, long maxBatchDelayMs, int queueCapacity, int maxInFlight)
+    {
+        if (batchSize < 1 || queueCapacity < batchSize || maxInFlight < 1) {
+            throw new IllegalArgumentException("batchSize and maxInFlight must be positive, and queueCapacity must be at least batchSize.");
+        }
+
+        this.producer = producer;
+        this.datasetId = datasetId;
+        this.beanWriter = new BeanWriter<T>(beanClass);
+        this.batchSize = batchSize;
+        this.maxBatchDelayMs = maxBatchDelayMs;
+        this.queueCapacity = queueCapacity;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.senders = Executors.newFixedThreadPool(maxInFlight);
+        for (int i = 0; i < maxInFlight; i++) {
+            senders.submit(new Runnable()
+            {
+                public void run()
+                {
+                    sendBatches();
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds a bean to be published, without blocking.
+     *
+     * @param bean the bean to publish
+     * @return the future for the result of the batch the bean was added to, or null if the
+     * producer is at capacity and the bean was NOT added.
+     */
+    public ListenableFuture<UpsertResult> offer(T bean)
+    {
+        lock.lock();
+        try {
+            if (pendingBeans >= queueCapacity) {
+                return null;
+            }
+            return add(bean);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a bean to be published, waiting for room if the producer is at capacity.
+     *
+     * @param bean the bean to publish
+     * @return the future for the result of the batch the bean was added to.
+     */
+    public ListenableFuture<UpsertResult> put(T bean) throws InterruptedException
+    {
+        lock.lock();
+        try {
+            while (pendingBeans >= queueCapacity) {
+                notFull.await();
+            }
+            return add(bean);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the current batch, even if it's not full, and waits for every bean added so far to be upserted.
+     */
+    public void flush() throws InterruptedException
+    {
+        lock.lock();
+        try {
+            sealOpenBatch();
+            while (unfinishedBatches > 0) {
+                allSent.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes any beans that haven't been sent, then shuts down the background threads.  No
+     * beans may be added after this is called.
+     */
+    public void close()
+    {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdownNow();
+            senders.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds a bean to the open batch.  Must be called while holding the lock.
+     */
+    private ListenableFuture<UpsertResult> add(T bean)
+    {
+        if (closed) {
+            throw new IllegalStateException("The producer has been closed.");
+        }
+
+        if (openBatch == null) {
+            final Batch batch = new Batch();
+            openBatch = batch;
+            unfinishedBatches++;
+            timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    sealIfOpen(batch);
+                }
+            }, maxBatchDelayMs, TimeUnit.MILLISECONDS);
+        }
+
+        final Batch batch = openBatch;
+        batch.beans.add(bean);
+        pendingBeans++;
+        if (batch.beans.size() >= batchSize) {
+            sealOpenBatch();
+        }
+        return batch.future;
+    }
+
+    private void sealIfOpen(Batch batch)
+    {
+        lock.lock();
+        try {
+            if (openBatch == batch) {
+                sealOpenBatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the open batch off to the senders.  Must be called while holding the lock.
+     */
+    private void sealOpenBatch()
+    {
+        if (openBatch != null) {
+            readyBatches.add(openBatch);
+            openBatch = null;
+        }
+    }
+
+    private void sendBatches()
+    {
+        try {
+            while (true) {
+                final Batch batch = readyBatches.take();
+                try {
+                    batch.future.set(beanWriter.upsertBatch(producer, datasetId, batch.beans));
+                } catch (InterruptedException e) {
+                    batch.future.setException(e);
+                    throw e;
+                } catch (Throwable t) {
+                    batch.future.setException(t);
+                } finally {
+                    batchFinished(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Shutting down
+        }
+    }
+
+    private void batchFinished(Batch batch)
+    {
+        lock.lock();
+        try {
+            pendingBeans -= batch.beans.size();
+            unfinishedBatches--;
+            notFull.signalAll();
+            if (unfinishedBatches == 0) {
+                allSent.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
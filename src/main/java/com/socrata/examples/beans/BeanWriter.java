@@ -0,0 +1,114 @@
+package com.socrata.examples.beans;
+
+import com.google.common.collect.Lists;
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Producer;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.UpsertResult;
+import com.socrata.tools.utils.UpsertResults;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes Java Beans out as SODA2 JSON.
+ *
+ * Beans are serialized by Jackson, the same way soda2Producer.upsert serializes them, so @JsonProperty,
+ * @JsonIgnore, nested objects and dates all come out the same.  What this adds is batching: beans are
+ * upserted in fixed size batches, each serialized straight into a buffer and sent with upsertStream, so
+ * large collections can be published with bounded memory.
+ *
+ * @param <T> the bean class this writes
+ */
+public class BeanWriter<T>
+{
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    final Class<T>      beanClass;
+    final ObjectWriter  writer;
+
+    /**
+     * @param beanClass the bean class to write
+     */
+    public BeanWriter(Class<T> beanClass)
+    {
+        if (!OBJECT_MAPPER.canSerialize(beanClass)) {
+            throw new IllegalArgumentException("Unable to serialize " + beanClass.getName());
+        }
+
+        this.beanClass = beanClass;
+        this.writer = OBJECT_MAPPER.writerWithType(beanClass);
+    }
+
+    /**
+     * Upserts beans into a dataset, sending them batchSize beans at a time.  Only one batch
+     * is held in memory at once, so the iterator can be backed by a lazily loaded result set.
+     * Nothing is sent if there are no beans.
+     *
+     * @param producer the producer to upsert with
+     * @param datasetId the dataset to upsert into
+     * @param beans the beans to upsert
+     * @param batchSize the number of beans to send in each upsert
+     * @return the sum of the results of each batch
+     */
+    public UpsertResult upsert(Soda2Producer producer, String datasetId, Iterator<? extends T> beans, int batchSize) throws SodaError, InterruptedException, IOException
+    {
+        final List<UpsertResult>    results = Lists.newArrayList();
+        final List<T>               batch = Lists.newArrayListWithCapacity(batchSize);
+
+        while (beans.hasNext()) {
+            batch.add(beans.next());
+            if (batch.size() >= batchSize) {
+                results.add(upsertBatch(producer, datasetId, batch));
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            results.add(upsertBatch(producer, datasetId, batch));
+        }
+        return UpsertResults.combine(results);
+    }
+
+    /**
+     * Upserts a single batch of beans as one request.
+     */
+    public UpsertResult upsertBatch(Soda2Producer producer, String datasetId, List<? extends T> batch) throws SodaError, InterruptedException, IOException
+    {
+        return producer.upsertStream(datasetId, HttpLowLevel.JSON_TYPE, new ByteArrayInputStream(toJson(batch)));
+    }
+
+    /**
+     * Serializes a list of beans as a JSON array.
+     */
+    public byte[] toJson(List<? extends T> beans) throws IOException
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(256, beans.size() * 128));
+        final JsonGenerator generator = OBJECT_MAPPER.getJsonFactory().createJsonGenerator(baos, JsonEncoding.UTF8);
+
+        generator.writeStartArray();
+        for (T bean : beans) {
+            write(bean, generator);
+        }
+        generator.writeEndArray();
+        generator.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes a single bean as a JSON object.
+     */
+    public void write(T bean, JsonGenerator generator) throws IOException
+    {
+        writer.writeValue(generator, bean);
+    }
+}
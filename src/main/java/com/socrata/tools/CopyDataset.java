@@ -5,20 +5,23 @@ import com.socrata.api.HttpLowLevel;
 import com.socrata.api.Soda2Consumer;
 import com.socrata.api.Soda2Producer;
 import com.socrata.api.SodaDdl;
-import com.socrata.builders.SoqlQueryBuilder;
 import com.socrata.exceptions.LongRunningQueryException;
 import com.socrata.exceptions.SodaError;
 import com.socrata.model.UpsertResult;
 import com.socrata.model.importer.Column;
 import com.socrata.model.importer.Dataset;
 import com.socrata.model.importer.DatasetInfo;
-import com.socrata.model.soql.OrderByClause;
-import com.socrata.model.soql.SoqlQuery;
-import com.socrata.model.soql.SortOrder;
 import com.socrata.tools.utils.ConfigurationLoader;
 import com.socrata.tools.model.SocrataConnectionInfo;
 import com.socrata.tools.utils.CliUtils;
-import com.sun.jersey.api.client.ClientResponse;
+import com.socrata.tools.utils.CsvChunker;
+import com.socrata.tools.utils.SodaClients;
+import com.socrata.tools.utils.SourceQuery;
+import com.socrata.tools.utils.MappedFileInputStream;
+import com.socrata.tools.utils.MetadataCache;
+import com.socrata.tools.utils.DiscardingImporter;
+import com.socrata.tools.utils.DiscardingProducer;
+import com.socrata.tools.utils.StageTimer;
 import org.apache.commons.cli.*;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -26,18 +29,30 @@ import org.apache.commons.lang3.tuple.Pair;
 import javax.annotation.Nonnull;
 import javax.ws.rs.core.MediaType;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.zip.GZIPInputStream;
 
 /**
  */
 public class CopyDataset
 {
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024L * 1024L;
+    public static final int  GZIP_BUFFER_SIZE = 256 * 1024;
+    public static final int  PREFETCH_SIZE = MappedFileInputStream.DEFAULT_WINDOW_SIZE;
+
+    /**
+     * The extensions a data file for a dataset can have, in the order they are looked for.
+     */
+    public static final String[] DATA_FILE_EXTENSIONS = {".csv", ".csv.gz", ".json", ".json.gz"};
 
    public static final Option DEST_DOMAIN   = OptionBuilder.withArgName("destUrl" )
                                          .hasArg()
-                                         .withDescription(  "The url for the destination domain, e.g. https://foo.bar.baz .  This defaults to being the same domain as the source domain" )
+                                         .withDescription(  "The url for the destination domain, e.g. https://foo.bar.baz .  This defaults to being the same domain as the source domain.  " +
+                                                                    "This can be given more than once, along with -x, to copy to several destinations while only reading the source once." )
                                          .create("d");
 
     public static final Option SOURCE_DOMAIN   = OptionBuilder.withArgName("srcDomain")
@@ -52,7 +67,8 @@ public class CopyDataset
 
     public static final Option DEST_CONFIG_FILE   = OptionBuilder.withArgName("destConnectionConfig")
                                                             .hasArg()
-                                                            .withDescription(  "The configuration file to load for user destination domain URL/name/password/apptoken.  Defaults to whatever is used for the source domain." )
+                                                            .withDescription(  "The configuration file to load for user destination domain URL/name/password/apptoken.  Defaults to whatever is used for the source domain.  " +
+                                                                                       "When copying to several destinations, the nth -x goes with the nth -d.  A destination without its own -d uses the url in its configuration." )
                                                             .create("x");
 
 
@@ -60,7 +76,8 @@ public class CopyDataset
                                            .hasArg()
                                            .withDescription("The directory to look for data files to upload to the newly created dataset.  " +
                                                                     "The tool will look for files that have the same name as the dataset id they go with.  " +
-                                                                    "These can be json or csv.  In addition, the can be gzipped.")
+                                                                    "These can be json or csv.  In addition, the can be gzipped.  If this is a file rather than a directory, " +
+                                                                    "that file is used for every dataset.")
                                            .create("f");
 
     public static final Option CREATE_ONLY   = OptionBuilder.withArgName("createOnly")
@@ -77,6 +94,80 @@ public class CopyDataset
                                             .withDescription("This adds an option that should be passed on the URL when creating the dataset.  E.g. $$testflag=true .")
                                             .create("o");
 
+    public static final Option UPLOAD_THREADS   = OptionBuilder.withArgName("uploadThreads")
+                                            .hasArg()
+                                            .withDescription("The number of chunks of a csv data file to upload concurrently.  If this is more than 1, uncompressed csv files " +
+                                                                     "are split into row aligned chunks that are upserted in parallel.  When exporting, this is the number " +
+                                                                     "of shards downloaded concurrently.  Defaults to 1.")
+                                            .create("t");
+
+    public static final Option CHUNK_SIZE   = OptionBuilder.withArgName("chunkSizeMb")
+                                            .hasArg()
+                                            .withDescription("The size in MB of each chunk when uploading a csv data file in parallel.  Defaults to " + (DEFAULT_CHUNK_SIZE / (1024 * 1024)) + ".")
+                                            .create("k");
+
+    public static final Option COPY_THREADS   = OptionBuilder.withArgName("copyThreads")
+                                            .hasArg()
+                                            .withDescription("The number of datasets to copy at the same time.  Defaults to 1.")
+                                            .create("j");
+
+    public static final Option DEST_DATASET   = OptionBuilder.withArgName("destDatasetId")
+                                            .hasArg()
+                                            .withDescription("Copy the data into this existing dataset on the destination domain, rather than creating a new one.  " +
+                                                                     "The dataset should have a row identifier, so rows already there are updated rather than duplicated.  " +
+                                                                     "Only one source dataset can be copied with this option.")
+                                            .create("u");
+
+    public static final Option SYNC_DELETES   = OptionBuilder.withArgName("syncDeletes")
+                                            .withDescription("After copying the data, delete any rows in the destination whose row identifier is no longer in the source dataset.  Refuses to delete more than half of the destination's rows.")
+                                            .create("D");
+
+    public static final Option VERIFY   = OptionBuilder.withArgName("verify")
+                                            .withDescription("After copying, check the copy against the source using row counts, aggregates of numeric columns and hashes of sampled rows.  " +
+                                                             "Datasets without a row identifier can only be verified after a live copy (-p) into a new dataset.")
+                                            .create("V");
+
+    public static final Option EXPORT_DIR   = OptionBuilder.withArgName("exportDir")
+                                            .hasArg()
+                                            .withDescription("Export each dataset from the source domain into a file in this directory, e.g. abcd-1234.csv.gz, rather than copying it.  " +
+                                                                     "The files can be imported later with -f.")
+                                            .create("e");
+
+    public static final Option EXPORT_FORMAT   = OptionBuilder.withArgName("exportFormat")
+                                            .hasArg()
+                                            .withDescription("The format to export to, either csv or json.  Defaults to csv.")
+                                            .create("F");
+
+    public static final Option SELECT_COLUMNS   = OptionBuilder.withArgName("selectColumns")
+                                            .hasArg()
+                                            .withDescription("Only copy these columns, as a comma separated list of field names.  The destination dataset is created with just these columns, " +
+                                                                     "which have to include the row identifier if there is one.  Only used with -p or -e.")
+                                            .create("S");
+
+    public static final Option WHERE_CLAUSE   = OptionBuilder.withArgName("whereClause")
+                                            .hasArg()
+                                            .withDescription("Only copy the rows matching this SoQL where clause, e.g. \"date > '2014-01-01'\".  Only used with -p or -e.")
+                                            .create("W");
+
+    public static final Option TRANSPORT   = OptionBuilder.withArgName("transportFormat")
+                                            .hasArg()
+                                            .withDescription("The format rows are read and upserted in when copying live, either csv or json.  Defaults to json.  " +
+                                                                     "csv is much smaller for wide datasets, since json repeats every field name on every row.")
+                                            .create("T");
+
+    public static final Option METADATA_CACHE   = OptionBuilder.withArgName("cacheTtlSeconds")
+                                            .hasArg()
+                                            .withDescription("Keep dataset metadata in ~/.socrata/cache, and reuse it for this many seconds before checking it with the domain again.  " +
+                                                                     "Saves fetching the same metadata on every run of a batch job.")
+                                            .create("m");
+
+    public static final Option DRY_RUN   = OptionBuilder.withArgName("mode")
+                                            .withLongOpt("dry-run")
+                                            .hasArg()
+                                            .withDescription("With --dry-run=sink, read and upload everything as usual, but into a sink that throws it away instead of the " +
+                                                                     "destination, then print the time, rows/sec and bytes/sec of each stage.  Nothing is created on the destination.")
+                                            .create();
+
     public static final Option USAGE_OPTIONS   = OptionBuilder.withArgName("?")
                                                                .withDescription("Shows usage.")
                                                                .create("?");
@@ -94,6 +185,19 @@ public class CopyDataset
         OPTIONS.addOption(COPY_DATA);
         OPTIONS.addOption(USAGE_OPTIONS);
         OPTIONS.addOption(DEST_CONFIG_FILE);
+        OPTIONS.addOption(UPLOAD_THREADS);
+        OPTIONS.addOption(CHUNK_SIZE);
+        OPTIONS.addOption(COPY_THREADS);
+        OPTIONS.addOption(DEST_DATASET);
+        OPTIONS.addOption(SYNC_DELETES);
+        OPTIONS.addOption(VERIFY);
+        OPTIONS.addOption(EXPORT_DIR);
+        OPTIONS.addOption(EXPORT_FORMAT);
+        OPTIONS.addOption(SELECT_COLUMNS);
+        OPTIONS.addOption(WHERE_CLAUSE);
+        OPTIONS.addOption(TRANSPORT);
+        OPTIONS.addOption(METADATA_CACHE);
+        OPTIONS.addOption(DRY_RUN);
     }
 
 
@@ -103,9 +207,23 @@ public class CopyDataset
     final SocrataConnectionInfo destConnectionInfo;
     final String srcDomain;
     final String destDomain;
+    final List<Pair<String, SocrataConnectionInfo>> destinations = Lists.newArrayList();
     final File   dataFileDir;
     final List<Pair<String, String>> parsedCreateOptions;
 
+    int    uploadThreads = 1;
+    long   chunkSize = DEFAULT_CHUNK_SIZE;
+    int    copyThreads = 1;
+    String destDatasetId;
+    boolean syncDeletes;
+    boolean verify;
+    SourceQuery sourceQuery = SourceQuery.ALL;
+    DatasetExporter.Format transport = DatasetExporter.Format.JSON;
+    MetadataCache metadataCache;
+    StageTimer dryRunTimer;
+
+    final List<String> unverifiedDatasets = Collections.synchronizedList(Lists.<String>newArrayList());
+
     /**
      * DatasetId
      * userName
@@ -156,20 +274,80 @@ public class CopyDataset
                 }
 
                 final String destDomain = cmd.getOptionValue("d", srcDomain);
+                final String[] destDomains = cmd.hasOption("d") ? cmd.getOptionValues("d") : new String[] {destDomain};
+                final String[] destConfigFiles = cmd.hasOption("x") ? cmd.getOptionValues("x") : new String[] {destConfigFile};
                 final String createOptions = cmd.getOptionValue("o");
                 final List<Pair<String, String>> parsedCreateOptions = CliUtils.parseOptions(createOptions, Charset.defaultCharset());
                 final File dataFileDir = new File(cmd.getOptionValue("f", "."));
                 final boolean copyDataLive = cmd.hasOption("p");
                 final boolean createOnly = cmd.hasOption("C");
+                final int uploadThreads = Integer.parseInt(cmd.getOptionValue("t", "1"));
+                final long chunkSize = Long.parseLong(cmd.getOptionValue("k", Long.toString(DEFAULT_CHUNK_SIZE / (1024 * 1024)))) * 1024L * 1024L;
+                final int copyThreads = Integer.parseInt(cmd.getOptionValue("j", "1"));
+                final String destDatasetId = cmd.getOptionValue("u");
+                final boolean syncDeletes = cmd.hasOption("D");
+                final boolean verify = cmd.hasOption("V");
+                final SourceQuery sourceQuery = SourceQuery.parse(cmd.getOptionValue("S"), cmd.getOptionValue("W"));
+                final DatasetExporter.Format transport = DatasetExporter.Format.fromValue(cmd.getOptionValue("T", "json"));
 
 
                 final Writer      output = new OutputStreamWriter(System.out);
+
+                if (cmd.hasOption("e")) {
+                    final File exportDir = new File(cmd.getOptionValue("e"));
+                    final DatasetExporter.Format format = DatasetExporter.Format.fromValue(cmd.getOptionValue("F", "csv"));
+                    final Soda2Consumer querySource = SodaClients.newConsumer(srcDomain, connectionInfo);
+                    final DatasetExporter exporter = new DatasetExporter(querySource, format, sourceQuery, uploadThreads);
+                    for (String datasetId : cmd.getArgs()) {
+                        final long startExport = System.currentTimeMillis();
+                        final File exportFile = exporter.export(datasetId, exportDir, output);
+                        final long endExport = System.currentTimeMillis();
+                        progress(output, "{exportTime:" + (endExport-startExport) + "}\n");
+                        System.out.println("Exported " + datasetId + " to " + exportFile.getCanonicalPath());
+                    }
+                    return;
+                }
+
                 final CopyDataset copyDataset = new CopyDataset(srcDomain, destDomain, connectionInfo, destConnectionInfo, dataFileDir, parsedCreateOptions, createOnly, copyDataLive);
+                copyDataset.setChunkedUpload(uploadThreads, chunkSize);
+                for (int i=1; i<Math.max(destDomains.length, destConfigFiles.length); i++) {
+                    final File extraConfig = new File(i < destConfigFiles.length ? destConfigFiles[i] : destConfigFile);
+                    if (!extraConfig.canRead()) {
+                        throw new IllegalArgumentException("Unable to load connection configuration from " + extraConfig + ".");
+                    }
+
+                    final SocrataConnectionInfo extraConnectionInfo = ConfigurationLoader.loadSocrataConnectionConfig(extraConfig);
+                    CliUtils.validateConfiguration(extraConnectionInfo);
+                    copyDataset.addDestination(i < destDomains.length ? destDomains[i] : extraConnectionInfo.getUrl(), extraConnectionInfo);
+                }
+                copyDataset.setCopyThreads(copyThreads);
+                copyDataset.setSync(destDatasetId, syncDeletes);
+                copyDataset.setVerify(verify);
+                copyDataset.setSourceQuery(sourceQuery);
+                copyDataset.setTransport(transport);
+                if (cmd.hasOption("m")) {
+                    copyDataset.setMetadataCache(new MetadataCache(Long.parseLong(cmd.getOptionValue("m")) * 1000L));
+                }
+                if (cmd.hasOption("dry-run")) {
+                    CliUtils.validateDryRunMode(cmd.getOptionValue("dry-run"));
+                    copyDataset.setDryRun(new StageTimer());
+                }
                 final List<Pair<Dataset, UpsertResult>> results = copyDataset.doCopy(cmd.getArgs(), output);
+                if (copyDataset.dryRunTimer != null) {
+                    copyDataset.dryRunTimer.write(output);
+                }
                 output.flush();
 
-                for (Pair<Dataset, UpsertResult> result : results) {
-                    System.out.println("Created dataset " + destDomain + "/id/" + result.getKey().getId() + ".  Created " + result.getValue().getRowsCreated());
+                //The results for each source dataset are in destination order
+                for (int i=0; i<results.size(); i++) {
+                    final Pair<Dataset, UpsertResult> result = results.get(i);
+                    final String resultDomain = copyDataset.destinations.get(i % copyDataset.destinations.size()).getKey();
+                    System.out.println("Created dataset " + resultDomain + "/id/" + result.getKey().getId() + ".  Created " + result.getValue().getRowsCreated());
+                }
+
+                if (!copyDataset.getUnverifiedDatasets().isEmpty()) {
+                    System.err.println("Verification failed for " + StringUtils.join(copyDataset.getUnverifiedDatasets(), ", "));
+                    System.exit(2);
                 }
 
             } catch (IllegalArgumentException e) {
@@ -201,57 +379,381 @@ public class CopyDataset
         this.parsedCreateOptions = parsedCreateOptions;
         this.createOnly = createOnly;
         this.copyDataLive = copyDataLive;
+        this.destinations.add(Pair.of(destDomain, destConnectionInfo));
+    }
+
+    /**
+     * Adds another domain to copy each dataset to.  The source is still only read once, no matter how
+     * many destinations there are.
+     *
+     * @param destDomain the url of the destination domain
+     * @param destConnectionInfo the credentials for the destination domain
+     */
+    public void addDestination(String destDomain, SocrataConnectionInfo destConnectionInfo)
+    {
+        destinations.add(Pair.of(destDomain, destConnectionInfo));
+    }
+
+    /**
+     * Sets up how csv data files get uploaded.  If uploadThreads is more than 1, the files
+     * are split into chunks of chunkSize bytes that get upserted concurrently.
+     *
+     * @param uploadThreads the number of chunks to upload at the same time
+     * @param chunkSize the size of each chunk in bytes
+     */
+    public void setChunkedUpload(int uploadThreads, long chunkSize)
+    {
+        if (uploadThreads < 1) {
+            throw new IllegalArgumentException("The number of upload threads must be at least 1.");
+        }
+
+        if (chunkSize <= 0 || chunkSize > CsvChunker.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("The chunk size must be between 1 and " + (CsvChunker.MAX_CHUNK_SIZE / (1024 * 1024)) + " MB.");
+        }
+
+        this.uploadThreads = uploadThreads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets how many datasets are copied at the same time by doCopy.
+     *
+     * @param copyThreads the number of datasets to copy concurrently
+     */
+    public void setCopyThreads(int copyThreads)
+    {
+        if (copyThreads < 1) {
+            throw new IllegalArgumentException("The number of copy threads must be at least 1.");
+        }
+        this.copyThreads = copyThreads;
+    }
+
+    /**
+     * Sets up copying into an existing dataset, and keeping it in sync with the source.
+     *
+     * @param destDatasetId the existing dataset to copy into, or null to create a new dataset for each copy
+     * @param syncDeletes if true, rows whose row identifier is no longer in the source are deleted from the
+     *                    destination after the data is copied.
+     */
+    public void setSync(String destDatasetId, boolean syncDeletes)
+    {
+        this.destDatasetId = destDatasetId;
+        this.syncDeletes = syncDeletes;
     }
 
-    public List<Pair<Dataset, UpsertResult>> doCopy(String[] datasetIds, Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    /**
+     * Turns on checking each copy against its source once the data has been copied.  Copies that
+     * don't match are listed by getUnverifiedDatasets.
+     *
+     * @param verify true to verify each copy
+     */
+    public void setVerify(boolean verify)
+    {
+        this.verify = verify;
+    }
+
+    /**
+     * Limits each copy to some of the columns and rows of the source.  The limits are passed down into
+     * every query made against the source, so rows and columns that aren't wanted are never downloaded.
+     * Only live copies can be limited, since a data file has all the columns and rows in it.
+     *
+     * @param sourceQuery the columns and rows to copy
+     */
+    public void setSourceQuery(SourceQuery sourceQuery)
+    {
+        if (sourceQuery.isFiltered() && !copyDataLive && !createOnly) {
+            throw new IllegalArgumentException("Selecting columns or rows is only supported when copying data live (-p) or exporting (-e).");
+        }
+        this.sourceQuery = sourceQuery;
+    }
+
+    /**
+     * Sets the format rows are read from the source and upserted in when copying live.
+     *
+     * @param transport CSV or JSON
+     */
+    public void setTransport(DatasetExporter.Format transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * Sets a cache for the metadata of the source datasets, and of existing destination datasets.
+     *
+     * @param metadataCache the cache, or null to always load the metadata
+     */
+    public void setMetadataCache(MetadataCache metadataCache)
+    {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * Turns a copy into a dry run.  The source is read as usual, but the destination datasets are only
+     * created in memory, and the rows are read and thrown away rather than upserted.  The time spent
+     * fetching from the source, waiting on it, and in the sink is recorded in the timer.
+     *
+     * @param stageTimer the timer to record the stages in, or null to really copy
+     */
+    public void setDryRun(StageTimer stageTimer)
+    {
+        if (stageTimer != null && (syncDeletes || verify)) {
+            throw new IllegalArgumentException("A dry run can't sync deletes (-D) or verify (-V), since nothing is copied.");
+        }
+        this.dryRunTimer = stageTimer;
+    }
+
+    /**
+     * @return the ids of the copied datasets that failed verification.
+     */
+    public List<String> getUnverifiedDatasets()
+    {
+        return unverifiedDatasets;
+    }
+
+    public List<Pair<Dataset, UpsertResult>> doCopy(String[] datasetIds, final Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
     {
+        if (destDatasetId != null && (datasetIds.length > 1 || destinations.size() > 1)) {
+            throw new IllegalArgumentException("Only one dataset can be copied into an existing destination dataset, and only to one destination.");
+        }
+
         List<Pair<Dataset, UpsertResult>>   results = Lists.newArrayList();
-        for (String datasetId : datasetIds) {
-            results.add(doCopy(datasetId, output));
+        if (copyThreads == 1 || datasetIds.length < 2) {
+            for (String datasetId : datasetIds) {
+                results.addAll(doCopyToAll(datasetId, output));
+            }
+            return results;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(copyThreads, datasetIds.length));
+        try {
+            final List<Future<List<Pair<Dataset, UpsertResult>>>> futures = Lists.newArrayList();
+            for (final String datasetId : datasetIds) {
+                futures.add(executor.submit(new Callable<List<Pair<Dataset, UpsertResult>>>()
+                {
+                    public List<Pair<Dataset, UpsertResult>> call() throws Exception
+                    {
+                        return doCopyToAll(datasetId, output);
+                    }
+                }));
+            }
+
+            for (Future<List<Pair<Dataset, UpsertResult>>> future : futures) {
+                try {
+                    results.addAll(future.get());
+                } catch (ExecutionException e) {
+                    reportUnfinished(datasetIds, futures, output);
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof SodaError) {
+                        throw (SodaError) cause;
+                    }
+                    if (cause instanceof LongRunningQueryException) {
+                        throw (LongRunningQueryException) cause;
+                    }
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the datasets of a concurrent copy that failed or hadn't finished when another one failed,
+     * since the rest of the copies are stopped and their destinations may only be partly copied.
+     */
+    private static void reportUnfinished(String[] datasetIds, List<? extends Future<?>> futures, Writer output) throws IOException
+    {
+        final List<String> unfinished = Lists.newArrayList();
+        for (int i=0; i<futures.size(); i++) {
+            final Future<?> future = futures.get(i);
+            if (!future.isDone() || future.isCancelled()) {
+                unfinished.add(datasetIds[i]);
+                continue;
+            }
+
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                unfinished.add(datasetIds[i] + " (" + e.getCause().getMessage() + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unfinished.add(datasetIds[i]);
+            }
+        }
+        progress(output, "\nStopping the copy after a failure.  Not finished: " + StringUtils.join(unfinished, ", ") + "\n");
+    }
+
+    /**
+     * Writes progress to the output.  With -j, several datasets are copied at once into the same output,
+     * so each write is synchronized on it, the same way FanOutCopier does for its destinations.
+     */
+    static void progress(Writer output, String message) throws IOException
+    {
+        synchronized (output) {
+            output.write(message);
+            output.flush();
         }
-        return results;
     }
 
     public Pair<Dataset, UpsertResult> doCopy(String datasetId, Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
     {
+        return doCopyToAll(datasetId, output).get(0);
+    }
 
-        final SodaDdl ddlSrc = SodaDdl.newDdl(srcDomain, srcConnectionInfo.getUser(), srcConnectionInfo.getPassword(), srcConnectionInfo.getToken());
-        final SodaDdl ddlDest = SodaDdl.newDdl(destDomain, destConnectionInfo.getUser(), destConnectionInfo.getPassword(), destConnectionInfo.getToken());
+    /**
+     * Copies a dataset to every destination.  The source schema and data are only read once, and shared
+     * by all the destinations.
+     *
+     * @param datasetId the dataset to copy
+     * @param output writer for progress
+     * @return the new dataset and the result of copying the data, for each destination in order
+     */
+    public List<Pair<Dataset, UpsertResult>> doCopyToAll(String datasetId, Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
 
+        final SodaDdl ddlSrc = SodaClients.newDdl(srcDomain, srcConnectionInfo);
 
-        for (Pair<String, String> createOption : parsedCreateOptions) {
-            ddlDest.getHttpLowLevel().getAdditionalParameters().put(createOption.getKey(), createOption.getValue());
+        final long startSchemaCopy = System.currentTimeMillis();
+        final Dataset srcDataset = loadSchema(ddlSrc, srcDomain, srcConnectionInfo, datasetId);
+        final Dataset copiedSchema = sourceQuery.filterSchema(srcDataset);
+
+        if (verify && !createOnly && !DatasetVerifier.canCompareRanges(srcDataset, sourceQuery, copyDataLive && destDatasetId == null)) {
+            throw new SodaError(datasetId + " has no row identifier, so a copy from a data file (-f, -t) or into an existing dataset (-u) " +
+                                        "can't be verified (-V): its rows aren't in the same order as the source's.");
         }
 
-        final long startSchemaCopy = System.currentTimeMillis();
-        final Dataset srcDataset = loadSourceSchema(ddlSrc, datasetId);
-        final DatasetInfo destDatasetTemplate = Dataset.copy(srcDataset);
-        final Dataset destDataset = createDestSchema(ddlDest, srcDataset, destDatasetTemplate, output);
-        final long endSchemaCopy = System.currentTimeMillis();
-        final Soda2Producer producerDest = Soda2Producer.newProducer(destDomain, destConnectionInfo.getUser(), destConnectionInfo.getPassword(), destConnectionInfo.getToken());
+        //Start reading the data while the destination schema is being built, so the time spent creating
+        //the dataset, adding columns and publishing overlaps with the data I/O.
+        LivePagePrefetcher      pages = null;
+        File                    dataFile = null;
+        Future<CsvChunker>      dataFilePrefetch = null;
+        final ExecutorService   prefetchExecutor = Executors.newSingleThreadExecutor();
+
+        try {
+            if (!createOnly) {
+                if (copyDataLive) {
+                    final Soda2Consumer querySource = SodaClients.newConsumer(srcDomain, srcConnectionInfo);
+                    pages = new LivePagePrefetcher(querySource, srcDataset.getId(), sourceQuery, transport);
+                    pages.setStageTimer(dryRunTimer);
+                    pages.start();
+                } else {
+                    dataFile = findDataFile(dataFileDir, datasetId);
+                    dataFilePrefetch = prefetchDataFile(prefetchExecutor, dataFile, uploadThreads, chunkSize);
+                }
+            }
 
-        output.write("{schemaCopyTime:" + (endSchemaCopy-startSchemaCopy) + "}\n");
+            final List<Dataset>         destDatasets = Lists.newArrayList();
+            final List<String>          destIds = Lists.newArrayList();
+            final List<Soda2Producer>   producers = Lists.newArrayList();
+            for (Pair<String, SocrataConnectionInfo> destination : destinations) {
+                final String                domain = destination.getKey();
+                final SocrataConnectionInfo connectionInfo = destination.getValue();
+                final SodaDdl ddlDest = dryRunTimer != null ?
+                        new DiscardingImporter(SodaClients.newHttpLowLevel(domain, connectionInfo), dryRunTimer) :
+                        SodaClients.newDdl(domain, connectionInfo);
+                for (Pair<String, String> createOption : parsedCreateOptions) {
+                    ddlDest.getHttpLowLevel().getAdditionalParameters().put(createOption.getKey(), createOption.getValue());
+                }
+
+                final Dataset destDataset = destDatasetId != null ?
+                        loadSchema(ddlDest, domain, connectionInfo, destDatasetId) :
+                        createDestSchema(ddlDest, copiedSchema, Dataset.copy(copiedSchema), output);
+                destDatasets.add(destDataset);
+                destIds.add(destDataset.getId());
+                producers.add(dryRunTimer != null ?
+                                      new DiscardingProducer(SodaClients.newHttpLowLevel(domain, connectionInfo), dryRunTimer) :
+                                      SodaClients.newProducer(domain, connectionInfo));
+            }
+            final long endSchemaCopy = System.currentTimeMillis();
+
+            progress(output, "{schemaCopyTime:" + (endSchemaCopy-startSchemaCopy) + "}\n");
 
-        UpsertResult    upsertResult = new UpsertResult(0, 0, 0, null);
+            final List<UpsertResult> upsertResults = Lists.newArrayList();
 
-        //Now for the data part
-        if (!createOnly) {
-            final long startDataCopy = System.currentTimeMillis();
-            if (copyDataLive) {
-                upsertResult = copyDataLive(producerDest, srcDataset.getId(), destDataset.getId(), output);
+            //Now for the data part
+            if (!createOnly) {
+                final long startDataCopy = System.currentTimeMillis();
+                if (copyDataLive && destinations.size() > 1) {
+                    upsertResults.addAll(new FanOutCopier().copy(pages, producers, destIds, output));
+                } else if (copyDataLive) {
+                    upsertResults.add(copyDataLive(producers.get(0), pages, destIds.get(0), output));
+                } else {
+                    final CsvChunker presplit = finishPrefetch(dataFilePrefetch, dataFile, uploadThreads);
+                    for (int i=0; i<destIds.size(); i++) {
+                        upsertResults.add(importDataFile(producers.get(i), destIds.get(i), dataFile, presplit, output, uploadThreads, chunkSize));
+                    }
+                }
+                final long endDataCopy = System.currentTimeMillis();
+                progress(output, "{dataCopyTime:" + (endDataCopy-startDataCopy) + "}\n");
+                if (pages != null) {
+                    progress(output, "{dataCopyBytes:" + pages.getBytesRead() + "}\n");
+                }
             } else {
-                upsertResult = importDataFile(producerDest, destDataset.getId(), dataFileDir, output);
+                for (int i=0; i<destIds.size(); i++) {
+                    upsertResults.add(new UpsertResult(0, 0, 0, null));
+                }
             }
-            final long endDataCopy = System.currentTimeMillis();
-            output.write("{dataCopyTime:" + (endDataCopy-startDataCopy) + "}\n");
-        }
 
-        return Pair.of(destDataset, upsertResult);
+            final List<Pair<Dataset, UpsertResult>> results = Lists.newArrayList();
+            for (int i=0; i<destDatasets.size(); i++) {
+                final Dataset destDataset = destDatasets.get(i);
+                UpsertResult  upsertResult = upsertResults.get(i);
+
+                if (syncDeletes) {
+                    final long startDeleteSync = System.currentTimeMillis();
+                    final long rowsDeleted = syncDeletes(producers.get(i), srcDataset.getId(), destDataset, output);
+                    upsertResult = new UpsertResult(upsertResult.getRowsCreated(), upsertResult.getRowsUpdated(), rowsDeleted, upsertResult.getErrors());
+                    final long endDeleteSync = System.currentTimeMillis();
+                    progress(output, "{deleteSyncTime:" + (endDeleteSync-startDeleteSync) + "}\n");
+                }
+
+                if (verify && !createOnly) {
+                    final long startVerify = System.currentTimeMillis();
+                    final List<String> differences = verifyCopy(srcDataset, destinations.get(i), destDataset, output);
+                    final long endVerify = System.currentTimeMillis();
+                    progress(output, "{verifyTime:" + (endVerify-startVerify) + "}\n");
+
+                    if (!differences.isEmpty()) {
+                        unverifiedDatasets.add(destDataset.getId());
+                    }
+                }
+
+                results.add(Pair.of(destDataset, upsertResult));
+            }
+            return results;
+        } finally {
+            if (pages != null) {
+                pages.close();
+            }
+            prefetchExecutor.shutdownNow();
+        }
     }
 
     public static Dataset loadSourceSchema(SodaDdl ddlSrc, String datasetId) throws SodaError, InterruptedException
     {
-        final DatasetInfo datasetInfo = ddlSrc.loadDatasetInfo(datasetId);
+        return asDataset(ddlSrc.loadDatasetInfo(datasetId));
+    }
+
+    /**
+     * Loads the schema of a dataset, through the metadata cache if there is one.
+     */
+    Dataset loadSchema(SodaDdl ddl, String domain, SocrataConnectionInfo connectionInfo, String datasetId) throws SodaError, InterruptedException
+    {
+        if (metadataCache == null) {
+            return loadSourceSchema(ddl, datasetId);
+        }
+        return asDataset(metadataCache.load(ddl, domain, connectionInfo, datasetId));
+    }
+
+    private static Dataset asDataset(DatasetInfo datasetInfo) throws SodaError
+    {
         if (!(datasetInfo instanceof Dataset)) {
             throw new SodaError("Can currently only copy datasets.");
         }
@@ -264,35 +766,162 @@ public class CopyDataset
         destDatasetTemplate.setResourceName(null);
         Dataset newDataset = (Dataset) ddlDest.createDataset(destDatasetTemplate);
         if (output != null) {
-            output.write("Created dataset " + newDataset.getName() + ".  4x4 is " + newDataset.getId() + "\n");
-            output.flush();
+            progress(output, "Created dataset " + newDataset.getName() + ".  4x4 is " + newDataset.getId() + "\n");
         }
 
         for (Column column  : srcDataset.getColumns()) {
             ddlDest.addColumn(newDataset.getId(), column);
             if (output != null) {
-                output.write("Added column " + column.getName() + ".\n");
-                output.flush();
+                progress(output, "Added column " + column.getName() + ".\n");
             }
         }
 
-        ddlDest.publish(newDataset.getId());
-        return (Dataset) ddlDest.loadDatasetInfo(newDataset.getId());
+        //publish returns the published dataset, so there's no need to load it again
+        final DatasetInfo published = ddlDest.publish(newDataset.getId());
+        return published instanceof Dataset ? (Dataset) published : (Dataset) ddlDest.loadDatasetInfo(newDataset.getId());
+    }
+
+    /**
+     * Finds the data file to use for a dataset.  If dataFileDir is a directory, this looks in it for a file
+     * named after the dataset id with one of the DATA_FILE_EXTENSIONS, e.g. abcd-1234.csv.gz.  If
+     * dataFileDir is a file, it is used as is.
+     *
+     * @param dataFileDir the directory to look in, or the data file itself
+     * @param datasetId the id of the source dataset
+     * @return the data file to upload for the dataset
+     */
+    @Nonnull
+    public static File findDataFile(File dataFileDir, String datasetId) throws SodaError, IOException
+    {
+        if (!dataFileDir.isDirectory()) {
+            return dataFileDir;
+        }
+
+        for (String extension : DATA_FILE_EXTENSIONS) {
+            final File dataFile = new File(dataFileDir, datasetId + extension);
+            if (dataFile.isFile()) {
+                return dataFile;
+            }
+        }
+
+        throw new SodaError("No data file found for " + datasetId + " in " + dataFileDir.getCanonicalPath() + ".  Looked for " +
+                                    datasetId + StringUtils.join(DATA_FILE_EXTENSIONS, ", " + datasetId) + "\n");
+    }
+
+    /**
+     * Starts getting a data file ready to upload in the background.  If the file will be uploaded in chunks,
+     * this splits it into chunks.  Otherwise, it only loads the first PREFETCH_SIZE bytes, the first window
+     * the upload maps, into the OS cache, so the upload can start without waiting on the disk.  Reading any
+     * more would double the disk I/O of a big file and compete with the upload for it.
+     *
+     * @return the future for the chunks of the file, or for null if the file won't be uploaded in chunks.
+     */
+    static Future<CsvChunker> prefetchDataFile(ExecutorService executor, final File dataFile, final int uploadThreads, final long chunkSize)
+    {
+        return executor.submit(new Callable<CsvChunker>()
+        {
+            public CsvChunker call() throws IOException
+            {
+                if (isChunkedUpload(dataFile, uploadThreads)) {
+                    return ParallelFileUploader.split(dataFile, chunkSize);
+                }
+
+                final RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+                try {
+                    final FileChannel channel = file.getChannel();
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(PREFETCH_SIZE, channel.size())).load();
+                } finally {
+                    file.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Gets the result of prefetchDataFile.  If the file is being split into chunks, this waits for the
+     * split to finish.  If only the start of the file was being loaded into the cache, this doesn't wait
+     * for it, since the upload is about to read it anyway.
+     */
+    static CsvChunker finishPrefetch(Future<CsvChunker> dataFilePrefetch, File dataFile, int uploadThreads) throws IOException, InterruptedException
+    {
+        if (dataFilePrefetch == null) {
+            return null;
+        }
+
+        if (!isChunkedUpload(dataFile, uploadThreads)) {
+            dataFilePrefetch.cancel(true);
+            return null;
+        }
+
+        try {
+            return dataFilePrefetch.get();
+        } catch (ExecutionException e) {
+            //The upload will hit the same problem, and report it properly
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the data file will be split into chunks that are uploaded concurrently.
+     */
+    static boolean isChunkedUpload(File dataFile, int uploadThreads)
+    {
+        return uploadThreads > 1 && getExtension(dataFile.getName()).equals(".csv");
     }
 
     @Nonnull
     public static UpsertResult importDataFile(Soda2Producer producerDest, String destId, File dataFile, Writer output) throws IOException, SodaError, InterruptedException
+    {
+        return importDataFile(producerDest, destId, dataFile, output, 1, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Upserts a data file into a dataset.  If uploadThreads is more than one and the file is an
+     * uncompressed csv, it is split into row aligned chunks that are upserted concurrently.  Otherwise,
+     * the file is sent as a single stream.
+     *
+     * @param producerDest producer for the destination domain
+     * @param destId the dataset to upsert into
+     * @param dataFile the csv or json file (optionally gzipped) to upsert
+     * @param output writer for progress, may be null
+     * @param uploadThreads the number of chunks to upload at the same time
+     * @param chunkSize the size of each chunk in bytes
+     * @return the results of the upsert.  For chunked uploads, this is the sum of the results for each chunk.
+     */
+    @Nonnull
+    public static UpsertResult importDataFile(Soda2Producer producerDest, String destId, File dataFile, Writer output, int uploadThreads, long chunkSize) throws IOException, SodaError, InterruptedException
+    {
+        return importDataFile(producerDest, destId, dataFile, null, output, uploadThreads, chunkSize);
+    }
+
+    /**
+     * Upserts a data file into a dataset, using chunks that have already been worked out.
+     *
+     * @param presplit the chunks of dataFile from ParallelFileUploader.split, or null
+     * @see #importDataFile(Soda2Producer, String, File, Writer, int, long)
+     */
+    @Nonnull
+    public static UpsertResult importDataFile(Soda2Producer producerDest, String destId, File dataFile, CsvChunker presplit, Writer output, int uploadThreads, long chunkSize) throws IOException, SodaError, InterruptedException
     {
         if (!dataFile.exists()) {
             throw new SodaError(dataFile.getCanonicalPath() + " does not exist.\n");
         }
 
+        if (isChunkedUpload(dataFile, uploadThreads)) {
+            if (output != null) {
+                progress(output, "Upserting file " + dataFile.getCanonicalPath() + " in chunks of " + chunkSize + " bytes\n");
+            }
+            return new ParallelFileUploader(producerDest, uploadThreads, chunkSize).upload(destId, dataFile, presplit, output);
+        }
+
         String unprocecessedName = dataFile.getName();
         String extToProcess = getExtension(unprocecessedName);
-        InputStream is = new FileInputStream(dataFile);
+        InputStream is = new MappedFileInputStream(dataFile);
 
         if (extToProcess.equals(".gz")) {
-            is = new GZIPInputStream(is);
+            //Inflate in large blocks, rather than the 512 byte default GZIPInputStream uses
+            is = new BufferedInputStream(new GZIPInputStream(is, GZIP_BUFFER_SIZE), GZIP_BUFFER_SIZE);
             unprocecessedName = unprocecessedName.substring(0, unprocecessedName.length() - extToProcess.length());
             extToProcess = getExtension(unprocecessedName);
         }
@@ -303,52 +932,137 @@ public class CopyDataset
         }
 
         if (output != null) {
-            output.write("Upserting file " + dataFile.getCanonicalPath() + " as " + mediaType + "\n");
-            output.flush();
+            progress(output, "Upserting file " + dataFile.getCanonicalPath() + " as " + mediaType + "\n");
+        }
+
+        try {
+            return producerDest.upsertStream(destId, mediaType, is);
+        } finally {
+            is.close();
         }
-        return producerDest.upsertStream(destId, mediaType, is);
     }
 
     public UpsertResult copyDataLive(Soda2Producer producerDest, String srcId, String destId, Writer output) throws LongRunningQueryException, SodaError, InterruptedException, IOException
+    {
+        final Soda2Consumer querySource = SodaClients.newConsumer(srcDomain, srcConnectionInfo);
+        final LivePagePrefetcher pages = new LivePagePrefetcher(querySource, srcId, sourceQuery, transport).start();
+        try {
+            return copyDataLive(producerDest, pages, destId, output);
+        } finally {
+            pages.close();
+        }
+    }
+
+    /**
+     * Upserts pages of rows from a live source dataset until there are none left.
+     *
+     * @param producerDest producer for the destination domain
+     * @param pages the source rows, which may already have been fetched in the background
+     * @param destId the dataset to upsert into
+     * @param output writer for progress, may be null
+     * @return the total rows created and updated
+     */
+    public UpsertResult copyDataLive(Soda2Producer producerDest, LivePagePrefetcher pages, String destId, Writer output) throws LongRunningQueryException, SodaError, InterruptedException, IOException
     {
 
         if (output != null) {
-            output.write("Copying data live from " + srcId + ".\n");
-            output.flush();
+            progress(output, "Copying data live from " + pages.srcId + " as " + pages.getMediaType() + ".\n");
         }
-        final Soda2Consumer querySource = Soda2Consumer.newConsumer(srcDomain, srcConnectionInfo.getUser(), srcConnectionInfo.getPassword(), srcConnectionInfo.getToken());
 
-        SoqlQueryBuilder    builder = new SoqlQueryBuilder(SoqlQuery.SELECT_ALL)
-                .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, ":id"))
-                .setLimit(1000);
-
-        int         offset = 0;
         long        rowsAdded = 0;
-        boolean     hasMore = true;
+        long        rowsUpdated = 0;
+        long        rowsCopied = 0;
+        byte[]      page;
+
+        while (true) {
+            final long waitStart = System.nanoTime();
+            page = pages.take();
+            if (dryRunTimer != null) {
+                dryRunTimer.record("sourceWait", waitStart, 0, 0);
+            }
+            if (page == null) {
+                break;
+            }
 
-        while (hasMore) {
-            ClientResponse response = querySource.query(srcId, HttpLowLevel.JSON_TYPE, builder.setOffset(offset).build());
-            UpsertResult result = producerDest.upsertStream(destId, HttpLowLevel.JSON_TYPE, response.getEntityInputStream());
+            UpsertResult result = producerDest.upsertStream(destId, pages.getMediaType(), new ByteArrayInputStream(page));
 
-            offset+=1000;
             rowsAdded+=result.getRowsCreated();
+            rowsUpdated+=result.getRowsUpdated();
+            rowsCopied+=pages.pageSize;
 
             if (output != null) {
-                if ((rowsAdded % 40000) == 0) {
-                    output.write('\n');
-                    output.flush();
+                if ((rowsCopied % 40000) == 0) {
+                    progress(output, "\n");
                 } else {
-                    output.write('.');
-                    output.flush();
+                    progress(output, ".");
                 }
             }
+        }
+        return new UpsertResult(rowsAdded, rowsUpdated, 0, null);
+    }
 
+    /**
+     * Checks a copied dataset against its source, writing out any differences.
+     *
+     * @param srcDataset the source dataset
+     * @param destDataset the copy
+     * @param output writer for progress and differences
+     * @return the differences found, empty if the copy matches.
+     */
+    public List<String> verifyCopy(Dataset srcDataset, Dataset destDataset, Writer output) throws LongRunningQueryException, SodaError, InterruptedException, IOException
+    {
+        return verifyCopy(srcDataset, destinations.get(0), destDataset, output);
+    }
 
-            if (result.getRowsCreated() == 0) {
-                hasMore = false;
+    /**
+     * Checks a copied dataset on one of the destinations against its source.
+     *
+     * @param destination the domain and credentials of the destination the copy is on
+     * @see #verifyCopy(Dataset, Dataset, Writer)
+     */
+    public List<String> verifyCopy(Dataset srcDataset, Pair<String, SocrataConnectionInfo> destination, Dataset destDataset, Writer output) throws LongRunningQueryException, SodaError, InterruptedException, IOException
+    {
+        final SocrataConnectionInfo destInfo = destination.getValue();
+        final Soda2Consumer querySource = SodaClients.newConsumer(srcDomain, srcConnectionInfo);
+        final Soda2Consumer queryDest = SodaClients.newConsumer(destination.getKey(), destInfo);
+
+        final List<String> differences = new DatasetVerifier(querySource, queryDest, sourceQuery).verify(srcDataset, destDataset.getId(), output);
+        if (output != null) {
+            synchronized (output) {
+                if (differences.isEmpty()) {
+                    output.write("Verified " + destDataset.getId() + " matches " + srcDataset.getId() + "\n");
+                } else {
+                    output.write(destDataset.getId() + " does NOT match " + srcDataset.getId() + ":\n");
+                    for (String difference : differences) {
+                        output.write("  " + difference + "\n");
+                    }
+                }
+                output.flush();
             }
         }
-        return new UpsertResult(rowsAdded, 0, 0, null);
+        return differences;
+    }
+
+    /**
+     * Deletes the rows in the destination dataset whose row identifier is no longer in the source.  The
+     * row identifiers of the source are read straight from the live source dataset.
+     *
+     * @param producerDest producer for the destination domain
+     * @param srcId the source dataset
+     * @param destDataset the destination dataset, which must have a row identifier
+     * @param output writer for progress, may be null
+     * @return the number of rows deleted
+     */
+    public long syncDeletes(Soda2Producer producerDest, String srcId, Dataset destDataset, Writer output) throws LongRunningQueryException, SodaError, InterruptedException, IOException
+    {
+        final Column rowIdentifier = DeleteSynchronizer.getRowIdentifierColumn(destDataset);
+        final String rowIdField = rowIdentifier.getFieldName();
+        if (output != null) {
+            progress(output, "Removing rows deleted from " + srcId + " using " + rowIdField + ".\n");
+        }
+
+        final Soda2Consumer querySource = SodaClients.newConsumer(srcDomain, srcConnectionInfo);
+        return new DeleteSynchronizer(producerDest).syncDeletes(DeleteSynchronizer.datasetKeys(querySource, srcId, rowIdField, sourceQuery), destDataset.getId(), rowIdentifier, output);
     }
 
     @Nonnull
@@ -0,0 +1,416 @@
+package com.socrata.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Consumer;
+import com.socrata.builders.SoqlQueryBuilder;
+import com.socrata.exceptions.LongRunningQueryException;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.soql.OrderByClause;
+import com.socrata.model.soql.SortOrder;
+import com.socrata.tools.utils.SodaQueries;
+import com.socrata.tools.utils.SourceQuery;
+import com.sun.jersey.api.client.ClientResponse;
+
+import javax.ws.rs.core.MediaType;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports a live dataset into a gzipped CSV or JSON file that importDataFile can load, e.g. abcd-1234.csv.gz.
+ *
+ * The rows are split into shards of ranges of :id, and the shards are downloaded at the same time.
+ * The bounds of the shards are found by skipping shardRows rows at a time from the last bound, reading
+ * only :id, and each shard is started as soon as its bounds are known.  Within a shard, pages are read
+ * by offset from the start of its range, so no offset is ever larger than a shard.  Each shard is compressed as it's downloaded into its own gzip member in a temp file.  Since a
+ * series of gzip members is itself a valid gzip file, the shards are then joined just by appending the
+ * temp files, without inflating them again.
+ *
+ * For CSV, only the header of the very first page is kept.  For JSON, the arrays of each page are merged
+ * into a single array.
+ */
+public class DatasetExporter
+{
+    public static final int DEFAULT_PAGE_SIZE = 10000;
+    public static final int DEFAULT_SHARD_ROWS = 200000;
+    public static final int GZIP_BUFFER_SIZE = 256 * 1024;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The formats a dataset can be exported as, or read in by LivePagePrefetcher.
+     */
+    public enum Format
+    {
+        CSV(".csv.gz", HttpLowLevel.CSV_TYPE),
+        JSON(".json.gz", HttpLowLevel.JSON_TYPE);
+
+        final String    extension;
+        final MediaType mediaType;
+
+        Format(String extension, MediaType mediaType)
+        {
+            this.extension = extension;
+            this.mediaType = mediaType;
+        }
+
+        public String getExtension()
+        {
+            return extension;
+        }
+
+        public MediaType getMediaType()
+        {
+            return mediaType;
+        }
+
+        public static Format fromValue(String value)
+        {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(value)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown format " + value + ".  Expected csv or json.");
+        }
+    }
+
+    final Soda2Consumer querySource;
+    final Format        format;
+    final SourceQuery   sourceQuery;
+    final int           threads;
+    final int           pageSize;
+    final int           shardRows;
+
+    public DatasetExporter(Soda2Consumer querySource, Format format, int threads)
+    {
+        this(querySource, format, SourceQuery.ALL, threads);
+    }
+
+    public DatasetExporter(Soda2Consumer querySource, Format format, SourceQuery sourceQuery, int threads)
+    {
+        this(querySource, format, sourceQuery, threads, DEFAULT_PAGE_SIZE, DEFAULT_SHARD_ROWS);
+    }
+
+    /**
+     * @param querySource consumer for the domain the datasets are on
+     * @param format the format to write
+     * @param sourceQuery the columns and rows to export
+     * @param threads the number of shards to download at the same time
+     * @param pageSize the number of rows in each request
+     * @param shardRows the number of rows in each shard
+     */
+    public DatasetExporter(Soda2Consumer querySource, Format format, SourceQuery sourceQuery, int threads, int pageSize, int shardRows)
+    {
+        this.querySource = querySource;
+        this.format = format;
+        this.sourceQuery = sourceQuery;
+        this.threads = threads;
+        this.pageSize = pageSize;
+        this.shardRows = shardRows;
+    }
+
+    /**
+     * A range of rows, downloaded into its own compressed temp file.
+     */
+    class Shard implements Callable<Shard>
+    {
+        final String    datasetId;
+        final String    range;
+        final File      file;
+
+        byte[]  header;
+        boolean hasRows;
+
+        /**
+         * @param after the :id just before the shard, or null to start from the first row
+         * @param last the last :id of the shard, or null to keep going until there are no more rows
+         */
+        Shard(String datasetId, Object after, Object last) throws IOException
+        {
+            this.datasetId = datasetId;
+            this.range = idRange(after, last);
+            this.file = File.createTempFile("SocrataExport", ".gz");
+        }
+
+        public Shard call() throws Exception
+        {
+            final OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), GZIP_BUFFER_SIZE), GZIP_BUFFER_SIZE);
+            try {
+                int offset = 0;
+                while (true) {
+                    final byte[] page = readPage(datasetId, range, offset, pageSize);
+                    final boolean wroteRows = format == Format.CSV ? writeCsvPage(page, os) : writeJsonPage(page, os);
+                    if (!wroteRows) {
+                        break;
+                    }
+
+                    hasRows = true;
+                    offset += pageSize;
+                }
+            } finally {
+                os.close();
+            }
+            return this;
+        }
+
+        /**
+         * Writes the rows of a CSV page, holding on to the header rather than writing it.
+         *
+         * @return true if the page had any rows.
+         */
+        private boolean writeCsvPage(byte[] page, OutputStream os) throws IOException
+        {
+            int headerEnd = indexOf(page, (byte) '\n', 0);
+            headerEnd = headerEnd == -1 ? page.length : headerEnd + 1;
+            if (header == null) {
+                header = Arrays.copyOf(page, headerEnd);
+            }
+
+            if (headerEnd == page.length) {
+                return false;
+            }
+
+            os.write(page, headerEnd, page.length - headerEnd);
+            if (page[page.length - 1] != '\n') {
+                os.write('\n');
+            }
+            return true;
+        }
+
+        /**
+         * Writes the elements of a JSON array page, without the brackets, separated from anything
+         * already in this shard with a comma.
+         *
+         * @return true if the page had any rows.
+         */
+        private boolean writeJsonPage(byte[] page, OutputStream os) throws IOException
+        {
+            final int open = indexOf(page, (byte) '[', 0);
+            if (open == -1 || LivePagePrefetcher.isEmptyArray(page)) {
+                return false;
+            }
+
+            int close = page.length - 1;
+            while (close > open && page[close] != ']') {
+                close--;
+            }
+
+            if (hasRows) {
+                os.write(',');
+            }
+            os.write(page, open + 1, close - open - 1);
+            return true;
+        }
+    }
+
+    /**
+     * Exports a dataset.
+     *
+     * @param datasetId the dataset to export
+     * @param dir the directory to write the file to
+     * @param output writer for progress, may be null
+     * @return the file that was written, e.g. dir/abcd-1234.csv.gz
+     */
+    public File export(String datasetId, File dir, Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create the export directory " + dir.getCanonicalPath());
+        }
+
+        final long rowCount = SodaQueries.countRows(querySource, datasetId, sourceQuery);
+        final File exportFile = new File(dir, datasetId + format.getExtension());
+
+        if (output != null) {
+            output.write("Exporting about " + rowCount + " rows from " + datasetId + " in shards of " + shardRows + " rows to " + exportFile.getCanonicalPath() + "\n");
+            output.flush();
+        }
+
+        final List<Shard>           shards = Lists.newArrayList();
+        final ExecutorService       executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Shard>> futures = Lists.newArrayList();
+            Object after = null;
+            Object last;
+            while ((last = nextBound(datasetId, after)) != null) {
+                final Shard shard = new Shard(datasetId, after, last);
+                shards.add(shard);
+                futures.add(executor.submit(shard));
+                after = last;
+            }
+
+            //The last shard is open ended, so it also picks up rows added since the bounds were found
+            final Shard shard = new Shard(datasetId, after, null);
+            shards.add(shard);
+            futures.add(executor.submit(shard));
+
+            for (Future<Shard> future : futures) {
+                getResult(future);
+                if (output != null) {
+                    output.write('.');
+                    output.flush();
+                }
+            }
+
+            join(shards, exportFile);
+            if (output != null) {
+                output.write("\n");
+                output.flush();
+            }
+            return exportFile;
+        } finally {
+            executor.shutdownNow();
+            for (Shard shard : shards) {
+                shard.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Appends the shards to the export file, with the CSV header or JSON brackets and commas added as
+     * small gzip members of their own.
+     */
+    private void join(List<Shard> shards, File exportFile) throws IOException
+    {
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(exportFile), GZIP_BUFFER_SIZE);
+        try {
+            if (format == Format.CSV) {
+                for (Shard shard : shards) {
+                    if (shard.header != null) {
+                        writeMember(os, shard.header);
+                        break;
+                    }
+                }
+            } else {
+                writeMember(os, "[".getBytes(UTF_8));
+            }
+
+            boolean first = true;
+            for (Shard shard : shards) {
+                if (!shard.hasRows) {
+                    continue;
+                }
+
+                if (format == Format.JSON && !first) {
+                    writeMember(os, ",".getBytes(UTF_8));
+                }
+                Files.copy(shard.file, os);
+                first = false;
+            }
+
+            if (format == Format.JSON) {
+                writeMember(os, "]\n".getBytes(UTF_8));
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Finds the :id of the row shardRows rows after the given :id.
+     *
+     * @param after the :id to start after, or null to start from the first row
+     * @return the :id, or null if there are no more than shardRows rows left
+     */
+    private Object nextBound(String datasetId, Object after) throws LongRunningQueryException, SodaError, IOException
+    {
+        final List<Map<String, Object>> rows = SodaQueries.queryRows(querySource, datasetId, sourceQuery.newFilteredBuilder(idRange(after, null))
+                .addSelectPhrase(":id")
+                .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, ":id"))
+                .setLimit(1)
+                .setOffset(shardRows - 1));
+        return rows.isEmpty() ? null : rows.get(0).get(":id");
+    }
+
+    /**
+     * @return a SoQL condition for the rows after one :id up to and including another, or null if both are null.
+     */
+    static String idRange(Object after, Object last)
+    {
+        if (after == null && last == null) {
+            return null;
+        }
+        if (last == null) {
+            return ":id > " + idLiteral(after);
+        }
+        if (after == null) {
+            return ":id <= " + idLiteral(last);
+        }
+        return "(:id > " + idLiteral(after) + " AND :id <= " + idLiteral(last) + ")";
+    }
+
+    private static String idLiteral(Object id)
+    {
+        return id instanceof Number ? id.toString() : "'" + id.toString().replace("'", "''") + "'";
+    }
+
+    private byte[] readPage(String datasetId, String range, int offset, int limit) throws LongRunningQueryException, SodaError, IOException
+    {
+        final SoqlQueryBuilder builder = sourceQuery.newBuilder(range)
+                .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, ":id"))
+                .setLimit(limit)
+                .setOffset(offset);
+
+        final ClientResponse response = querySource.query(datasetId, format.mediaType, builder.build());
+        final InputStream is = response.getEntityInputStream();
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void writeMember(OutputStream os, byte[] bytes) throws IOException
+    {
+        final GZIPOutputStream member = new GZIPOutputStream(new FilterOutputStream(os)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                //Finish the member, but leave the underlying file open
+                flush();
+            }
+        });
+        member.write(bytes);
+        member.close();
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start)
+    {
+        for (int i=start; i<bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void getResult(Future<Shard> future) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SodaError) {
+                throw (SodaError) cause;
+            }
+            if (cause instanceof LongRunningQueryException) {
+                throw (LongRunningQueryException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.socrata.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.socrata.api.Soda2Consumer;
+import com.socrata.exceptions.LongRunningQueryException;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.importer.Column;
+import com.socrata.model.importer.Dataset;
+import com.socrata.model.soql.OrderByClause;
+import com.socrata.model.soql.SortOrder;
+import com.socrata.tools.utils.SodaQueries;
+import com.socrata.tools.utils.SourceQuery;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that a copied dataset matches its source, without downloading either one in full.
+ *
+ * The comparison is made up of independent checks, which are run in parallel:
+ * <ul>
+ *     <li>the row count of each side, with count(*)</li>
+ *     <li>min, max and sum of every numeric column, computed by the server</li>
+ *     <li>a hash over each of a sample of ranges of rows, in row identifier order</li>
+ * </ul>
+ *
+ * When the source has a row identifier, both sides are read in the order of its value, so a range of
+ * offsets covers the same rows on both sides however the rows were loaded.  Otherwise, both sides are
+ * read in :id order, which only lines up when the rows were copied one after another in :id order, as
+ * a live copy into a new dataset does (see canCompareRanges).  SoQL has no hash
+ * function, so the sampled ranges are downloaded and hashed here; only when the hashes of a range don't
+ * match are its rows compared one by one to report what differs.
+ *
+ * When only part of the source was copied, every query against the source is limited by the same
+ * SourceQuery, so it's compared with the copy as a whole.
+ */
+public class DatasetVerifier
+{
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_SAMPLE_RANGES = 16;
+    public static final int DEFAULT_RANGE_SIZE = 1000;
+
+    /**
+     * The most differing rows reported for a single range.
+     */
+    public static final int MAX_REPORTED_ROWS = 5;
+
+    static final Set<String> NUMERIC_TYPES = Sets.newHashSet("number", "money", "percent", "double");
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final Soda2Consumer querySource;
+    final Soda2Consumer queryDest;
+    final SourceQuery   sourceQuery;
+    final int           threads;
+    final int           sampleRanges;
+    final int           rangeSize;
+
+    public DatasetVerifier(Soda2Consumer querySource, Soda2Consumer queryDest)
+    {
+        this(querySource, queryDest, SourceQuery.ALL);
+    }
+
+    public DatasetVerifier(Soda2Consumer querySource, Soda2Consumer queryDest, SourceQuery sourceQuery)
+    {
+        this(querySource, queryDest, sourceQuery, DEFAULT_THREADS, DEFAULT_SAMPLE_RANGES, DEFAULT_RANGE_SIZE);
+    }
+
+    /**
+     * @param querySource consumer for the source domain
+     * @param queryDest consumer for the destination domain
+     * @param sourceQuery the columns and rows of the source that were copied
+     * @param threads the number of checks to run at the same time
+     * @param sampleRanges the number of ranges of rows to hash
+     * @param rangeSize the number of rows in each range
+     */
+    public DatasetVerifier(Soda2Consumer querySource, Soda2Consumer queryDest, SourceQuery sourceQuery, int threads, int sampleRanges, int rangeSize)
+    {
+        this.querySource = querySource;
+        this.queryDest = queryDest;
+        this.sourceQuery = sourceQuery;
+        this.threads = threads;
+        this.sampleRanges = sampleRanges;
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Compares a source dataset with its copy.
+     *
+     * @param srcDataset the source dataset, used for its columns
+     * @param destId the copy to check
+     * @param output writer for progress, may be null
+     * @return a description of each difference found.  Empty if the datasets match.
+     */
+    public List<String> verify(final Dataset srcDataset, final String destId, final Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
+        final String srcId = srcDataset.getId();
+        final long   srcCount = SodaQueries.countRows(querySource, srcId, sourceQuery);
+        final long   destCount = SodaQueries.countRows(queryDest, destId);
+
+        final List<String> differences = Lists.newArrayList();
+        if (srcCount != destCount) {
+            differences.add("Row count differs: " + srcCount + " in " + srcId + ", " + destCount + " in " + destId);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<List<String>>> checks = Lists.newArrayList();
+            for (final Column column : srcDataset.getColumns()) {
+                if (NUMERIC_TYPES.contains(column.getDataTypeName()) && sourceQuery.includes(column.getFieldName())) {
+                    checks.add(executor.submit(new Callable<List<String>>()
+                    {
+                        public List<String> call() throws Exception
+                        {
+                            return compareAggregates(srcId, destId, column.getFieldName());
+                        }
+                    }));
+                }
+            }
+
+            final Set<String> numericFields = numericFields(srcDataset);
+            final String      orderField = orderField(srcDataset, sourceQuery);
+            for (final int offset : sampleOffsets(Math.min(srcCount, destCount))) {
+                checks.add(executor.submit(new Callable<List<String>>()
+                {
+                    public List<String> call() throws Exception
+                    {
+                        return compareRange(srcId, destId, offset, orderField, numericFields);
+                    }
+                }));
+            }
+
+            if (output != null) {
+                synchronized (output) {
+                    output.write("Verifying " + destId + " against " + srcId + " with " + checks.size() + " checks\n");
+                    output.flush();
+                }
+            }
+
+            for (Future<List<String>> check : checks) {
+                differences.addAll(getResult(check));
+            }
+            return differences;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares min, max and sum of a numeric column.
+     */
+    List<String> compareAggregates(String srcId, String destId, String fieldName) throws LongRunningQueryException, SodaError, IOException
+    {
+        final Map<String, Object> srcAggregates = aggregates(querySource, srcId, fieldName, sourceQuery);
+        final Map<String, Object> destAggregates = aggregates(queryDest, destId, fieldName, SourceQuery.ALL);
+
+        final List<String> differences = Lists.newArrayList();
+        for (String aggregate : new String[] {"min", "max", "sum"}) {
+            final Object srcValue = srcAggregates.get(aggregate + "_value");
+            final Object destValue = destAggregates.get(aggregate + "_value");
+            if (!sameNumber(srcValue, destValue)) {
+                differences.add(aggregate + "(" + fieldName + ") differs: " + srcValue + " in " + srcId + ", " + destValue + " in " + destId);
+            }
+        }
+        return differences;
+    }
+
+    private static Map<String, Object> aggregates(Soda2Consumer consumer, String datasetId, String fieldName, SourceQuery sourceQuery) throws LongRunningQueryException, SodaError, IOException
+    {
+        final List<Map<String, Object>> rows = SodaQueries.queryRows(consumer, datasetId, sourceQuery.newFilteredBuilder()
+                .addSelectPhrase("min(" + fieldName + ") AS min_value")
+                .addSelectPhrase("max(" + fieldName + ") AS max_value")
+                .addSelectPhrase("sum(" + fieldName + ") AS sum_value"));
+        return rows.isEmpty() ? Collections.<String, Object>emptyMap() : rows.get(0);
+    }
+
+    /**
+     * Gets the field both sides are sorted by when reading ranges of rows: the row identifier of the
+     * source if it has one that was copied, otherwise :id.
+     */
+    public static String orderField(Dataset srcDataset, SourceQuery sourceQuery)
+    {
+        final Column rowIdentifier = srcDataset.getRowIdentifierColumn();
+        return rowIdentifier != null && sourceQuery.includes(rowIdentifier.getFieldName()) ? rowIdentifier.getFieldName() : ":id";
+    }
+
+    /**
+     * Checks whether the sampled ranges of a copy can be lined up with the source.  That's always true
+     * when the source has a row identifier.  Without one, ranges are read in :id order, which only
+     * matches if the copy's rows were created in the source's :id order, one at a time.  That isn't the
+     * case for chunks uploaded in parallel, rows from a data file, or rows added to an existing dataset.
+     *
+     * @param srcDataset the source dataset
+     * @param sourceQuery the columns and rows of the source that were copied
+     * @param inSourceOrder true if the rows were copied live, in :id order, into a new dataset
+     */
+    public static boolean canCompareRanges(Dataset srcDataset, SourceQuery sourceQuery, boolean inSourceOrder)
+    {
+        return inSourceOrder || !":id".equals(orderField(srcDataset, sourceQuery));
+    }
+
+    /**
+     * Compares the hashes of a range of rows on both sides, and the rows themselves if those differ.
+     */
+    List<String> compareRange(String srcId, String destId, int offset, String orderField, Set<String> numericFields) throws LongRunningQueryException, SodaError, IOException
+    {
+        final List<Map<String, Object>> srcRows = readRange(querySource, srcId, offset, orderField, sourceQuery);
+        final List<Map<String, Object>> destRows = readRange(queryDest, destId, offset, orderField, SourceQuery.ALL);
+
+        if (Arrays.equals(hash(srcRows, numericFields), hash(destRows, numericFields))) {
+            return Collections.emptyList();
+        }
+
+        final List<String> differences = Lists.newArrayList();
+        final String range = "rows " + offset + "-" + (offset + rangeSize - 1);
+        if (srcRows.size() != destRows.size()) {
+            differences.add(range + " has " + srcRows.size() + " rows in " + srcId + ", " + destRows.size() + " in " + destId);
+        }
+
+        for (int i=0; i<Math.min(srcRows.size(), destRows.size()) && differences.size() < MAX_REPORTED_ROWS; i++) {
+            final String srcRow = canonicalRow(srcRows.get(i), numericFields);
+            final String destRow = canonicalRow(destRows.get(i), numericFields);
+            if (!srcRow.equals(destRow)) {
+                differences.add("Row " + (offset + i) + " differs: " + srcRow + " in " + srcId + ", " + destRow + " in " + destId);
+            }
+        }
+
+        if (differences.isEmpty()) {
+            differences.add(range + " hash differently");
+        }
+        return differences;
+    }
+
+    private List<Map<String, Object>> readRange(Soda2Consumer consumer, String datasetId, int offset, String orderField, SourceQuery sourceQuery) throws LongRunningQueryException, SodaError, IOException
+    {
+        return SodaQueries.queryRows(consumer, datasetId, sourceQuery.newBuilder()
+                .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, orderField))
+                .setLimit(rangeSize)
+                .setOffset(offset));
+    }
+
+    /**
+     * Picks the offsets of the ranges to hash.  The first and last ranges are always checked, since
+     * a copy that stopped early or started late shows up there, and the rest are picked at random.
+     */
+    List<Integer> sampleOffsets(long rowCount)
+    {
+        final int numRanges = (int) Math.min(Integer.MAX_VALUE / rangeSize, (rowCount + rangeSize - 1) / rangeSize);
+        final List<Integer> ranges = Lists.newArrayList();
+        for (int i=0; i<numRanges; i++) {
+            ranges.add(i);
+        }
+
+        final List<Integer> picked = Lists.newArrayList();
+        if (numRanges > 0) {
+            picked.add(ranges.remove(ranges.size() - 1));
+        }
+        if (numRanges > 1) {
+            picked.add(ranges.remove(0));
+        }
+        Collections.shuffle(ranges);
+        picked.addAll(ranges.subList(0, Math.max(0, Math.min(ranges.size(), sampleRanges - picked.size()))));
+
+        final List<Integer> offsets = Lists.newArrayList();
+        for (Integer range : picked) {
+            offsets.add(range * rangeSize);
+        }
+        Collections.sort(offsets);
+        return offsets;
+    }
+
+    private static byte[] hash(List<Map<String, Object>> rows, Set<String> numericFields)
+    {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (Map<String, Object> row : rows) {
+                digest.update(canonicalRow(row, numericFields).getBytes(UTF_8));
+                digest.update((byte) '\n');
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Writes out a row with its fields in order, and numbers without trailing zeros, so the same row
+     * gives the same string whichever side it came from.
+     */
+    static String canonicalRow(Map<String, Object> row, Set<String> numericFields)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> field : new TreeMap<String, Object>(row).entrySet()) {
+            if (field.getValue() == null) {
+                continue;
+            }
+
+            sb.append(field.getKey()).append('=');
+            sb.append(numericFields.contains(field.getKey()) ? normalizeNumber(field.getValue()) : field.getValue().toString());
+            sb.append('\u0001');
+        }
+        return sb.toString();
+    }
+
+    private static boolean sameNumber(Object srcValue, Object destValue)
+    {
+        if (srcValue == null || destValue == null) {
+            return srcValue == destValue;
+        }
+        return normalizeNumber(srcValue).equals(normalizeNumber(destValue));
+    }
+
+    private static String normalizeNumber(Object value)
+    {
+        try {
+            return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException e) {
+            return value.toString();
+        }
+    }
+
+    private static Set<String> numericFields(Dataset dataset)
+    {
+        final Set<String> fields = Sets.newHashSet();
+        for (Column column : dataset.getColumns()) {
+            if (NUMERIC_TYPES.contains(column.getDataTypeName())) {
+                fields.add(column.getFieldName());
+            }
+        }
+        return fields;
+    }
+
+    private static List<String> getResult(Future<List<String>> check) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
+        try {
+            return check.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SodaError) {
+                throw (SodaError) cause;
+            }
+            if (cause instanceof LongRunningQueryException) {
+                throw (LongRunningQueryException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
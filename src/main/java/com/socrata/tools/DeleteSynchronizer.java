@@ -0,0 +1,325 @@
+package com.socrata.tools;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.socrata.api.Soda2Consumer;
+import com.socrata.api.Soda2Producer;
+import com.socrata.builders.SoqlQueryBuilder;
+import com.socrata.exceptions.LongRunningQueryException;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.importer.Column;
+import com.socrata.model.importer.Dataset;
+import com.socrata.model.soql.OrderByClause;
+import com.socrata.model.soql.SortOrder;
+import com.socrata.tools.utils.ExternalKeySorter;
+import com.socrata.tools.utils.SodaQueries;
+import com.socrata.tools.utils.SourceQuery;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deletes the rows from a destination dataset that no longer exist at the source.
+ *
+ * Only the row identifiers are read from each side.  Both sets of keys are sorted through an
+ * ExternalKeySorter, so neither side has to fit in memory, and then walked together to find the
+ * keys that are only in the destination.  Those rows are deleted by upserting them in batches with
+ * ":deleted" set to true.
+ *
+ * The destination dataset must have a row identifier column, since that is what ties a destination
+ * row back to its source row.  Keys are compared in a canonical form for the type of that column
+ * (see normalizeKey), since the same value reads differently from a database and from SODA, e.g.
+ * 12.50 and "12.5", or a Timestamp and "2014-01-02T03:04:05.000".
+ *
+ * As a guard against a broken or empty source wiping out the destination, nothing is deleted if the
+ * deletes would remove every row of the destination, or more than maxDeleteFraction of its rows.
+ */
+public class DeleteSynchronizer
+{
+    public static final int KEY_PAGE_SIZE = 50000;
+    public static final int DELETE_BATCH_SIZE = 10000;
+    public static final String DELETED_FIELD = ":deleted";
+
+    /**
+     * By default, a sync that would delete more than this fraction of the destination's rows is refused.
+     */
+    public static final double DEFAULT_MAX_DELETE_FRACTION = 0.5;
+
+    static final Set<String> NUMERIC_TYPES = ImmutableSet.of("number", "money", "percent", "double");
+    static final Set<String> DATE_TYPES = ImmutableSet.of("calendar_date", "floating_timestamp", "date");
+
+    static final ThreadLocal<DateFormat> ISO_FORMAT = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        }
+    };
+
+    final Soda2Producer producerDest;
+
+    double maxDeleteFraction = DEFAULT_MAX_DELETE_FRACTION;
+
+    public DeleteSynchronizer(Soda2Producer producerDest)
+    {
+        this.producerDest = producerDest;
+    }
+
+    /**
+     * @param maxDeleteFraction the largest fraction of the destination's rows a sync may delete.  A sync
+     *                          that would delete every row of the destination is always refused.
+     */
+    public void setMaxDeleteFraction(double maxDeleteFraction)
+    {
+        this.maxDeleteFraction = maxDeleteFraction;
+    }
+
+    /**
+     * Gets the row identifier column of a dataset.
+     *
+     * @param dataset the dataset to look at
+     * @return the row identifier column
+     */
+    public static Column getRowIdentifierColumn(Dataset dataset) throws SodaError
+    {
+        final Column rowIdentifier = dataset.getRowIdentifierColumn();
+        if (rowIdentifier == null) {
+            throw new SodaError("Dataset " + dataset.getId() + " does not have a row identifier, so deleted rows can't be matched up.");
+        }
+        return rowIdentifier;
+    }
+
+    /**
+     * Gets the field name of the row identifier for a dataset.
+     *
+     * @param dataset the dataset to look at
+     * @return the field name of the row identifier column
+     */
+    public static String getRowIdentifierField(Dataset dataset) throws SodaError
+    {
+        return getRowIdentifierColumn(dataset).getFieldName();
+    }
+
+    /**
+     * Deletes every row in the destination whose row identifier is not one of sourceKeys.
+     *
+     * @param sourceKeys the row identifiers of all the rows at the source, in any order.  These can be
+     *                   the values read from a database, or the strings read from another dataset.
+     * @param destId the dataset to delete rows from
+     * @param rowIdentifier the row identifier column of the destination
+     * @param output writer for progress, may be null
+     * @return the number of rows deleted
+     */
+    public long syncDeletes(Iterator<?> sourceKeys, String destId, Column rowIdentifier, Writer output) throws IOException, SodaError, InterruptedException, LongRunningQueryException
+    {
+        final String            rowIdField = rowIdentifier.getFieldName();
+        final String            keyType = rowIdentifier.getDataTypeName();
+        final ExternalKeySorter sourceSorter = new ExternalKeySorter();
+        final ExternalKeySorter destSorter = new ExternalKeySorter();
+        try {
+            sourceSorter.addAll(normalizeKeys(sourceKeys, keyType));
+            destSorter.addAll(normalizeKeys(datasetKeys(producerDest, destId, rowIdField), keyType));
+
+            if (output != null) {
+                synchronized (output) {
+                    output.write("Comparing " + sourceSorter.size() + " source keys with " + destSorter.size() + " destination keys\n");
+                    output.flush();
+                }
+            }
+
+            //  Count what would be deleted before deleting anything
+            final long destRows = Iterators.size(destSorter.sortedKeys());
+            final long toDelete = Iterators.size(ExternalKeySorter.difference(destSorter.sortedKeys(), sourceSorter.sortedKeys()));
+            if (toDelete > 0 && (toDelete == destRows || toDelete > destRows * maxDeleteFraction)) {
+                throw new SodaError("Refusing to delete " + toDelete + " of the " + destRows + " rows in " + destId +
+                                            ", since the source may be incomplete.  Replace the dataset instead if that many rows really were deleted.");
+            }
+
+            final Iterator<String> deletedKeys = ExternalKeySorter.difference(destSorter.sortedKeys(), sourceSorter.sortedKeys());
+
+            long deleted = 0;
+            final List<Map<String, Object>> batch = Lists.newArrayList();
+            while (deletedKeys.hasNext()) {
+                final Map<String, Object> row = Maps.newHashMap();
+                row.put(rowIdField, deletedKeys.next());
+                row.put(DELETED_FIELD, true);
+                batch.add(row);
+
+                if (batch.size() >= DELETE_BATCH_SIZE) {
+                    deleted += producerDest.upsert(destId, batch).getRowsDeleted();
+                    batch.clear();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                deleted += producerDest.upsert(destId, batch).getRowsDeleted();
+            }
+
+            if (output != null) {
+                synchronized (output) {
+                    output.write("Deleted " + deleted + " rows from " + destId + "\n");
+                    output.flush();
+                }
+            }
+            return deleted;
+        } finally {
+            sourceSorter.close();
+            destSorter.close();
+        }
+    }
+
+    /**
+     * Puts a row identifier into a canonical form for the type of its column, so the same value compares
+     * equal whether it came from a database or from SODA:
+     * <ul>
+     *     <li>Numbers are written as plain decimals without trailing zeros, so 12.50, 12.5 and "12.5" all
+     *     become "12.5".</li>
+     *     <li>Dates and timestamps are written as yyyy-MM-ddTHH:mm:ss.SSS, the way SODA returns floating
+     *     timestamps.</li>
+     *     <li>Anything else is compared as its string value.</li>
+     * </ul>
+     *
+     * @param key the key, a String, Number, Date or anything else with a meaningful toString
+     * @param keyType the SODA data type of the row identifier column
+     * @return the canonical form of the key, or null if key is null
+     */
+    public static String normalizeKey(Object key, String keyType)
+    {
+        if (key == null) {
+            return null;
+        }
+
+        if (NUMERIC_TYPES.contains(keyType)) {
+            try {
+                final BigDecimal number = new BigDecimal(key.toString().trim());
+                //stripTrailingZeros leaves zero with its scale on older JDKs
+                return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                return key.toString();
+            }
+        }
+
+        if (DATE_TYPES.contains(keyType)) {
+            if (key instanceof Date) {
+                return ISO_FORMAT.get().format((Date) key);
+            }
+            return normalizeTimestamp(key.toString().trim());
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Rewrites a yyyy-MM-dd, yyyy-MM-dd HH:mm:ss or yyyy-MM-ddTHH:mm:ss[.fraction] string as
+     * yyyy-MM-ddTHH:mm:ss.SSS.  Strings in any other shape are returned as they are.
+     */
+    static String normalizeTimestamp(String timestamp)
+    {
+        if (timestamp.length() == 10) {
+            return timestamp + "T00:00:00.000";
+        }
+        if (timestamp.length() < 19 || (timestamp.charAt(10) != 'T' && timestamp.charAt(10) != ' ')) {
+            return timestamp;
+        }
+
+        final StringBuilder normalized = new StringBuilder(23).append(timestamp, 0, 10).append('T').append(timestamp, 11, 19);
+        String fraction = timestamp.length() > 20 && timestamp.charAt(19) == '.' ? timestamp.substring(20) : "";
+        if (!fraction.matches("[0-9]*")) {
+            return timestamp;
+        }
+        fraction = (fraction + "000").substring(0, 3);
+        return normalized.append('.').append(fraction).toString();
+    }
+
+    private static Iterator<String> normalizeKeys(Iterator<?> keys, final String keyType)
+    {
+        return Iterators.transform(keys, new Function<Object, String>()
+        {
+            public String apply(Object key)
+            {
+                return normalizeKey(key, keyType);
+            }
+        });
+    }
+
+    /**
+     * Reads the values of a single field from every row in a dataset, a page at a time.
+     *
+     * @param consumer consumer for the domain the dataset is on
+     * @param datasetId the dataset to read
+     * @param keyField the field to read
+     * @return the (non-null) values of the field, in :id order
+     */
+    public static Iterator<String> datasetKeys(Soda2Consumer consumer, String datasetId, String keyField)
+    {
+        return datasetKeys(consumer, datasetId, keyField, SourceQuery.ALL);
+    }
+
+    /**
+     * Reads the values of a single field from the rows of a dataset that match a source query, a page at a time.
+     *
+     * @param consumer consumer for the domain the dataset is on
+     * @param datasetId the dataset to read
+     * @param keyField the field to read
+     * @param sourceQuery the rows to read
+     * @return the (non-null) values of the field, in :id order
+     */
+    public static Iterator<String> datasetKeys(final Soda2Consumer consumer, final String datasetId, final String keyField, final SourceQuery sourceQuery)
+    {
+        return new AbstractIterator<String>()
+        {
+            Iterator<Map<String, Object>> page;
+            int     offset = 0;
+            boolean lastPage = false;
+
+            @Override
+            protected String computeNext()
+            {
+                while (true) {
+                    while (page == null || !page.hasNext()) {
+                        if (lastPage) {
+                            return endOfData();
+                        }
+
+                        final List<Map<String, Object>> rows = nextPage();
+                        lastPage = rows.size() < KEY_PAGE_SIZE;
+                        offset += KEY_PAGE_SIZE;
+                        page = rows.iterator();
+                    }
+
+                    final Object key = page.next().get(keyField);
+                    if (key != null) {
+                        return key.toString();
+                    }
+                }
+            }
+
+            private List<Map<String, Object>> nextPage()
+            {
+                final SoqlQueryBuilder query = sourceQuery.newFilteredBuilder()
+                        .addSelectPhrase(keyField)
+                        .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, ":id"))
+                        .setLimit(KEY_PAGE_SIZE)
+                        .setOffset(offset);
+                try {
+                    return SodaQueries.queryRows(consumer, datasetId, query);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to read keys from " + datasetId, e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,194 @@
+package com.socrata.tools;
+
+import com.google.common.collect.Lists;
+import com.socrata.api.Soda2Producer;
+import com.socrata.exceptions.LongRunningQueryException;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.UpsertResult;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Copies the rows of one live source dataset into several destination datasets, reading the source
+ * only once.
+ *
+ * Each page read from the source is handed to every destination.  Each destination has its own
+ * writer thread and its own queue of at most maxBufferedPages pages, so destinations upsert at their
+ * own pace.  A slow destination only holds up the others once its queue is full; until then, the
+ * source keeps being read and the faster destinations keep writing.
+ *
+ * If a destination fails, it stops getting pages, and the rest of the destinations carry on.  The
+ * failure is thrown once all the others are done.
+ */
+public class FanOutCopier
+{
+    public static final int DEFAULT_MAX_BUFFERED_PAGES = 16;
+
+    static final byte[] END_OF_PAGES = new byte[0];
+
+    final int maxBufferedPages;
+
+    public FanOutCopier()
+    {
+        this(DEFAULT_MAX_BUFFERED_PAGES);
+    }
+
+    /**
+     * @param maxBufferedPages the most pages a destination can fall behind the source by
+     */
+    public FanOutCopier(int maxBufferedPages)
+    {
+        this.maxBufferedPages = maxBufferedPages;
+    }
+
+    /**
+     * A destination dataset, with its queue of pages and the thread upserting them.
+     */
+    class Destination implements Callable<UpsertResult>
+    {
+        final Soda2Producer         producer;
+        final String                destId;
+        final MediaType             mediaType;
+        final Writer                output;
+        final BlockingQueue<byte[]> pages = new ArrayBlockingQueue<byte[]>(maxBufferedPages);
+
+        Future<UpsertResult> done;
+
+        Destination(Soda2Producer producer, String destId, MediaType mediaType, Writer output)
+        {
+            this.producer = producer;
+            this.destId = destId;
+            this.mediaType = mediaType;
+            this.output = output;
+        }
+
+        public UpsertResult call() throws Exception
+        {
+            long rowsCreated = 0;
+            long rowsUpdated = 0;
+            while (true) {
+                final byte[] page = pages.take();
+                if (page == END_OF_PAGES) {
+                    return new UpsertResult(rowsCreated, rowsUpdated, 0, null);
+                }
+
+                final UpsertResult result = producer.upsertStream(destId, mediaType, new ByteArrayInputStream(page));
+                rowsCreated += result.getRowsCreated();
+                rowsUpdated += result.getRowsUpdated();
+
+                if (output != null) {
+                    synchronized (output) {
+                        output.write('.');
+                        output.flush();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Queues a page for this destination, waiting while its queue is full.
+         *
+         * @return false if the destination has stopped, and won't take any more pages.
+         */
+        boolean hand(byte[] page) throws InterruptedException
+        {
+            while (!pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                if (done.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies all the pages into each of the destination datasets.
+     *
+     * @param pages the rows of the source dataset
+     * @param producers the producer for each destination
+     * @param destIds the dataset to upsert into for each destination
+     * @param output writer for progress, may be null
+     * @return the result for each destination, in the same order as destIds
+     */
+    public List<UpsertResult> copy(LivePagePrefetcher pages, List<Soda2Producer> producers, List<String> destIds, Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
+        if (output != null) {
+            synchronized (output) {
+                output.write("Copying data live from " + pages.srcId + " to " + StringUtils.join(destIds, ", ") + ".\n");
+                output.flush();
+            }
+        }
+
+        final ExecutorService writers = Executors.newFixedThreadPool(destIds.size());
+        try {
+            final List<Destination> destinations = Lists.newArrayList();
+            for (int i=0; i<destIds.size(); i++) {
+                final Destination destination = new Destination(producers.get(i), destIds.get(i), pages.getMediaType(), output);
+                destination.done = writers.submit(destination);
+                destinations.add(destination);
+            }
+
+            final List<Destination> running = Lists.newArrayList(destinations);
+            byte[] page;
+            while (!running.isEmpty() && (page = pages.take()) != null) {
+                for (Destination destination : Lists.newArrayList(running)) {
+                    if (!destination.hand(page)) {
+                        running.remove(destination);
+                    }
+                }
+            }
+
+            for (Destination destination : running) {
+                destination.hand(END_OF_PAGES);
+            }
+
+            final List<UpsertResult> results = Lists.newArrayList();
+            ExecutionException failure = null;
+            for (Destination destination : destinations) {
+                try {
+                    results.add(destination.done.get());
+                } catch (ExecutionException e) {
+                    if (output != null) {
+                        synchronized (output) {
+                            output.write("\nCopy to " + destination.destId + " failed: " + e.getCause().getMessage() + "\n");
+                            output.flush();
+                        }
+                    }
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+
+            if (failure != null) {
+                rethrow(failure.getCause());
+            }
+            return results;
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private static void rethrow(Throwable cause) throws SodaError, LongRunningQueryException, IOException
+    {
+        if (cause instanceof SodaError) {
+            throw (SodaError) cause;
+        }
+        if (cause instanceof LongRunningQueryException) {
+            throw (LongRunningQueryException) cause;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+}
@@ -0,0 +1,249 @@
+package com.socrata.tools;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.socrata.api.Soda2Consumer;
+import com.socrata.builders.SoqlQueryBuilder;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.soql.OrderByClause;
+import com.socrata.model.soql.SortOrder;
+import com.socrata.tools.utils.SourceQuery;
+import com.socrata.tools.utils.StageTimer;
+import com.sun.jersey.api.client.ClientResponse;
+
+import javax.ws.rs.core.MediaType;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the rows of a live dataset a page at a time on a background thread, so the pages are
+ * already downloaded by the time they are needed.
+ *
+ * Each page is the raw JSON array or CSV returned by the query, ordered by :id, with only the columns
+ * and rows picked by the SourceQuery.  CSV pages each start with their own header row, so every page
+ * can be upserted on its own.  CSV is much smaller than JSON for wide datasets, since JSON repeats
+ * every field name on every row.  Up to maxBufferedPages
+ * pages are held in memory; once that many are waiting, the background thread stops fetching until
+ * one is taken.  This lets a copy start pulling rows down while the destination dataset is still
+ * being created, without buffering the whole dataset.
+ */
+public class LivePagePrefetcher implements Closeable
+{
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final int DEFAULT_MAX_BUFFERED_PAGES = 16;
+
+    static final byte[] END_OF_PAGES = new byte[0];
+
+    final Soda2Consumer             querySource;
+    final String                    srcId;
+    final SourceQuery               sourceQuery;
+    final DatasetExporter.Format    format;
+    final int                       pageSize;
+    final BlockingQueue<byte[]>     pages;
+    final ExecutorService           fetcher = Executors.newSingleThreadExecutor();
+    final AtomicLong                bytesRead = new AtomicLong();
+
+    StageTimer      stageTimer;
+    Future<Void>    fetcherDone;
+    boolean         finished;
+
+    public LivePagePrefetcher(Soda2Consumer querySource, String srcId)
+    {
+        this(querySource, srcId, SourceQuery.ALL);
+    }
+
+    public LivePagePrefetcher(Soda2Consumer querySource, String srcId, SourceQuery sourceQuery)
+    {
+        this(querySource, srcId, sourceQuery, DatasetExporter.Format.JSON);
+    }
+
+    public LivePagePrefetcher(Soda2Consumer querySource, String srcId, SourceQuery sourceQuery, DatasetExporter.Format format)
+    {
+        this(querySource, srcId, sourceQuery, format, DEFAULT_PAGE_SIZE, DEFAULT_MAX_BUFFERED_PAGES);
+    }
+
+    /**
+     * @param querySource consumer for the source domain
+     * @param srcId the dataset to read
+     * @param sourceQuery the columns and rows to read
+     * @param format the format to read the pages in
+     * @param pageSize the number of rows in each page
+     * @param maxBufferedPages the most pages that are fetched but not yet taken
+     */
+    public LivePagePrefetcher(Soda2Consumer querySource, String srcId, SourceQuery sourceQuery, DatasetExporter.Format format, int pageSize, int maxBufferedPages)
+    {
+        this.querySource = querySource;
+        this.srcId = srcId;
+        this.sourceQuery = sourceQuery;
+        this.format = format;
+        this.pageSize = pageSize;
+        this.pages = new ArrayBlockingQueue<byte[]>(maxBufferedPages);
+    }
+
+    /**
+     * Records the time and bytes of each page fetched as the "fetch" stage of a timer.  Must be called
+     * before start.
+     *
+     * @param stageTimer the timer, or null to not record anything
+     */
+    public void setStageTimer(StageTimer stageTimer)
+    {
+        this.stageTimer = stageTimer;
+    }
+
+    /**
+     * Starts fetching pages in the background.
+     *
+     * @return this
+     */
+    public LivePagePrefetcher start()
+    {
+        fetcherDone = fetcher.submit(new Callable<Void>()
+        {
+            public Void call() throws Exception
+            {
+                fetchPages();
+                return null;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Takes the next page, waiting for it to be fetched if needed.
+     *
+     * @return the next page of rows as a JSON array or CSV, or null once every row has been read.
+     */
+    public byte[] take() throws InterruptedException, SodaError, IOException
+    {
+        if (finished) {
+            return null;
+        }
+
+        byte[] page;
+        while ((page = pages.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            if (fetcherDone.isDone()) {
+                //The fetcher may have finished between the poll and the check
+                page = pages.poll();
+                if (page == null) {
+                    waitFor(fetcherDone);
+                    throw new IOException("Stopped reading " + srcId + " before all rows were read.");
+                }
+                break;
+            }
+        }
+
+        if (page == END_OF_PAGES) {
+            finished = true;
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * @return the media type of the pages, for upserting them.
+     */
+    public MediaType getMediaType()
+    {
+        return format.getMediaType();
+    }
+
+    /**
+     * @return the number of bytes downloaded so far.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    public void close()
+    {
+        fetcher.shutdownNow();
+    }
+
+    private void fetchPages() throws Exception
+    {
+        final SoqlQueryBuilder builder = sourceQuery.newBuilder()
+                .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, ":id"))
+                .setLimit(pageSize);
+
+        int offset = 0;
+        while (true) {
+            final long start = System.nanoTime();
+            final ClientResponse response = querySource.query(srcId, format.getMediaType(), builder.setOffset(offset).build());
+            final CountingInputStream is = new CountingInputStream(response.getEntityInputStream());
+            final byte[] page;
+            try {
+                page = ByteStreams.toByteArray(is);
+            } finally {
+                is.close();
+                bytesRead.addAndGet(is.getCount());
+            }
+            if (stageTimer != null) {
+                stageTimer.record("fetch", start, 0, page.length);
+            }
+
+            if (format == DatasetExporter.Format.CSV ? isHeaderOnly(page) : isEmptyArray(page)) {
+                pages.put(END_OF_PAGES);
+                return;
+            }
+
+            pages.put(page);
+            offset += pageSize;
+        }
+    }
+
+    /**
+     * @return true if the JSON is an array with no elements, e.g. "[ ]"
+     */
+    static boolean isEmptyArray(byte[] json)
+    {
+        int i = skipWhitespace(json, 0);
+        if (i >= json.length || json[i] != '[') {
+            return false;
+        }
+        i = skipWhitespace(json, i + 1);
+        return i < json.length && json[i] == ']';
+    }
+
+    /**
+     * @return true if the CSV has nothing after its header row.
+     */
+    static boolean isHeaderOnly(byte[] csv)
+    {
+        int i = 0;
+        while (i < csv.length && csv[i] != '\n') {
+            i++;
+        }
+        return skipWhitespace(csv, i) >= csv.length;
+    }
+
+    private static int skipWhitespace(byte[] json, int i)
+    {
+        while (i < json.length && (json[i] == ' ' || json[i] == '\n' || json[i] == '\r' || json[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void waitFor(Future<Void> fetcherDone) throws SodaError, IOException, InterruptedException
+    {
+        try {
+            fetcherDone.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SodaError) {
+                throw (SodaError) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed reading rows", cause);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.socrata.tools;
+
+import com.google.common.collect.Lists;
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Producer;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.UpsertResult;
+import com.socrata.tools.utils.ByteBufferInputStream;
+import com.socrata.tools.utils.CsvChunker;
+import com.socrata.tools.utils.UpsertResults;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Upserts a large CSV file by splitting it into row aligned chunks and uploading the
+ * chunks concurrently.
+ *
+ * Each chunk is read straight out of a memory mapped region of the file, with the header row
+ * of the file repeated in front of it.  A chunk that fails is retried on its own, so a single failure
+ * doesn't require the whole file to be sent again.
+ *
+ * NOTE: a retried chunk is upserted again.  If the destination dataset does not have a row
+ * identifier, rows that made it in on a failed attempt may be duplicated.
+ */
+public class ParallelFileUploader
+{
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long RETRY_BACKOFF_MS = 2000;
+
+    final Soda2Producer producer;
+    final int           numThreads;
+    final long          chunkSize;
+    final int           maxAttempts;
+
+    public ParallelFileUploader(Soda2Producer producer, int numThreads, long chunkSize)
+    {
+        this(producer, numThreads, chunkSize, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public ParallelFileUploader(Soda2Producer producer, int numThreads, long chunkSize, int maxAttempts)
+    {
+        this.producer = producer;
+        this.numThreads = numThreads;
+        this.chunkSize = chunkSize;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Splits up the CSV file and upserts all the chunks into the dataset.
+     *
+     * @param destId the dataset to upsert into
+     * @param csvFile the (uncompressed) CSV file to upload
+     * @param output writer for progress, may be null
+     * @return the sum of the results from all the chunks
+     */
+    public UpsertResult upload(final String destId, final File csvFile, final Writer output) throws IOException, SodaError, InterruptedException
+    {
+        return upload(destId, csvFile, null, output);
+    }
+
+    /**
+     * Splits a CSV file into chunks of about chunkSize bytes, without uploading anything.  This reads the
+     * whole file, so it can be done ahead of time, e.g. while the destination dataset is being created.
+     *
+     * @param csvFile the (uncompressed) CSV file to split
+     * @param chunkSize the size of each chunk in bytes
+     * @return the chunks of the file, which can be passed to upload
+     */
+    public static CsvChunker split(final File csvFile, final long chunkSize) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(csvFile, "r");
+        try {
+            return CsvChunker.split(file.getChannel(), chunkSize);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Upserts all the chunks of a CSV file into the dataset.
+     *
+     * @param destId the dataset to upsert into
+     * @param csvFile the (uncompressed) CSV file to upload
+     * @param presplit the chunks of csvFile from split, or null to split the file here
+     * @param output writer for progress, may be null
+     * @return the sum of the results from all the chunks
+     */
+    public UpsertResult upload(final String destId, final File csvFile, final CsvChunker presplit, final Writer output) throws IOException, SodaError, InterruptedException
+    {
+        final RandomAccessFile  file = new RandomAccessFile(csvFile, "r");
+        final ExecutorService   executor = Executors.newFixedThreadPool(numThreads);
+
+        try {
+            final FileChannel   channel = file.getChannel();
+            final CsvChunker    chunker = presplit != null ? presplit : CsvChunker.split(channel, chunkSize);
+
+            if (output != null) {
+                synchronized (output) {
+                    output.write("Upserting " + chunker.getChunks().size() + " chunks using " + numThreads + " threads\n");
+                    output.flush();
+                }
+            }
+
+            final List<Future<UpsertResult>> futures = Lists.newArrayList();
+            for (final CsvChunker.Chunk chunk : chunker.getChunks()) {
+                final MappedByteBuffer buffer = chunk.map(channel);
+                futures.add(executor.submit(new Callable<UpsertResult>()
+                {
+                    public UpsertResult call() throws Exception
+                    {
+                        final UpsertResult result = uploadChunk(destId, chunker.getHeader(), buffer);
+                        if (output != null) {
+                            synchronized (output) {
+                                output.write('.');
+                                output.flush();
+                            }
+                        }
+                        return result;
+                    }
+                }));
+            }
+
+            final List<UpsertResult> results = Lists.newArrayList();
+            for (Future<UpsertResult> future : futures) {
+                results.add(getResult(future));
+            }
+            return UpsertResults.combine(results);
+
+        } finally {
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+
+    /**
+     * Upserts a single chunk, retrying it up to maxAttempts times.
+     */
+    UpsertResult uploadChunk(String destId, byte[] header, MappedByteBuffer chunk) throws SodaError, InterruptedException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final InputStream is = new SequenceInputStream(new ByteArrayInputStream(header), new ByteBufferInputStream(chunk));
+                return producer.upsertStream(destId, HttpLowLevel.CSV_TYPE, is);
+            } catch (SodaError e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                //Jersey surfaces connection level failures as runtime exceptions
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+            }
+            Thread.sleep(RETRY_BACKOFF_MS * attempt);
+        }
+    }
+
+    private static UpsertResult getResult(Future<UpsertResult> future) throws SodaError, InterruptedException, IOException
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SodaError) {
+                throw (SodaError) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
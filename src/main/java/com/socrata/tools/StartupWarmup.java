@@ -0,0 +1,63 @@
+package com.socrata.tools;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Producer;
+import com.socrata.api.SodaImporter;
+import com.socrata.builders.SoqlQueryBuilder;
+import com.socrata.model.soql.OrderByClause;
+import com.socrata.model.soql.SoqlQuery;
+import com.socrata.model.soql.SortOrder;
+import com.socrata.tools.model.ImportConfiguration;
+import com.socrata.tools.utils.ConfigurationLoader;
+import com.socrata.tools.utils.SodaClients;
+import org.apache.commons.cli.PosixParser;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Goes through the start up path of the command line tools, without talking to any server or database.
+ *
+ * This is run by the slim build profile with -XX:ArchiveClassesAtExit, so every class the tools load
+ * on start up (commons-cli, Jackson, the Jersey client and its providers, the soda-api classes) ends up
+ * in the class data sharing archive.  Starting a tool with -XX:SharedArchiveFile pointing at that
+ * archive then skips loading and verifying those classes from the jar.
+ *
+ * It can also be run by hand to see how long start up takes, with and without the archive.
+ */
+public class StartupWarmup
+{
+    static final String SAMPLE_CONFIG = "{" +
+            "\"jdbcConnectionInfo\" : {\"driverClass\" : \"org.postgresql.Driver\", \"connectionString\" : \"jdbc:postgresql://localhost/db\", \"userName\" : \"user\", \"password\" : \"password\"}," +
+            "\"socrataConnectionInfo\" : {\"url\" : \"https://localhost\", \"user\" : \"user\", \"password\" : \"password\", \"token\" : \"token\", \"gzipRequests\" : true, \"gzipResponses\" : true}," +
+            "\"datasetsToImport\" : {\"sample\" : {\"description\" : \"sample\", \"importQuery\" : \"select 1\", \"schedule\" : \"@daily\"}}" +
+            "}";
+
+    public static void main(String[] args) throws Exception
+    {
+        final long start = System.currentTimeMillis();
+
+        new PosixParser().parse(CopyDataset.OPTIONS, new String[] {"-c", "connection.json", "-p", "abcd-1234"}, false);
+
+        final ImportConfiguration importConfiguration = ConfigurationLoader.OBJECT_MAPPER.readValue(SAMPLE_CONFIG, ImportConfiguration.class);
+
+        //Creating the client is what makes Jersey load and instantiate all its registered providers
+        final HttpLowLevel httpLowLevel = SodaClients.newHttpLowLevel(importConfiguration.getSocrataConnectionInfo());
+        new Soda2Producer(httpLowLevel);
+        new SodaImporter(httpLowLevel);
+
+        new SoqlQueryBuilder(SoqlQuery.SELECT_ALL)
+                .addOrderByPhrase(new OrderByClause(SortOrder.Ascending, ":id"))
+                .setLimit(1000)
+                .setOffset(0)
+                .build();
+
+        final CSVWriter csvWriter = new CSVWriter(new StringWriter());
+        csvWriter.writeNext(new String[] {"a", "b"});
+        csvWriter.close();
+
+        final long end = System.currentTimeMillis();
+        System.out.println("Warmed up in " + (end - start) + "ms, " + (end - ManagementFactory.getRuntimeMXBean().getStartTime()) + "ms since the JVM started.");
+    }
+}
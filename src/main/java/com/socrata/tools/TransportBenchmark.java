@@ -0,0 +1,138 @@
+package com.socrata.tools;
+
+import com.socrata.api.Soda2Consumer;
+import com.socrata.exceptions.LongRunningQueryException;
+import com.socrata.exceptions.SodaError;
+import com.socrata.tools.model.SocrataConnectionInfo;
+import com.socrata.tools.utils.CliUtils;
+import com.socrata.tools.utils.ConfigurationLoader;
+import com.socrata.tools.utils.SodaClients;
+import com.socrata.tools.utils.SodaQueries;
+import com.socrata.tools.utils.SourceQuery;
+import org.apache.commons.cli.*;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Reads live datasets in each of the transport formats CopyDataset supports, and reports the bytes
+ * downloaded and the rows per second for each, so -T can be picked based on real numbers.
+ *
+ * Only the source side is read; nothing is upserted.  The pages upserted by a live copy are the pages
+ * read here, so the bytes sent to the destination are the same as the bytes reported.
+ */
+public class TransportBenchmark
+{
+    public static final Option SOURCE_DOMAIN   = OptionBuilder.withArgName("srcDomain")
+                                            .hasArg()
+                                            .withDescription("The domain to read from.  Defaults to the url in the connection config.")
+                                            .create("s");
+
+    public static final Option CONFIG_FILE   = OptionBuilder.withArgName("connectionConfig")
+                                            .hasArg()
+                                            .withDescription("Connection configuration file.  Defaults to ~/.socrata/connection.json.")
+                                            .create("c");
+
+    public static final Option PAGE_SIZE   = OptionBuilder.withArgName("pageSize")
+                                            .hasArg()
+                                            .withDescription("The number of rows in each page.  Defaults to " + LivePagePrefetcher.DEFAULT_PAGE_SIZE + ".")
+                                            .create("n");
+
+    public static final Option USAGE_OPTIONS   = OptionBuilder.withArgName("?")
+                                            .withDescription("Shows usage.")
+                                            .create("?");
+
+    public static final Options OPTIONS = new Options();
+
+    static {
+        OPTIONS.addOption(SOURCE_DOMAIN);
+        OPTIONS.addOption(CONFIG_FILE);
+        OPTIONS.addOption(PAGE_SIZE);
+        OPTIONS.addOption(CopyDataset.SELECT_COLUMNS);
+        OPTIONS.addOption(CopyDataset.WHERE_CLAUSE);
+        OPTIONS.addOption(USAGE_OPTIONS);
+    }
+
+    final Soda2Consumer querySource;
+    final SourceQuery   sourceQuery;
+    final int           pageSize;
+
+    public TransportBenchmark(Soda2Consumer querySource, SourceQuery sourceQuery, int pageSize)
+    {
+        this.querySource = querySource;
+        this.sourceQuery = sourceQuery;
+        this.pageSize = pageSize;
+    }
+
+    public static void main(String[] args)
+    {
+        try {
+            final CommandLine cmd = new PosixParser().parse(OPTIONS, args, false);
+            if (cmd.hasOption("?") || cmd.getArgs().length == 0) {
+                new HelpFormatter().printHelp("transportbenchmark [options] datasetId...", OPTIONS);
+                System.exit(1);
+            }
+
+            final String configFile = cmd.getOptionValue("c", CliUtils.defaultConfigFile().getCanonicalPath());
+            final SocrataConnectionInfo connectionInfo = ConfigurationLoader.loadSocrataConnectionConfig(new File(configFile));
+            CliUtils.validateConfiguration(connectionInfo);
+
+            final String srcDomain = cmd.getOptionValue("s", connectionInfo.getUrl());
+            if (StringUtils.isEmpty(srcDomain)) {
+                throw new IllegalArgumentException("No source domain specified.  Either use the -s option or add a url to the connection config.");
+            }
+
+            final Soda2Consumer querySource = SodaClients.newConsumer(srcDomain, connectionInfo);
+            final SourceQuery sourceQuery = SourceQuery.parse(cmd.getOptionValue("S"), cmd.getOptionValue("W"));
+            final int pageSize = Integer.parseInt(cmd.getOptionValue("n", Integer.toString(LivePagePrefetcher.DEFAULT_PAGE_SIZE)));
+
+            final TransportBenchmark benchmark = new TransportBenchmark(querySource, sourceQuery, pageSize);
+            final Writer output = new OutputStreamWriter(System.out);
+            for (String datasetId : cmd.getArgs()) {
+                benchmark.run(datasetId, output);
+            }
+        } catch (ParseException e) {
+            System.err.println("Parsing failed.  Reason: " + e.getMessage());
+            new HelpFormatter().printHelp("transportbenchmark [options] datasetId...", OPTIONS);
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Failure running benchmark: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads a dataset once in each format, writing a line of results for each.
+     */
+    public void run(String datasetId, Writer output) throws SodaError, InterruptedException, LongRunningQueryException, IOException
+    {
+        final long rowCount = SodaQueries.countRows(querySource, datasetId, sourceQuery);
+        for (DatasetExporter.Format format : DatasetExporter.Format.values()) {
+            final LivePagePrefetcher pages = new LivePagePrefetcher(querySource, datasetId, sourceQuery, format, pageSize, LivePagePrefetcher.DEFAULT_MAX_BUFFERED_PAGES);
+            try {
+                final long start = System.currentTimeMillis();
+                pages.start();
+                while (pages.take() != null) {
+                    //Only the bytes and the time matter here
+                }
+                final long time = Math.max(1, System.currentTimeMillis() - start);
+
+                output.write("{datasetId:" + datasetId +
+                                     ", format:" + format.name().toLowerCase() +
+                                     ", rows:" + rowCount +
+                                     ", bytes:" + pages.getBytesRead() +
+                                     ", bytesPerRow:" + (rowCount == 0 ? 0 : pages.getBytesRead() / rowCount) +
+                                     ", time:" + time +
+                                     ", rowsPerSec:" + (rowCount * 1000 / time) +
+                                     ", bytesPerSec:" + (pages.getBytesRead() * 1000 / time) + "}\n");
+                output.flush();
+            } finally {
+                pages.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.socrata.tools.importer;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.util.concurrent.Futures;
+import com.socrata.tools.utils.BoundedInterner;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.*;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
+
+/**
+ * Writes the rows of a ResultSet out as CSV, spreading the formatting work across several threads.
+ *
+ * The work is split into three stages:
+ * <ul>
+ *     <li>The calling thread owns the ResultSet.  It only calls next() and copies the raw values
+ *     of each column into a RowBatch of batchSize rows.</li>
+ *     <li>A pool of encoder threads turns each batch into CSV, encoded as UTF-8 bytes.</li>
+ *     <li>A writer thread takes the encoded batches in the order they were read, and writes them out.</li>
+ * </ul>
+ *
+ * Only maxBatchesInFlight batches can be between the fetch and write stages at once, so a slow
+ * output pushes back on the fetch rather than buffering the whole result set.
+ *
+ * Values are formatted the same way CSVWriter.writeAll(ResultSet) formats them, so the output
+ * matches the single threaded path.  The one exception is floating point columns, which are
+ * written with Double.toString.
+ */
+public class CsvExportPipeline
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final byte[]  END_OF_ROWS = new byte[0];
+
+    static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("dd-MMM-yyyy");
+        }
+    };
+
+    static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss");
+        }
+    };
+
+    final int encoderThreads;
+    final int batchSize;
+    final int maxBatchesInFlight;
+
+    public CsvExportPipeline(int encoderThreads)
+    {
+        this(encoderThreads, DEFAULT_BATCH_SIZE, encoderThreads * 4);
+    }
+
+    /**
+     * @param encoderThreads the number of threads formatting rows as CSV
+     * @param batchSize the number of rows handed to an encoder at once
+     * @param maxBatchesInFlight the most batches that can be fetched but not yet written
+     */
+    public CsvExportPipeline(int encoderThreads, int batchSize, int maxBatchesInFlight)
+    {
+        this.encoderThreads = encoderThreads;
+        this.batchSize = batchSize;
+        this.maxBatchesInFlight = maxBatchesInFlight;
+    }
+
+    /**
+     * Writes all the remaining rows of a result set (but no header) as CSV.
+     *
+     * @param resultSet the result set to write out
+     * @param os the stream to write the CSV to
+     * @return the number of rows written
+     */
+    public long write(final ResultSet resultSet, final OutputStream os) throws SQLException, IOException, InterruptedException
+    {
+        //  Batches are recycled once they've been encoded, so only a fixed number of them are ever allocated.
+        //  They're all filled on this thread, so they can share one set of interners.
+        final BlockingQueue<RowBatch>           freeBatches = new ArrayBlockingQueue<RowBatch>(encoderThreads + 2);
+        final BoundedInterner[]                 interners = RowBatch.textInterners(resultSet.getMetaData());
+        for (int i=0; i<encoderThreads + 2; i++) {
+            freeBatches.add(new RowBatch(resultSet.getMetaData(), batchSize, interners));
+        }
+
+        final ExecutorService                   encoders = Executors.newFixedThreadPool(encoderThreads);
+        final ExecutorService                   writer = Executors.newSingleThreadExecutor();
+        final BlockingQueue<Future<byte[]>>     encodedBatches = new ArrayBlockingQueue<Future<byte[]>>(maxBatchesInFlight);
+
+        try {
+            final Future<Void> writerDone = writer.submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    while (true) {
+                        final byte[] batch = encodedBatches.take().get();
+                        if (batch == END_OF_ROWS) {
+                            return null;
+                        }
+                        os.write(batch);
+                    }
+                }
+            });
+
+            long rows = 0;
+            RowBatch batch = freeBatches.take();
+            while (resultSet.next()) {
+                rows++;
+                if (batch.add(resultSet)) {
+                    hand(encodedBatches, encoders.submit(encode(batch, freeBatches)), writerDone);
+                    batch = freeBatches.take();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                hand(encodedBatches, encoders.submit(encode(batch, freeBatches)), writerDone);
+            }
+            hand(encodedBatches, Futures.immediateFuture(END_OF_ROWS), writerDone);
+
+            waitFor(writerDone);
+            return rows;
+        } finally {
+            encoders.shutdownNow();
+            writer.shutdownNow();
+        }
+    }
+
+    /**
+     * Puts an encoded batch on the queue for the writer, giving up if the writer has died.
+     */
+    private void hand(BlockingQueue<Future<byte[]>> encodedBatches, Future<byte[]> batch, Future<Void> writerDone) throws IOException, InterruptedException
+    {
+        while (!encodedBatches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (writerDone.isDone()) {
+                waitFor(writerDone);
+                throw new IOException("CSV writer stopped before all rows were written.");
+            }
+        }
+    }
+
+    private static void waitFor(Future<Void> writerDone) throws IOException, InterruptedException
+    {
+        try {
+            writerDone.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ExecutionException) {
+                throw new IOException("Failed encoding rows as CSV", cause.getCause());
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed writing rows as CSV", cause);
+        }
+    }
+
+    /**
+     * Creates the task that turns a batch of rows into CSV bytes.  The batch is cleared and returned
+     * to the free list once it's been encoded.
+     */
+    static Callable<byte[]> encode(final RowBatch batch, final BlockingQueue<RowBatch> freeBatches)
+    {
+        return new Callable<byte[]>()
+        {
+            public byte[] call() throws IOException
+            {
+                try {
+                    final ByteArrayOutputStream baos = new ByteArrayOutputStream(batch.size() * 128);
+                    final CSVWriter csvWriter = new CSVWriter(new OutputStreamWriter(baos, UTF_8));
+                    final String[] cells = new String[batch.getColumnCount()];
+                    for (int row=0; row<batch.size(); row++) {
+                        for (int i=0; i<cells.length; i++) {
+                            cells[i] = format(batch, row, i);
+                        }
+                        csvWriter.writeNext(cells);
+                    }
+                    csvWriter.close();
+                    return baos.toByteArray();
+                } finally {
+                    batch.clear();
+                    freeBatches.add(batch);
+                }
+            }
+        };
+    }
+
+    /**
+     * Formats a single value, the same way CSVWriter does for the matching SQL type.
+     */
+    static String format(RowBatch batch, int row, int column)
+    {
+        if (batch.isNull(row, column)) {
+            return "";
+        }
+
+        switch (batch.getKind(column)) {
+            case LONG:
+                return Long.toString(batch.getLong(row, column));
+            case DOUBLE:
+                return batch.getDoubleString(row, column);
+            case BOOLEAN:
+                return Boolean.toString(batch.getBoolean(row, column));
+            case DATE:
+                return DATE_FORMAT.get().format(new java.util.Date(batch.getLong(row, column)));
+            case TIMESTAMP:
+                return TIMESTAMP_FORMAT.get().format(new java.util.Date(batch.getLong(row, column)));
+            case BINARY:
+                return "";
+            default:
+                return batch.getString(row, column);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.socrata.tools.importer;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import com.socrata.tools.model.DerivedOutputConfiguration;
+import com.socrata.utils.ColumnUtil;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Writes the rows of a shared query that belong to one derived output into its own CSV file.
+ *
+ * The query's rows are read once into RowBatches, and each batch is handed to the writer of every
+ * output.  A writer keeps the rows matching its filter, and writes only its columns, formatted the same
+ * way CsvExportPipeline formats them.
+ */
+class DerivedOutputWriter implements Closeable
+{
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final String                        name;
+    final DerivedOutputConfiguration    config;
+    final int[]                         columns;
+    final String[]                      headers;
+    final RowPredicate                  predicate;
+    final File                          file;
+    final CSVWriter                     csvWriter;
+    final String[]                      cells;
+
+    long rowCount;
+
+    /**
+     * @param name the name of the output, used as the name of the dataset it creates
+     * @param config the output's columns, filter and destination
+     * @param metaData the metadata of the shared query
+     * @param kinds how each column of the query is stored in a RowBatch
+     */
+    DerivedOutputWriter(String name, DerivedOutputConfiguration config, ResultSetMetaData metaData, RowBatch.Kind[] kinds) throws SQLException, IOException
+    {
+        final int numColumns = metaData.getColumnCount();
+        final String[] columnNames = new String[numColumns];
+        final String[] fieldNames = new String[numColumns];
+        for (int i=1; i<=numColumns; i++) {
+            columnNames[i-1] = metaData.getColumnName(i);
+            fieldNames[i-1] = ColumnUtil.getQueryName(columnNames[i-1]);
+        }
+
+        this.name = name;
+        this.config = config;
+        this.predicate = RowPredicate.parse(config.getFilter(), columnNames, fieldNames, kinds);
+
+        if (config.getColumns() == null) {
+            this.columns = new int[numColumns];
+            for (int i=0; i<numColumns; i++) {
+                columns[i] = i;
+            }
+        } else {
+            this.columns = new int[config.getColumns().size()];
+            for (int i=0; i<columns.length; i++) {
+                columns[i] = findColumn(config.getColumns().get(i), columnNames, fieldNames);
+            }
+        }
+
+        this.headers = new String[columns.length];
+        for (int i=0; i<columns.length; i++) {
+            headers[i] = fieldNames[columns[i]];
+        }
+
+        this.cells = new String[columns.length];
+        this.file = File.createTempFile("SocrataImport", ".csv");
+        this.csvWriter = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8), JdbcImporter.COPY_BUFFER_SIZE));
+        this.csvWriter.writeNext(headers);
+    }
+
+    /**
+     * Writes out the rows of a batch that match this output's filter.
+     */
+    void write(RowBatch batch)
+    {
+        for (int row=0; row<batch.size(); row++) {
+            if (!predicate.matches(batch, row)) {
+                continue;
+            }
+
+            for (int i=0; i<columns.length; i++) {
+                cells[i] = CsvExportPipeline.format(batch, row, columns[i]);
+            }
+            csvWriter.writeNext(cells);
+            rowCount++;
+        }
+    }
+
+    /**
+     * @return the 1-based indexes of this output's columns in the shared query.
+     */
+    int[] getQueryColumns()
+    {
+        final int[] queryColumns = new int[columns.length];
+        for (int i=0; i<columns.length; i++) {
+            queryColumns[i] = columns[i] + 1;
+        }
+        return queryColumns;
+    }
+
+    public void close() throws IOException
+    {
+        csvWriter.close();
+    }
+
+    private int findColumn(String name, String[] columnNames, String[] fieldNames)
+    {
+        for (int i=0; i<columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(name) || fieldNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Output " + this.name + " includes " + name + ", which isn't a column of the query.");
+    }
+}
@@ -0,0 +1,61 @@
+package com.socrata.tools.importer;
+
+import com.google.common.util.concurrent.Futures;
+import com.socrata.tools.utils.DiscardingProducer;
+import com.socrata.tools.utils.StageTimer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes the place of a DocumentUploader in dry runs.  Each binary value is read to the end and thrown
+ * away, with its bytes recorded as the "sink" stage of a StageTimer, and the row gets a made up handle
+ * shaped like the one a real upload returns.  Nothing is sent to the domain.
+ */
+public class DiscardingDocumentSink implements RowBatch.BinarySink
+{
+    final StageTimer    stageTimer;
+    final AtomicLong    documentCount = new AtomicLong();
+
+    public DiscardingDocumentSink(StageTimer stageTimer)
+    {
+        this.stageTimer = stageTimer;
+    }
+
+    /**
+     * Reads a value to the end.
+     *
+     * @param bytes the value
+     * @return a handle with a made up file_id
+     */
+    public Future<?> accept(InputStream bytes) throws IOException
+    {
+        final long   start = System.nanoTime();
+        final byte[] buffer = new byte[JdbcImporter.COPY_BUFFER_SIZE];
+
+        long length = 0;
+        int  read;
+        while ((read = bytes.read(buffer)) != -1) {
+            length += read;
+        }
+        stageTimer.record(DiscardingProducer.SINK_STAGE, start, 0, length);
+
+        final String filename = "document-" + documentCount.incrementAndGet();
+        final Map<String, Object> handle = new LinkedHashMap<String, Object>();
+        handle.put("file_id", "dry-run-" + filename);
+        handle.put("filename", filename);
+        return Futures.immediateFuture(handle);
+    }
+
+    /**
+     * @return the number of documents thrown away so far
+     */
+    public long getDocumentCount()
+    {
+        return documentCount.get();
+    }
+}
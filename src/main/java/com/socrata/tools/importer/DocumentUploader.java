@@ -0,0 +1,169 @@
+package com.socrata.tools.importer;
+
+import com.google.common.io.ByteStreams;
+import com.socrata.api.HttpLowLevel;
+import com.socrata.tools.model.SocrataConnectionInfo;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.multipart.FormDataMultiPart;
+import com.sun.jersey.multipart.file.FileDataBodyPart;
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.ws.rs.core.MediaType;
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads the values of binary columns as documents, so they can be put into a dataset's document
+ * columns without ever holding a whole value in memory.
+ *
+ * Each value is streamed from the database into a temp file, and the temp file is uploaded to the
+ * dataset's file endpoint in the background.  At most twice as many values as there are upload threads
+ * are spooled or in flight at a time; reading the next one waits for an upload to finish.  The handle
+ * of an uploaded document is a map of its file_id and filename, which is what a document column takes.
+ */
+public class DocumentUploader implements RowBatch.BinarySink, Closeable
+{
+    public static final int DEFAULT_THREADS = 4;
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    final HttpLowLevel      httpLowLevel;
+    final String            url;
+    final String            token;
+    final ExecutorService   uploaders;
+    final Semaphore         inFlight;
+    final AtomicLong        documentCount = new AtomicLong();
+    final AtomicLong        bytesUploaded = new AtomicLong();
+
+    /**
+     * @param httpLowLevel the connection to the domain
+     * @param connectionInfo the domain's url and app token
+     * @param datasetId the dataset the documents are for
+     * @param threads the number of documents uploaded at the same time
+     */
+    public DocumentUploader(HttpLowLevel httpLowLevel, SocrataConnectionInfo connectionInfo, String datasetId, int threads)
+    {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of upload threads must be at least 1.");
+        }
+
+        this.httpLowLevel = httpLowLevel;
+        this.url = StringUtils.removeEnd(connectionInfo.getUrl(), "/") + "/api/views/" + datasetId + "/files.txt";
+        this.token = connectionInfo.getToken();
+        this.uploaders = Executors.newFixedThreadPool(threads);
+        this.inFlight = new Semaphore(threads * 2);
+    }
+
+    /**
+     * Spools a value to a temp file, and starts uploading it once an upload thread is free.
+     *
+     * @param bytes the value
+     * @return the handle of the uploaded document
+     */
+    public Future<?> accept(InputStream bytes) throws IOException
+    {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to upload a document");
+        }
+
+        final File  file;
+        final long  length;
+        try {
+            file = File.createTempFile("SocrataDocument", ".bin");
+            file.deleteOnExit();
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file), JdbcImporter.COPY_BUFFER_SIZE);
+            try {
+                length = ByteStreams.copy(bytes, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            inFlight.release();
+            throw e;
+        }
+
+        final String filename = "document-" + documentCount.incrementAndGet();
+        return uploaders.submit(new Callable<Map<String, Object>>()
+        {
+            public Map<String, Object> call() throws IOException
+            {
+                try {
+                    final Map<String, Object> handle = upload(file, filename);
+                    bytesUploaded.addAndGet(length);
+                    return handle;
+                } finally {
+                    file.delete();
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of documents uploaded so far
+     */
+    public long getDocumentCount()
+    {
+        return documentCount.get();
+    }
+
+    /**
+     * @return the number of bytes uploaded so far
+     */
+    public long getBytesUploaded()
+    {
+        return bytesUploaded.get();
+    }
+
+    /**
+     * Stops the upload threads.  Any handles still needed should have been waited on first.
+     */
+    public void close()
+    {
+        uploaders.shutdownNow();
+    }
+
+    private Map<String, Object> upload(File file, String filename) throws IOException
+    {
+        final FormDataMultiPart form = new FormDataMultiPart();
+        form.bodyPart(new FileDataBodyPart("file", file, MediaType.APPLICATION_OCTET_STREAM_TYPE));
+
+        final ClientResponse response = httpLowLevel.getClient()
+                .resource(url)
+                .queryParam("filename", filename)
+                .type(MediaType.MULTIPART_FORM_DATA_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .header("X-App-Token", token)
+                .post(ClientResponse.class, form);
+        try {
+            if (response.getStatus() >= 300) {
+                throw new IOException("Uploading " + filename + " failed with status " + response.getStatus() + ": " + response.getEntity(String.class));
+            }
+
+            final JsonNode body = OBJECT_MAPPER.readTree(response.getEntityInputStream());
+            final JsonNode fileId = body.get("file");
+            if (fileId == null) {
+                throw new IOException("Uploading " + filename + " didn't return a file id: " + body);
+            }
+
+            final Map<String, Object> handle = new LinkedHashMap<String, Object>();
+            handle.put("file_id", fileId.asText());
+            handle.put("filename", filename);
+            return handle;
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.socrata.tools.importer;
+
+import com.google.common.collect.Lists;
+import com.socrata.tools.model.DataImportConfiguration;
+import com.socrata.tools.model.DerivedOutputConfiguration;
+import com.socrata.tools.model.ImportConfiguration;
+import com.socrata.tools.utils.ConfigurationLoader;
+import com.socrata.tools.utils.CronSchedule;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the imports in a configuration file over and over, on the schedule given for each one.
+ *
+ * Each entry in datasetsToImport that has a "schedule" (a cron expression, see CronSchedule) is run
+ * every time its schedule comes up.  Entries without a schedule are ignored.  A scheduled entry has to
+ * update existing datasets: it needs a "datasetId", and so does each of its outputs, or every run would
+ * create another new dataset.  Entries that don't are reported and skipped.  Since this stays running,
+ * the JDBC connection, the Socrata clients and the JIT compiled code are all reused from one run to
+ * the next, rather than paying for a new JVM every time.
+ *
+ * The configuration file is watched, and when it changes it is loaded again and all the imports are
+ * rescheduled.  If the new file can't be loaded, the old configuration keeps running.
+ *
+ * Imports run one at a time, on a single thread, since the JdbcImporter isn't thread safe.  An import
+ * that is due while another is running starts once the first one finishes.
+ */
+public class ImportDaemon implements Closeable
+{
+    final File                      configFile;
+    final ScheduledExecutorService  scheduler = Executors.newSingleThreadScheduledExecutor();
+    final List<ScheduledFuture<?>>  scheduled = Lists.newArrayList();
+
+    //Only touched from the scheduler thread
+    ImportConfiguration importConfiguration;
+    JdbcImporter        jdbcImporter;
+
+    /**
+     * Runs the daemon from the commandline.  This takes a single argument, which is the configuration
+     * file to run from, and only returns if it's interrupted.
+     *
+     * @param arg list of arguments
+     */
+    public static void main(String arg[]) throws IOException, InterruptedException
+    {
+        File    configFile = JdbcImporter.DEFAULT_CONFIG;
+        if (arg.length > 0) {
+            configFile = new File(arg[0]);
+        }
+
+        final ImportDaemon importDaemon = new ImportDaemon(configFile);
+        try {
+            importDaemon.start();
+            importDaemon.watchConfig();
+        } finally {
+            importDaemon.close();
+        }
+    }
+
+    public ImportDaemon(File configFile) throws IOException
+    {
+        this.configFile = configFile.getCanonicalFile();
+    }
+
+    /**
+     * Loads the configuration and schedules all of its imports.
+     */
+    public void start()
+    {
+        scheduler.execute(new Runnable()
+        {
+            public void run()
+            {
+                reload();
+            }
+        });
+    }
+
+    /**
+     * Watches the configuration file, reloading it whenever it changes.  This blocks until the thread
+     * is interrupted.
+     */
+    public void watchConfig() throws IOException, InterruptedException
+    {
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        try {
+            final Path directory = configFile.getParentFile().toPath();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            while (true) {
+                final WatchKey key = watchService.take();
+                boolean configChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path && ((Path) event.context()).getFileName().toString().equals(configFile.getName())) {
+                        configChanged = true;
+                    }
+                }
+
+                if (configChanged) {
+                    start();
+                }
+
+                if (!key.reset()) {
+                    throw new IOException("Can no longer watch " + directory + " for changes.");
+                }
+            }
+        } finally {
+            watchService.close();
+        }
+    }
+
+    public void close()
+    {
+        scheduler.shutdownNow();
+        if (jdbcImporter != null) {
+            jdbcImporter.resetConnection();
+        }
+    }
+
+    /**
+     * Loads the configuration again if it has changed, and reschedules all the imports.
+     */
+    void reload()
+    {
+        if (importConfiguration != null && !ConfigurationLoader.isModified(configFile, ImportConfiguration.class)) {
+            return;
+        }
+
+        final ImportConfiguration newConfiguration;
+        try {
+            newConfiguration = ConfigurationLoader.loadConfig(configFile);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unable to load " + configFile + ", keeping the current configuration: " + e.getMessage());
+            return;
+        }
+
+        for (ScheduledFuture<?> future : scheduled) {
+            future.cancel(false);
+        }
+        scheduled.clear();
+
+        if (jdbcImporter != null) {
+            jdbcImporter.resetConnection();
+        }
+        importConfiguration = newConfiguration;
+        jdbcImporter = new JdbcImporter(newConfiguration.getSocrataConnectionInfo(), newConfiguration.getJdbcConnectionInfo());
+        jdbcImporter.setExportThreads(newConfiguration.getExportThreads());
+        jdbcImporter.setDocumentThreads(newConfiguration.getDocumentThreads());
+
+        System.out.println("Loaded " + configFile);
+        for (Map.Entry<String, DataImportConfiguration> entry : newConfiguration.getDatasetsToImport().entrySet()) {
+            final String schedule = entry.getValue().getSchedule();
+            if (schedule == null) {
+                System.out.println("  " + entry.getKey() + " has no schedule, skipping it.");
+                continue;
+            }
+
+            final String createsDataset = findNewDataset(entry.getKey(), entry.getValue());
+            if (createsDataset != null) {
+                System.err.println("  " + entry.getKey() + " can't be scheduled: " + createsDataset + " has no datasetId, so every run would create a new dataset.");
+                continue;
+            }
+
+            try {
+                scheduleNext(entry.getKey(), entry.getValue(), CronSchedule.parse(schedule));
+            } catch (RuntimeException e) {
+                System.err.println("  " + entry.getKey() + " can't be scheduled: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds the part of an import that would create a new dataset each time it runs.
+     *
+     * @return a description of the entry or output without a datasetId, or null if everything it
+     * loads goes into an existing dataset.
+     */
+    static String findNewDataset(String name, DataImportConfiguration dataImportConfiguration)
+    {
+        if (dataImportConfiguration.getOutputs().isEmpty()) {
+            return dataImportConfiguration.getDatasetId() == null ? name : null;
+        }
+
+        for (Map.Entry<String, DerivedOutputConfiguration> output : dataImportConfiguration.getOutputs().entrySet()) {
+            if (output.getValue().getDatasetId() == null) {
+                return "Its output " + output.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Schedules the next run of an import.  Each run schedules the one after it.
+     */
+    void scheduleNext(final String name, final DataImportConfiguration dataImportConfiguration, final CronSchedule schedule)
+    {
+        final long now = System.currentTimeMillis();
+        final long next = schedule.nextAfter(now);
+        System.out.println("  " + name + " will run next at " + new java.util.Date(next));
+
+        final Iterator<ScheduledFuture<?>> finished = scheduled.iterator();
+        while (finished.hasNext()) {
+            if (finished.next().isDone()) {
+                finished.remove();
+            }
+        }
+
+        final ImportConfiguration scheduledConfiguration = importConfiguration;
+        scheduled.add(scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                //The configuration was reloaded after this was scheduled
+                if (scheduledConfiguration != importConfiguration) {
+                    return;
+                }
+
+                runImport(name, dataImportConfiguration);
+                scheduleNext(name, dataImportConfiguration, schedule);
+            }
+        }, next - now, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Runs a single import.  A failure is reported and the import runs again on its next scheduled time.
+     */
+    void runImport(final String name, final DataImportConfiguration dataImportConfiguration)
+    {
+        final long start = System.currentTimeMillis();
+        try {
+            jdbcImporter.runImport(name, dataImportConfiguration);
+            System.out.println("  " + name + " finished in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Failure importing " + name + ": " + e.getMessage());
+            e.printStackTrace();
+
+            //The connection may be what failed, so start the next run with a fresh one
+            jdbcImporter.resetConnection();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.socrata.tools.importer;
 
+import com.socrata.exceptions.LongRunningQueryException;
 import com.socrata.exceptions.SodaError;
 import com.socrata.tools.model.JdbcConnectionInfo;
 import com.socrata.tools.model.SocrataConnectionInfo;
@@ -37,7 +38,7 @@ public class InsecureJdbcImport extends JdbcImporter
         }
     }
 
-    public static void main(String arg[]) throws ClassNotFoundException, SQLException, InterruptedException, SodaError, IOException
+    public static void main(String arg[]) throws ClassNotFoundException, SQLException, InterruptedException, SodaError, IOException, LongRunningQueryException
     {
         JdbcImporter.main(arg);
     }
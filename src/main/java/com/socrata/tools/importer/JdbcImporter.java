@@ -1,28 +1,48 @@
 package com.socrata.tools.importer;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.collect.AbstractIterator;
 import com.socrata.api.HttpLowLevel;
 import com.socrata.api.Soda2Producer;
 import com.socrata.api.SodaImporter;
 import com.socrata.builders.DatasetBuilder;
+import com.socrata.exceptions.LongRunningQueryException;
 import com.socrata.exceptions.SodaError;
+import com.socrata.tools.DeleteSynchronizer;
 import com.socrata.tools.model.DataImportConfiguration;
+import com.socrata.tools.model.DerivedOutputConfiguration;
 import com.socrata.tools.model.ImportConfiguration;
+import com.socrata.tools.model.ImportStrategy;
 import com.socrata.tools.model.JdbcConnectionInfo;
 import com.socrata.tools.model.SocrataConnectionInfo;
 import com.socrata.model.UpsertResult;
 import com.socrata.model.importer.Column;
 import com.socrata.model.importer.Dataset;
 import com.socrata.model.importer.DatasetInfo;
+import com.socrata.tools.utils.CliUtils;
 import com.socrata.tools.utils.ConfigurationLoader;
+import com.socrata.tools.utils.DiscardingImporter;
+import com.socrata.tools.utils.DiscardingProducer;
+import com.socrata.tools.utils.MappedFileInputStream;
+import com.socrata.tools.utils.SodaClients;
+import com.socrata.tools.utils.SodaQueries;
+import com.socrata.tools.utils.StageTimer;
+import com.socrata.tools.utils.UpsertResults;
 import com.socrata.utils.ColumnUtil;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.sql.rowset.RowSetMetaDataImpl;
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -39,6 +59,15 @@ import java.util.Map;
  *     and import as a CSV.  See updateDatasetFromBigQuery and createDatasetFromBigQuery.</li>
  * </ul>
  *
+ * createDatasetFromAnyQuery estimates the size of the query first, and picks between the two.  Queries
+ * estimated at fewer than SMALL_QUERY_ROWS rows are sent as JSON upserts rather than imported as CSV, so
+ * a new dataset created from a small query gets its column types from the query rather than from the
+ * CSV import's type detection, and its rows go through the upsert endpoint's limits and validation.
+ *
+ * Binary columns become document columns.  Their values are streamed to the dataset's file endpoint by
+ * a DocumentUploader, and only the handles of the uploaded documents go into the rows, so queries with
+ * binary columns always go through the upsert path.
+ *
  *
  * NOTE:  THis class is not thread safe, because is stores a JDBC connection as
  * a member variable.
@@ -49,42 +78,218 @@ public class JdbcImporter
     public static final File DEFAULT_CONFIG = new File("import_config.json");
     public static final ObjectMapper objectMapper = new ObjectMapper();
 
+    /**
+     * With the AUTO strategy, a query returning fewer rows than this fraction of the rows already in the
+     * dataset is upserted directly, rather than loaded through a working copy.
+     */
+    public static final double AUTO_UPSERT_FRACTION = 0.5;
+
+    /**
+     * Queries that return fewer rows than this are imported by upserting the rows directly.
+     */
+    public static final long SMALL_QUERY_ROWS = 10000;
+
+    /**
+     * Returned when the number of rows a query returns can't be estimated.
+     */
+    public static final long UNKNOWN_ROW_COUNT = -1;
+
+    /**
+     * How long a COUNT(*) used to estimate the size of a query may run.
+     */
+    public static final int ESTIMATE_TIMEOUT_SECONDS = 10;
+
+    /**
+     * The SQL states for a cancelled statement and for a syntax error.
+     */
+    static final String QUERY_CANCELED_STATE = "57014";
+    static final String SYNTAX_ERROR_STATE = "42601";
+
+    public static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The number of rows sent in each request when upserting query results directly.
+     */
+    public static final int UPSERT_BATCH_SIZE = 10000;
+
+    /**
+     * The number of rows the driver fetches from the database at a time.  Without a fetch size, drivers
+     * like PostgreSQL's read the whole result set into memory before the first row is returned.
+     */
+    public static final int FETCH_SIZE = UPSERT_BATCH_SIZE;
+
     private Connection  jdbcConnection;
 
     final JdbcConnectionInfo    jdbcConnectionInfo;
+    final SocrataConnectionInfo socrataConnectionInfo;
+    final HttpLowLevel          httpLowLevel;
     final SodaImporter          sodaImporter;
     final Soda2Producer         soda2Producer;
+    final boolean               dryRun;
+
+    final StageTimer            stageTimer = new StageTimer();
+
+    int exportThreads = 1;
+    int documentThreads = DocumentUploader.DEFAULT_THREADS;
 
 
     /**
      * This main function allows this import to be run from the commandline.
      *
      * This will take a single argument for now, which is the configuration file
-     * to run from.
+     * to run from.  With --dry-run=sink, every query is read and serialized as usual, but
+     * nothing is sent to Socrata, and the time spent in each stage is written out after each import.
      *
      * @param arg list of argumentes
      */
-    public static void main(String arg[]) throws ClassNotFoundException, SQLException, InterruptedException, SodaError, IOException
+    public static void main(String arg[]) throws ClassNotFoundException, SQLException, InterruptedException, SodaError, IOException, LongRunningQueryException
     {
 
         File    configFile = DEFAULT_CONFIG;
-        if (arg.length > 0) {
-            configFile = new File(arg[0]);
+        boolean dryRun = false;
+        for (String argument : arg) {
+            if (argument.startsWith("--dry-run=")) {
+                CliUtils.validateDryRunMode(argument.substring("--dry-run=".length()));
+                dryRun = true;
+            } else {
+                configFile = new File(argument);
+            }
         }
 
         final ImportConfiguration importConfiguration = ConfigurationLoader.loadConfig(configFile);
-        JdbcImporter    jdbcImporter = new JdbcImporter(importConfiguration.getSocrataConnectionInfo(), importConfiguration.getJdbcConnectionInfo());
+        JdbcImporter    jdbcImporter = new JdbcImporter(importConfiguration.getSocrataConnectionInfo(), importConfiguration.getJdbcConnectionInfo(), dryRun);
+        jdbcImporter.setExportThreads(importConfiguration.getExportThreads());
+        jdbcImporter.setDocumentThreads(importConfiguration.getDocumentThreads());
 
+        final Writer output = new OutputStreamWriter(System.out);
         for (Map.Entry<String, DataImportConfiguration> entry : importConfiguration.getDatasetsToImport().entrySet()) {
+            jdbcImporter.runImport(entry.getKey(), entry.getValue());
+            if (dryRun) {
+                jdbcImporter.getStageTimer().write(output);
+                jdbcImporter.getStageTimer().clear();
+            }
+        }
+    }
+
+    /**
+     * Runs a single entry from the datasetsToImport in a configuration.  If the entry has a datasetId, that
+     * dataset is updated.  Otherwise a new dataset is created.
+     *
+     * @param name the name of the entry, used as the name of a newly created dataset
+     * @param dataImportConfiguration the entry to run
+     */
+    public void runImport(final String name, final DataImportConfiguration dataImportConfiguration) throws SQLException, ClassNotFoundException, InterruptedException, SodaError, IOException, LongRunningQueryException
+    {
+        System.out.println("Importing: " + name + ".  With query=\"" + dataImportConfiguration.importQuery + "\"");
 
-            DataImportConfiguration dataImportConfiguration = entry.getValue();
-            System.out.println("Importing: " + entry.getKey() + ".  With query=\"" + dataImportConfiguration.importQuery + "\"");
+        if (!dataImportConfiguration.getOutputs().isEmpty()) {
+            runDerivedImports(dataImportConfiguration);
+        } else if (dataImportConfiguration.getDatasetId() != null) {
+            final DatasetInfo dataset = sodaImporter.loadDatasetInfo(dataImportConfiguration.getDatasetId());
+            final ImportStrategy usedStrategy = updateDataset(dataset, dataImportConfiguration.importQuery, dataImportConfiguration.getImportStrategy());
+            System.out.println("  Successfully updated " + dataset.getId() + " using " + usedStrategy.getValue());
 
-            DatasetInfo createdDataset = jdbcImporter.createDatasetFromBigQuery(entry.getKey(), dataImportConfiguration.description, dataImportConfiguration.importQuery);
+            if (dataImportConfiguration.isSyncDeletes() && usedStrategy != ImportStrategy.REPLACE) {
+                final long deleted = syncDeletes((Dataset) dataset, dataImportConfiguration.importQuery);
+                System.out.println("  Deleted " + deleted + " rows no longer returned by the query");
+            }
+        } else {
+            DatasetInfo createdDataset = createDatasetFromAnyQuery(name, dataImportConfiguration.description, dataImportConfiguration.importQuery);
             System.out.println("  Successfully created " + createdDataset.getId());
         }
     }
 
+    /**
+     * Runs the query of an entry once, and loads its rows into each of the entry's derived outputs.
+     * The rows are read into RowBatches, and every batch is handed to each output in turn, which writes
+     * the rows matching its filter, with only its columns, to its own CSV file.  Once the query has been
+     * read, each file is loaded the same way a query of its own would be, and deleted, whether or not
+     * the load worked.
+     *
+     * @param dataImportConfiguration the entry, with its outputs
+     */
+    public void runDerivedImports(final DataImportConfiguration dataImportConfiguration) throws SQLException, ClassNotFoundException, InterruptedException, SodaError, IOException, LongRunningQueryException
+    {
+        final List<DerivedOutputWriter> writers = new ArrayList<DerivedOutputWriter>();
+        try {
+            final ResultSet resultSet = executeQuery(dataImportConfiguration.importQuery);
+            try {
+                rejectBinaryColumns(resultSet.getMetaData());
+                final RowBatch          batch = new RowBatch(resultSet.getMetaData(), CsvExportPipeline.DEFAULT_BATCH_SIZE);
+                final RowBatch.Kind[]   kinds = new RowBatch.Kind[batch.getColumnCount()];
+                for (int i=0; i<kinds.length; i++) {
+                    kinds[i] = batch.getKind(i);
+                }
+
+                for (Map.Entry<String, DerivedOutputConfiguration> output : dataImportConfiguration.getOutputs().entrySet()) {
+                    writers.add(new DerivedOutputWriter(output.getKey(), output.getValue(), resultSet.getMetaData(), kinds));
+                }
+
+                final long start = System.nanoTime();
+                long rows = 0;
+                while (resultSet.next()) {
+                    rows++;
+                    if (batch.add(resultSet)) {
+                        writeBatch(batch, writers);
+                    }
+                }
+                writeBatch(batch, writers);
+                for (DerivedOutputWriter writer : writers) {
+                    writer.close();
+                }
+
+                long bytes = 0;
+                for (DerivedOutputWriter writer : writers) {
+                    bytes += writer.file.length();
+                }
+                stageTimer.record("export", start, rows, bytes);
+                System.out.println("  Read " + rows + " rows for " + writers.size() + " outputs");
+            } finally {
+                closeQuery(resultSet);
+                for (DerivedOutputWriter writer : writers) {
+                    writer.close();
+                }
+            }
+
+            final ResultSetMetaData metaData = describeQuery(dataImportConfiguration.importQuery);
+            for (DerivedOutputWriter writer : writers) {
+                try {
+                    final DerivedOutputConfiguration output = writer.config;
+                    if (output.getDatasetId() != null) {
+                        final DatasetInfo dataset = sodaImporter.loadDatasetInfo(output.getDatasetId());
+                        final ImportStrategy usedStrategy = output.getImportStrategy() == ImportStrategy.AUTO ?
+                                chooseStrategy(dataset, writer.rowCount) :
+                                output.getImportStrategy();
+                        loadFile(dataset, writer.file, usedStrategy);
+                        System.out.println("  Successfully updated " + dataset.getId() + " with " + writer.rowCount + " rows for " + writer.name + " using " + usedStrategy.getValue());
+                    } else {
+                        final DatasetInfo dataset = createDataset(writer.name, output.getDescription(), metaData, writer.getQueryColumns());
+                        appendFile(dataset, writer.file, true);
+                        System.out.println("  Successfully created " + dataset.getId() + " with " + writer.rowCount + " rows for " + writer.name);
+                    }
+                } finally {
+                    writer.file.delete();
+                }
+            }
+        } finally {
+            //If an output failed, the files of the ones after it were never loaded
+            for (DerivedOutputWriter writer : writers) {
+                writer.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Hands a batch to every derived output, then clears it.
+     */
+    private static void writeBatch(RowBatch batch, List<DerivedOutputWriter> writers)
+    {
+        for (DerivedOutputWriter writer : writers) {
+            writer.write(batch);
+        }
+        batch.clear();
+    }
+
     /**
      * Creates a JDBC Importer with all the connection information needed for connecting to the
      * database as well as Socrata.
@@ -94,15 +299,67 @@ public class JdbcImporter
      */
     public JdbcImporter(SocrataConnectionInfo socrataConnectionInfo, JdbcConnectionInfo jdbcConnectionInfo)
     {
-        final HttpLowLevel    httpLowLevel = HttpLowLevel.instantiateBasic(socrataConnectionInfo.getUrl(),
-                                                                           socrataConnectionInfo.getUser(),
-                                                                           socrataConnectionInfo.getPassword(),
-                                                                           socrataConnectionInfo.getToken());
-        this.soda2Producer = new Soda2Producer(httpLowLevel);
-        this.sodaImporter = new SodaImporter(httpLowLevel);
+        this(socrataConnectionInfo, jdbcConnectionInfo, false);
+    }
+
+    /**
+     * Creates a JDBC Importer that can do a dry run.  A dry run reads and serializes every query as
+     * usual, but everything that would be sent to Socrata goes to a sink that throws it away, and
+     * datasets are only created in memory.  Existing datasets are still read, so updates see their
+     * real schema.  See getStageTimer for where the time went.
+     *
+     * @param socrataConnectionInfo
+     * @param jdbcConnectionInfo
+     * @param dryRun true to send nothing to Socrata
+     */
+    public JdbcImporter(SocrataConnectionInfo socrataConnectionInfo, JdbcConnectionInfo jdbcConnectionInfo, boolean dryRun)
+    {
+        this.httpLowLevel = SodaClients.newHttpLowLevel(socrataConnectionInfo);
+        this.soda2Producer = dryRun ? new DiscardingProducer(httpLowLevel, stageTimer) : new Soda2Producer(httpLowLevel);
+        this.sodaImporter = dryRun ? new DiscardingImporter(httpLowLevel, stageTimer) : new SodaImporter(httpLowLevel);
+        this.dryRun = dryRun;
         this.jdbcConnectionInfo = jdbcConnectionInfo;
+        this.socrataConnectionInfo = socrataConnectionInfo;
+    }
+
+    /**
+     * @return the time spent so far in each stage of the imports: "export" writing query results to
+     * CSV, "fetch" and "serialize" reading and converting rows for upserts, and "sink" for what a dry
+     * run threw away instead of sending.
+     */
+    public StageTimer getStageTimer()
+    {
+        return stageTimer;
+    }
+
+
+    /**
+     * Sets the number of threads used to format rows as CSV when writing out big queries.  With
+     * more than one thread, the rows are written through a CsvExportPipeline, so formatting doesn't
+     * hold up fetching rows from the database.
+     *
+     * @param exportThreads the number of threads formatting rows
+     */
+    public void setExportThreads(int exportThreads)
+    {
+        if (exportThreads < 1) {
+            throw new IllegalArgumentException("The number of export threads must be at least 1.");
+        }
+        this.exportThreads = exportThreads;
     }
 
+    /**
+     * Sets the number of documents uploaded at the same time, for queries with binary columns.
+     *
+     * @param documentThreads the number of upload threads
+     */
+    public void setDocumentThreads(int documentThreads)
+    {
+        if (documentThreads < 1) {
+            throw new IllegalArgumentException("The number of document threads must be at least 1.");
+        }
+        this.documentThreads = documentThreads;
+    }
 
     /**
      * Will issue a query and then create a dataset and import the
@@ -113,16 +370,20 @@ public class JdbcImporter
      * @param query the query to issue to export data from the database.
      * @return the results of the upsert
      */
-    public DatasetInfo createDatasetFromQuery(String name, String description, String query) throws SQLException, ClassNotFoundException, SodaError, InterruptedException
+    public DatasetInfo createDatasetFromQuery(String name, String description, String query) throws SQLException, ClassNotFoundException, SodaError, InterruptedException, IOException
     {
         //  Execute the JDBC Query
         final ResultSet resultSet = executeQuery(query);
+        final DatasetInfo dataset;
+        try {
+            //  Create a Socrata Dataset from the resultset
+            dataset = createDataset(name, description, resultSet);
 
-        //  Create a Socrata Dataset from the resultset
-        final DatasetInfo dataset = createDataset(name, description, resultSet);
-
-        //  Now, add the results from the query into the dataset
-        final UpsertResult retVal = upsertQueryResults(dataset, resultSet);
+            //  Now, add the results from the query into the dataset
+            upsertQueryResults(dataset, resultSet);
+        } finally {
+            closeQuery(resultSet);
+        }
 
         //  Finally, publish the changes on the dataset
         sodaImporter.publish(dataset.getId());
@@ -130,6 +391,31 @@ public class JdbcImporter
     }
 
 
+    /**
+     * Creates a dataset from a query, picking the import path based on how many rows the query is
+     * expected to return.  Queries estimated at fewer than SMALL_QUERY_ROWS rows are upserted directly
+     * (createDatasetFromQuery), which skips writing a temp file and the CSV import round trips.
+     * Everything else, including queries that couldn't be estimated, goes through createDatasetFromBigQuery.
+     * Queries with binary columns are always upserted, since a CSV file can't carry their documents.
+     *
+     * @param name the name of the dataset to create
+     * @param description the description of the dataset to create
+     * @param query the query to issue to export data from the database.
+     * @return the created dataset.
+     */
+    public DatasetInfo createDatasetFromAnyQuery(String name, String description, String query) throws SQLException, ClassNotFoundException, SodaError, InterruptedException, IOException
+    {
+        if (hasBinaryColumns(describeQuery(query))) {
+            return createDatasetFromQuery(name, description, query);
+        }
+
+        final long estimatedRows = estimateRowCount(query);
+        if (estimatedRows != UNKNOWN_ROW_COUNT && estimatedRows < SMALL_QUERY_ROWS) {
+            return createDatasetFromQuery(name, description, query);
+        }
+        return createDatasetFromBigQuery(name, description, query);
+    }
+
     /**
      * Will issue a query, and update an existing dataset from it using upserts.
      *
@@ -137,13 +423,16 @@ public class JdbcImporter
      * @param query the query to issue to find teh rows to update from
      * @return The upsert result
      */
-    public UpsertResult updateDatasetFromQuery(final Dataset dataset, final String query) throws SQLException, ClassNotFoundException, SodaError, InterruptedException
+    public UpsertResult updateDatasetFromQuery(final Dataset dataset, final String query) throws SQLException, ClassNotFoundException, SodaError, InterruptedException, IOException
     {
         //  Execute the JDBC Query
         final ResultSet resultSet = executeQuery(query);
-
-        //  Now, add the results from the query into the dataset
-        return upsertQueryResults(dataset, resultSet);
+        try {
+            //  Now, add the results from the query into the dataset
+            return upsertQueryResults(dataset, resultSet);
+        } finally {
+            closeQuery(resultSet);
+        }
     }
 
     /**
@@ -157,33 +446,47 @@ public class JdbcImporter
      */
     public DatasetInfo createDatasetFromBigQuery(String name, String description, String query) throws SQLException, ClassNotFoundException, SodaError, InterruptedException, IOException
     {
+        if (canCopyOut()) {
+            //  Create the dataset from the query's metadata, then let the database write the CSV
+            final DatasetInfo dataset = createDataset(name, description, describeQuery(query));
+            appendFile(dataset, copyQueryAsFile(query), true);
+            return dataset;
+        }
+
         //  Execute the JDBC Query
         final ResultSet resultSet = executeQuery(query);
+        try {
+            //  Create a Socrata Dataset from the resultset
+            final DatasetInfo dataset = createDataset(name, description, resultSet);
 
-        //  Create a Socrata Dataset from the resultset
-        final DatasetInfo dataset = createDataset(name, description, resultSet);
-
-        //  Now, add the results from the query into the dataset
-        updateDatasetFromBigQuery(dataset, resultSet);
+            //  Now, add the results from the query into the dataset
+            updateDatasetFromBigQuery(dataset, resultSet);
 
-        return dataset;
+            return dataset;
+        } finally {
+            closeQuery(resultSet);
+        }
     }
 
     /**
      * Appends the results of a query into a dataset.  This will use the publish cycle and
      * CSV import to append the results.  This method is best called for queries that will return more
-     * than 10,000 results.
+     * than 10,000 results.  Queries with binary columns are upserted into the dataset instead, since a
+     * CSV file can't carry their documents.
      *
      * @param dataset dataset to add rows to
      * @param query query to pull results from.
      */
     public void updateDatasetFromBigQuery(final Dataset dataset, final String query) throws SQLException, ClassNotFoundException, IOException, SodaError, InterruptedException
     {
-        //  Execute the JDBC Query
-        final ResultSet resultSet = executeQuery(query);
+        if (hasBinaryColumns(describeQuery(query))) {
+            upsertQuery(dataset, query);
+            sodaImporter.publish(dataset.getId());
+            return;
+        }
 
         //Update the dataset
-        updateDatasetFromBigQuery(dataset, resultSet, false);
+        appendFile(dataset, writeQueryAsFile(query), false);
     }
 
     /**
@@ -212,15 +515,34 @@ public class JdbcImporter
      */
     public void updateDatasetFromBigQuery(final DatasetInfo dataset, final ResultSet resultSet, boolean createWorkingCopy) throws SQLException, ClassNotFoundException, IOException, SodaError, InterruptedException
     {
-
         //  Write as a csv file
-        final File tempFile = writeResultsAsFile(resultSet);
+        appendFile(dataset, writeResultsAsFile(resultSet), createWorkingCopy);
+    }
 
+    /**
+     * Appends a CSV file into a dataset through the publish cycle.  The file is deleted afterwards, and a
+     * working copy created here is discarded if the append or publish fails.
+     *
+     * @param dataset dataset to add rows to
+     * @param tempFile the CSV file (with a header row) to append
+     * @param createWorkingCopy whether to create a working copy or not.  If this is false, the dataset should
+     *                          already be a working copy, but will be published as part of this call.
+     */
+    protected void appendFile(final DatasetInfo dataset, final File tempFile, boolean createWorkingCopy) throws IOException, SodaError, InterruptedException
+    {
         try {
             //Create a working copy, then append the results
             final DatasetInfo workingCopy = createWorkingCopy ? sodaImporter.createWorkingCopy(dataset.getId()) : dataset;
-            sodaImporter.append(workingCopy.getId(), tempFile, 1, null);
-            sodaImporter.publish(workingCopy.getId());
+            boolean published = false;
+            try {
+                sodaImporter.append(workingCopy.getId(), tempFile, 1, null);
+                sodaImporter.publish(workingCopy.getId());
+                published = true;
+            } finally {
+                if (createWorkingCopy && !published) {
+                    discardWorkingCopy(workingCopy);
+                }
+            }
 
         } finally {
             tempFile.delete();
@@ -228,6 +550,431 @@ public class JdbcImporter
 
     }
 
+    /**
+     * Updates an existing dataset from a query, using the given strategy.  UPSERT and REPLACE stream the
+     * results straight into the published dataset, which avoids copying the whole dataset into a working
+     * copy on the server.  AUTO picks between UPSERT and WORKING_COPY; see chooseStrategy.
+     *
+     * Queries with binary columns are upserted rather than loaded as a CSV file, into a working copy
+     * unless the strategy is UPSERT.  REPLACE isn't supported for them.
+     *
+     * @param dataset the dataset to update
+     * @param query the query to pull results from
+     * @param strategy how to load the rows into the dataset
+     * @return the strategy that was actually used.  This is only different from strategy for AUTO.
+     */
+    public ImportStrategy updateDataset(final DatasetInfo dataset, final String query, final ImportStrategy strategy) throws SQLException, ClassNotFoundException, IOException, SodaError, InterruptedException, LongRunningQueryException
+    {
+        final ImportStrategy usedStrategy = strategy == ImportStrategy.AUTO ? chooseStrategy(dataset, query) : strategy;
+        if (hasBinaryColumns(describeQuery(query))) {
+            upsertDocumentQuery(dataset, query, usedStrategy);
+        } else {
+            loadFile(dataset, writeQueryAsFile(query), usedStrategy);
+        }
+        return usedStrategy;
+    }
+
+    /**
+     * Upserts a query with binary columns into an existing dataset.  Anything other than UPSERT goes
+     * through a working copy.
+     */
+    protected void upsertDocumentQuery(final DatasetInfo dataset, final String query, final ImportStrategy strategy) throws SQLException, ClassNotFoundException, IOException, SodaError, InterruptedException
+    {
+        switch (strategy) {
+            case UPSERT:
+                upsertQuery(dataset, query);
+                break;
+
+            case REPLACE:
+                throw new IllegalArgumentException("The replace strategy isn't supported for queries with binary columns.  Use working_copy instead.");
+
+            default:
+                final DatasetInfo workingCopy = sodaImporter.createWorkingCopy(dataset.getId());
+                boolean published = false;
+                try {
+                    upsertQuery(workingCopy, query);
+                    sodaImporter.publish(workingCopy.getId());
+                    published = true;
+                } finally {
+                    if (!published) {
+                        discardWorkingCopy(workingCopy);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Runs a query and upserts its results into a dataset.
+     */
+    protected UpsertResult upsertQuery(final DatasetInfo dataset, final String query) throws SQLException, ClassNotFoundException, IOException, SodaError, InterruptedException
+    {
+        final ResultSet resultSet = executeQuery(query);
+        try {
+            return upsertQueryResults(dataset, resultSet);
+        } finally {
+            closeQuery(resultSet);
+        }
+    }
+
+    /**
+     * Deletes a working copy that couldn't be filled or published, so the next import can make a new one.
+     * A failure here is only reported, so it doesn't hide the error that left the working copy behind.
+     */
+    protected void discardWorkingCopy(final DatasetInfo workingCopy)
+    {
+        try {
+            sodaImporter.deleteDataset(workingCopy.getId());
+        } catch (SodaError e) {
+            System.err.println("Unable to discard the working copy " + workingCopy.getId() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loads a CSV file into an existing dataset, using the given strategy.  The file is deleted afterwards.
+     *
+     * @param dataset the dataset to update
+     * @param tempFile the CSV file (with a header row) to load
+     * @param strategy how to load the rows into the dataset.  Anything other than UPSERT or REPLACE goes
+     *                 through a working copy.
+     */
+    protected void loadFile(final DatasetInfo dataset, final File tempFile, final ImportStrategy strategy) throws IOException, SodaError, InterruptedException
+    {
+        switch (strategy) {
+            case UPSERT:
+                upsertFile(dataset, tempFile, false);
+                break;
+
+            case REPLACE:
+                upsertFile(dataset, tempFile, true);
+                break;
+
+            default:
+                appendFile(dataset, tempFile, true);
+                break;
+        }
+    }
+
+    /**
+     * Deletes the rows in a dataset that the query no longer returns.  Only the row identifier column
+     * is read from either side, and the keys are compared on disk, so this works for datasets that are
+     * far too big to load into memory.  The dataset must have a row identifier, and the query must
+     * return a column that maps to it.
+     *
+     * This isn't needed after a REPLACE, since that already removes any rows not in the query.
+     *
+     * @param dataset the dataset to delete rows from
+     * @param query the query that the dataset should match
+     * @return the number of rows deleted
+     */
+    public long syncDeletes(final Dataset dataset, final String query) throws SQLException, ClassNotFoundException, IOException, SodaError, InterruptedException, LongRunningQueryException
+    {
+        final Column rowIdentifier = DeleteSynchronizer.getRowIdentifierColumn(dataset);
+        final ResultSet keys = executeQuery(keyQuery(query, rowIdentifier.getFieldName()));
+        try {
+            return new DeleteSynchronizer(soda2Producer).syncDeletes(resultSetKeys(keys), dataset.getId(), rowIdentifier, null);
+        } finally {
+            closeQuery(keys);
+        }
+    }
+
+    /**
+     * Builds a query that returns only the column of a query that maps to a field.
+     */
+    protected String keyQuery(final String query, final String fieldName) throws SQLException, ClassNotFoundException, SodaError
+    {
+        final ResultSetMetaData metaData = describeQuery(query);
+        for (int i=1; i<=metaData.getColumnCount(); i++) {
+            final String columnName = metaData.getColumnName(i);
+            if (ColumnUtil.getQueryName(columnName).equals(fieldName)) {
+                return "SELECT q.\"" + columnName.replace("\"", "\"\"") + "\" FROM (" + query + ") q";
+            }
+        }
+        throw new SodaError("The query does not return a column for the row identifier " + fieldName + ", so deleted rows can't be found.");
+    }
+
+    /**
+     * Walks the values of the first column of a result set, skipping nulls.  The values are left as
+     * the driver's Java objects, so DeleteSynchronizer can normalize them by type.
+     */
+    static Iterator<Object> resultSetKeys(final ResultSet resultSet)
+    {
+        return new AbstractIterator<Object>()
+        {
+            @Override
+            protected Object computeNext()
+            {
+                try {
+                    while (resultSet.next()) {
+                        final Object key = resultSet.getObject(1);
+                        if (key != null) {
+                            return key;
+                        }
+                    }
+                    return endOfData();
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Unable to read keys from the query", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Picks how to load the results of a query into an existing dataset.  If the query returns only a
+     * small part of what's already in the dataset, it's cheaper to upsert them than to have the server
+     * make a full working copy.  Otherwise, the rows are loaded through a working copy.
+     *
+     * @param dataset the dataset that will be updated
+     * @param query the query that will be loaded
+     * @return either UPSERT or WORKING_COPY
+     */
+    public ImportStrategy chooseStrategy(final DatasetInfo dataset, final String query) throws SQLException, ClassNotFoundException, SodaError, LongRunningQueryException, IOException
+    {
+        return chooseStrategy(dataset, estimateRowCount(query));
+    }
+
+    /**
+     * Picks how to load a known number of rows into an existing dataset.  See chooseStrategy(DatasetInfo, String).
+     *
+     * @param dataset the dataset that will be updated
+     * @param incomingRows the number of rows that will be loaded, or UNKNOWN_ROW_COUNT
+     * @return either UPSERT or WORKING_COPY
+     */
+    public ImportStrategy chooseStrategy(final DatasetInfo dataset, final long incomingRows) throws SodaError, LongRunningQueryException, IOException
+    {
+        if (incomingRows == UNKNOWN_ROW_COUNT) {
+            return ImportStrategy.WORKING_COPY;
+        }
+
+        final long existingRows = SodaQueries.countRows(soda2Producer, dataset.getId());
+        return (incomingRows < existingRows * AUTO_UPSERT_FRACTION) ? ImportStrategy.UPSERT : ImportStrategy.WORKING_COPY;
+    }
+
+    /**
+     * Upserts the results in a resultset into a published dataset as a CSV stream.  This does NOT use a
+     * working copy, so the rows become visible as they are loaded.
+     *
+     * @param dataset dataset to add rows to
+     * @param resultSet query to pull results from.
+     * @param replace if true, the rows replace ALL the rows in the dataset instead of being upserted.
+     * @return the result of the upsert
+     */
+    public UpsertResult upsertDatasetFromBigQuery(final DatasetInfo dataset, final ResultSet resultSet, boolean replace) throws SQLException, IOException, SodaError, InterruptedException
+    {
+        return upsertFile(dataset, writeResultsAsFile(resultSet), replace);
+    }
+
+    /**
+     * Upserts a CSV file into a published dataset as a stream.  The file is deleted afterwards.
+     *
+     * @param dataset dataset to add rows to
+     * @param tempFile the CSV file (with a header row) to upsert
+     * @param replace if true, the rows replace ALL the rows in the dataset instead of being upserted.
+     * @return the result of the upsert
+     */
+    protected UpsertResult upsertFile(final DatasetInfo dataset, final File tempFile, boolean replace) throws IOException, SodaError, InterruptedException
+    {
+        try {
+            final InputStream is = new MappedFileInputStream(tempFile);
+            try {
+                return replace ?
+                        soda2Producer.replaceStream(dataset.getId(), HttpLowLevel.CSV_TYPE, is) :
+                        soda2Producer.upsertStream(dataset.getId(), HttpLowLevel.CSV_TYPE, is);
+            } finally {
+                is.close();
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Gets an idea of how many rows a query will return, without running it.  On PostgreSQL, this asks
+     * the planner with EXPLAIN, which doesn't touch the data at all.  Otherwise, this runs a COUNT(*)
+     * over the query, giving up after ESTIMATE_TIMEOUT_SECONDS.
+     *
+     * Only a count that times out or is cancelled counts as unknown.  Any other error, like a bad query
+     * or a lost connection, is thrown, rather than being mistaken for a big query.
+     *
+     * @param query the query to estimate
+     * @return the estimated number of rows the query returns, or UNKNOWN_ROW_COUNT if it couldn't be estimated.
+     */
+    public long estimateRowCount(final String query) throws SQLException, ClassNotFoundException
+    {
+        final Connection connection = assureConnection();
+        if (connection.getMetaData().getDatabaseProductName().toLowerCase().contains("postgresql")) {
+            final long planRows = explainRowCount(connection, query);
+            if (planRows != UNKNOWN_ROW_COUNT) {
+                return planRows;
+            }
+        }
+
+        final Statement stmt = connection.createStatement();
+        try {
+            stmt.setQueryTimeout(ESTIMATE_TIMEOUT_SECONDS);
+            final ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM (" + query + ") estimated_query");
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        } catch (SQLTimeoutException e) {
+            //The count took too long, so it's a big query.
+            return UNKNOWN_ROW_COUNT;
+        } catch (SQLException e) {
+            //Some drivers (PostgreSQL among them) report a timed out query as cancelled, not as a timeout
+            if (QUERY_CANCELED_STATE.equals(e.getSQLState())) {
+                return UNKNOWN_ROW_COUNT;
+            }
+            throw e;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Gets the number of rows the PostgreSQL planner expects a query to return.  Servers too old for
+     * EXPLAIN's JSON format reject it as a syntax error, which is returned as UNKNOWN_ROW_COUNT so the
+     * COUNT(*) is tried instead; any other error is thrown.
+     */
+    protected long explainRowCount(final Connection connection, final String query) throws SQLException
+    {
+        try {
+            final Statement stmt = connection.createStatement();
+            try {
+                final ResultSet resultSet = stmt.executeQuery("EXPLAIN (FORMAT JSON) " + query);
+                if (!resultSet.next()) {
+                    return UNKNOWN_ROW_COUNT;
+                }
+
+                final JsonNode planRows = objectMapper.readTree(resultSet.getString(1)).path(0).path("Plan").path("Plan Rows");
+                return planRows.isNumber() ? planRows.getLongValue() : UNKNOWN_ROW_COUNT;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            if (SYNTAX_ERROR_STATE.equals(e.getSQLState())) {
+                return UNKNOWN_ROW_COUNT;
+            }
+            throw e;
+        } catch (IOException e) {
+            return UNKNOWN_ROW_COUNT;
+        }
+    }
+
+    /**
+     * Runs a query and writes the results out as a CSV file.  If the connection is configured to use COPY
+     * and is a PostgreSQL connection, the database writes the CSV itself (see copyQueryAsFile).
+     *
+     * @param query the query to export
+     * @return the CSV file
+     */
+    protected File writeQueryAsFile(final String query) throws IOException, SQLException, ClassNotFoundException
+    {
+        if (canCopyOut()) {
+            return copyQueryAsFile(query);
+        }
+
+        final ResultSet resultSet = executeQuery(query);
+        try {
+            return writeResultsAsFile(resultSet);
+        } finally {
+            closeQuery(resultSet);
+        }
+    }
+
+    /**
+     * Writes out the results of a query as a CSV file using PostgreSQL's COPY TO STDOUT.  The server does
+     * all the CSV formatting, so rows never go through the ResultSet or CSVWriter.
+     *
+     * The header row is written separately from the query's metadata, so the column names are escaped with
+     * ColumnUtil.getQueryName the same way as when the dataset was created.  Boolean columns are written as
+     * true/false rather than PostgreSQL's t/f.
+     *
+     * @param query the query to export
+     * @return the CSV file
+     */
+    protected File copyQueryAsFile(final String query) throws IOException, SQLException, ClassNotFoundException
+    {
+        final ResultSetMetaData metaData = describeQuery(query);
+        rejectBinaryColumns(metaData);
+        final CopyManager       copyManager = assureConnection().unwrap(PGConnection.class).getCopyAPI();
+
+        final StringBuilder select = new StringBuilder("SELECT ");
+        final String[]      columnHeaders = new String[metaData.getColumnCount()];
+        for (int i=1; i<=metaData.getColumnCount(); i++) {
+            final String columnName = metaData.getColumnName(i);
+            final String quotedName = "q.\"" + columnName.replace("\"", "\"\"") + "\"";
+            columnHeaders[i-1] = ColumnUtil.getQueryName(columnName);
+
+            if (i > 1) {
+                select.append(", ");
+            }
+
+            final int columnType = metaData.getColumnType(i);
+            if (columnType == Types.BIT || columnType == Types.BOOLEAN) {
+                select.append("CASE WHEN ").append(quotedName).append(" THEN 'true' WHEN NOT ").append(quotedName).append(" THEN 'false' END");
+            } else {
+                select.append(quotedName);
+            }
+        }
+        select.append(" FROM (").append(query).append(") q");
+
+        final File retVal = File.createTempFile("SocrataImport", ".csv");
+        retVal.deleteOnExit();
+
+        final long start = System.nanoTime();
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(retVal), COPY_BUFFER_SIZE);
+        long rows;
+        try {
+            final CSVWriter csvWriter = new CSVWriter(new OutputStreamWriter(os, "UTF-8"));
+            csvWriter.writeNext(columnHeaders);
+            csvWriter.flush();
+
+            rows = copyManager.copyOut("COPY (" + select + ") TO STDOUT WITH CSV", os);
+        } finally {
+            os.close();
+        }
+
+        stageTimer.record("export", start, rows, retVal.length());
+        return retVal;
+    }
+
+    /**
+     * @return true if big queries should be exported with PostgreSQL's COPY rather than through a ResultSet.
+     */
+    protected boolean canCopyOut() throws SQLException, ClassNotFoundException
+    {
+        return jdbcConnectionInfo.isUseCopy() && assureConnection().isWrapperFor(PGConnection.class);
+    }
+
+    /**
+     * Gets the column metadata for a query, without reading any of its rows.  The names and types of the
+     * columns are copied out, so the statement can be closed before returning.  Vendor specific types that
+     * aren't in java.sql.Types come back as Types.OTHER, which convertToSoqlType rejects like any other
+     * type it doesn't support, so a dataset can't be created from such a column.
+     */
+    protected ResultSetMetaData describeQuery(final String query) throws SQLException, ClassNotFoundException
+    {
+        final PreparedStatement stmt = assureConnection().prepareStatement(query);
+        try {
+            final ResultSetMetaData metaData = stmt.getMetaData();
+            final RowSetMetaDataImpl description = new RowSetMetaDataImpl();
+            description.setColumnCount(metaData.getColumnCount());
+            for (int i=1; i<=metaData.getColumnCount(); i++) {
+                description.setColumnName(i, metaData.getColumnName(i));
+                description.setColumnLabel(i, metaData.getColumnLabel(i));
+                description.setColumnTypeName(i, metaData.getColumnTypeName(i));
+                try {
+                    description.setColumnType(i, metaData.getColumnType(i));
+                } catch (SQLException e) {
+                    description.setColumnType(i, Types.OTHER);
+                }
+            }
+            return description;
+        } finally {
+            stmt.close();
+        }
+    }
+
     /**
      * Writes out the resultset as a GZipped CSV file.
      *
@@ -238,41 +985,126 @@ public class JdbcImporter
      */
     protected File writeResultsAsFile(final ResultSet resultSet) throws IOException, SQLException
     {
+        rejectBinaryColumns(resultSet.getMetaData());
         final File retVal = File.createTempFile("SocrataImport", ".csv");
         retVal.deleteOnExit();
 
+        final long                  start = System.nanoTime();
+        long                        rows = 0;
         final FileOutputStream      fos = new FileOutputStream(retVal);
-        final OutputStreamWriter    writer = new OutputStreamWriter(fos);
-        final CSVWriter csvWriter = new CSVWriter(writer);
+        final OutputStreamWriter    writer = new OutputStreamWriter(fos, "UTF-8");
+        final CountingCsvWriter     csvWriter = new CountingCsvWriter(writer);
 
         //Make sure column names are escaped properly, so they match up with the
         //created dataset
         String[] columnHeaders = new String[resultSet.getMetaData().getColumnCount()];
-        for (int i=1; i<resultSet.getMetaData().getColumnCount(); i++) {
+        for (int i=1; i<=resultSet.getMetaData().getColumnCount(); i++) {
             columnHeaders[i-1] = ColumnUtil.getQueryName(resultSet.getMetaData().getColumnName(i));
         }
         csvWriter.writeNext(columnHeaders);
-        csvWriter.writeAll(resultSet, false);
-        writer.close();
 
+        if (exportThreads > 1) {
+            //  Format the rows on several threads, while this one keeps fetching
+            csvWriter.flush();
+            final OutputStream os = new BufferedOutputStream(fos, COPY_BUFFER_SIZE);
+            try {
+                rows = new CsvExportPipeline(exportThreads).write(resultSet, os);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing results to " + retVal);
+            } finally {
+                os.close();
+            }
+        } else {
+            csvWriter.writeAll(resultSet, false);
+            writer.close();
+            rows = csvWriter.lines - 1;
+        }
+
+        stageTimer.record("export", start, rows, retVal.length());
         return retVal;
     }
 
+    /**
+     * A CSVWriter that counts the lines it writes, so writeAll's rows can be counted.
+     */
+    static class CountingCsvWriter extends CSVWriter
+    {
+        long lines;
+
+        CountingCsvWriter(Writer writer)
+        {
+            super(writer);
+        }
+
+        @Override
+        public void writeNext(String[] nextLine)
+        {
+            lines++;
+            super.writeNext(nextLine);
+        }
+    }
+
 
     /**
-     * Appends the results of a query to a dataset.
+     * Appends the results of a query to a dataset.  The rows are buffered off-heap in a RowBatch,
+     * and sent UPSERT_BATCH_SIZE rows at a time.  The values of binary columns are uploaded as documents
+     * while the rows are read, and each batch waits for its documents before it's sent.
      *
      * @param dataset
      * @param resultSet
      * @return
      */
-    public UpsertResult upsertQueryResults(DatasetInfo dataset, ResultSet resultSet) throws SodaError, InterruptedException, SQLException
+    public UpsertResult upsertQueryResults(DatasetInfo dataset, ResultSet resultSet) throws SodaError, InterruptedException, SQLException, IOException
     {
-        List results = new ArrayList();
-        while (resultSet.next()) {
-            results.add(convertRowToObject(resultSet));
+        final ResultSetMetaData     metaData = resultSet.getMetaData();
+        final String[]              fieldNames = new String[metaData.getColumnCount()];
+        for (int i=1; i<=metaData.getColumnCount(); i++) {
+            fieldNames[i-1] = ColumnUtil.getQueryName(metaData.getColumnName(i));
+        }
+
+        final RowBatch              batch = new RowBatch(metaData, UPSERT_BATCH_SIZE);
+        final List<UpsertResult>    results = new ArrayList<UpsertResult>();
+        final RowBatch.BinarySink   documentSink = hasBinaryColumns(metaData) ? newDocumentSink(dataset) : null;
+        batch.setBinarySink(documentSink);
+        try {
+            long fetchStart = System.nanoTime();
+            while (resultSet.next()) {
+                if (batch.add(resultSet)) {
+                    stageTimer.record("fetch", fetchStart, batch.size(), 0);
+                    results.add(upsertBatch(dataset, batch, fieldNames));
+                    fetchStart = System.nanoTime();
+                }
+            }
+
+            if (!batch.isEmpty() || results.isEmpty()) {
+                stageTimer.record("fetch", fetchStart, batch.size(), 0);
+                results.add(upsertBatch(dataset, batch, fieldNames));
+            }
+        } finally {
+            if (documentSink instanceof Closeable) {
+                ((Closeable) documentSink).close();
+            }
         }
-        return soda2Producer.upsert(dataset.getId(), results);
+        return UpsertResults.combine(results);
+    }
+
+    /**
+     * Upserts the rows in a batch as JSON, then clears the batch.
+     */
+    protected UpsertResult upsertBatch(DatasetInfo dataset, RowBatch batch, String[] fieldNames) throws IOException, SodaError, InterruptedException
+    {
+        final long                  start = System.nanoTime();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(batch.size() * fieldNames.length * 16);
+        final JsonGenerator         generator = objectMapper.getJsonFactory().createJsonGenerator(baos, JsonEncoding.UTF8);
+        generator.writeStartArray();
+        batch.writeJson(generator, fieldNames);
+        generator.writeEndArray();
+        generator.close();
+        stageTimer.record("serialize", start, batch.size(), baos.size());
+
+        batch.clear();
+        return soda2Producer.upsertStream(dataset.getId(), HttpLowLevel.JSON_TYPE, new ByteArrayInputStream(baos.toByteArray()));
     }
 
     /**
@@ -287,20 +1119,48 @@ public class JdbcImporter
      */
     public DatasetInfo createDataset(String name, String description, ResultSet resultSet) throws SQLException, SodaError, InterruptedException
     {
-        final ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+        return createDataset(name, description, resultSet.getMetaData());
+    }
+
+    /**
+     * Creates a Socrata Dataset from the metadata of a query.
+     *
+     * @param name name of the dataset to create
+     * @param description the description of the dataset to create
+     * @param resultSetMetaData the metadata describing the columns of the query
+     * @return The dataset that was created.
+     */
+    public DatasetInfo createDataset(String name, String description, ResultSetMetaData resultSetMetaData) throws SQLException, SodaError, InterruptedException
+    {
+        final int[] columns = new int[resultSetMetaData.getColumnCount()];
+        for (int i=1; i<=columns.length; i++) {
+            columns[i-1] = i;
+        }
+        return createDataset(name, description, resultSetMetaData, columns);
+    }
 
+    /**
+     * Creates a Socrata Dataset from some of the columns of a query.
+     *
+     * @param name name of the dataset to create
+     * @param description the description of the dataset to create
+     * @param resultSetMetaData the metadata describing the columns of the query
+     * @param columns the 1-based indexes of the columns to include, in the order they should appear
+     * @return The dataset that was created.
+     */
+    public DatasetInfo createDataset(String name, String description, ResultSetMetaData resultSetMetaData, int[] columns) throws SQLException, SodaError, InterruptedException
+    {
         //Create a dataset with the appropriate name + description
         DatasetBuilder builder = new DatasetBuilder();
         builder.setName(name)
                 .setDescription(description);
 
         //Add the columns to the dataset
-        final int numColumns = resultSetMetaData.getColumnCount();
-        for (int i=1; i<=numColumns; i++) {
-
+        for (int position=0; position<columns.length; position++) {
+            final int i = columns[position];
             final String columnName = resultSetMetaData.getColumnName(i);
             String soqlType = convertToSoqlType(resultSetMetaData.getColumnType(i));
-            builder.addColumn(new Column(null, columnName, ColumnUtil.getQueryName(columnName), columnName, soqlType, i-1, 200));
+            builder.addColumn(new Column(null, columnName, ColumnUtil.getQueryName(columnName), columnName, soqlType, position, 200));
         }
 
         //Create the dataset on the Socrata side
@@ -328,6 +1188,69 @@ public class JdbcImporter
         return retVal;
     }
 
+    /**
+     * Creates the sink for the binary columns of a dataset: a DocumentUploader, which has to be closed
+     * once the rows are sent, or in a dry run a DiscardingDocumentSink.
+     */
+    public RowBatch.BinarySink newDocumentSink(DatasetInfo dataset)
+    {
+        if (dryRun) {
+            return new DiscardingDocumentSink(stageTimer);
+        }
+        return new DocumentUploader(httpLowLevel, socrataConnectionInfo, dataset.getId(), documentThreads);
+    }
+
+    /**
+     * @return true if any column of a query is binary, and so has to be uploaded as documents.
+     */
+    static protected boolean hasBinaryColumns(ResultSetMetaData metaData) throws SQLException
+    {
+        for (int i=1; i<=metaData.getColumnCount(); i++) {
+            if (isBinaryColumn(metaData.getColumnType(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fails for queries with binary columns on the paths that go through a CSV file, which would
+     * silently leave their document columns empty.
+     */
+    static protected void rejectBinaryColumns(ResultSetMetaData metaData) throws SQLException
+    {
+        for (int i=1; i<=metaData.getColumnCount(); i++) {
+            if (isBinaryColumn(metaData.getColumnType(i))) {
+                throw new IllegalArgumentException("The column " + metaData.getColumnName(i) + " is binary, and binary columns can't be loaded through a CSV file.  " +
+                                                           "Upsert the query instead, e.g. with updateDataset or upsertQueryResults.");
+            }
+        }
+    }
+
+    /**
+     * @return true if a column of this SQL type is created as a document column in the dataset.
+     */
+    static protected boolean isBinaryColumn(int sqlType)
+    {
+        try {
+            return "document".equals(convertToSoqlType(sqlType));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if a column of this SQL type is created as a text column in the dataset.
+     */
+    static protected boolean isTextColumn(int sqlType)
+    {
+        try {
+            return "text".equals(convertToSoqlType(sqlType));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * Converts from a SQL type to the Socrata types.
      *
@@ -394,11 +1317,58 @@ public class JdbcImporter
         }
     }
 
+    /**
+     * Drops the current JDBC connection, so the next query opens a new one.  Used by long running
+     * processes after a failure, in case the connection has gone bad.
+     */
+    protected void resetConnection()
+    {
+        try {
+            assureConnectionClosed();
+        } catch (Exception e) {
+            //The connection is being thrown away anyway
+        }
+        jdbcConnection = null;
+    }
+
+    /**
+     * Runs a query, reading its rows through a cursor FETCH_SIZE rows at a time rather than all at once.
+     * Drivers only use a cursor inside a transaction, so auto-commit is turned off until the result set
+     * is handed to closeQuery.
+     */
     protected ResultSet executeQuery(final String query) throws SQLException, ClassNotFoundException
     {
         final Connection  connection  = assureConnection();
+        connection.setAutoCommit(false);
+
         final Statement   stmt        = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-        return stmt.executeQuery(query);
+        try {
+            stmt.setFetchSize(FETCH_SIZE);
+            return stmt.executeQuery(query);
+        } catch (SQLException e) {
+            stmt.close();
+            connection.setAutoCommit(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the result set of executeQuery along with its statement, and ends the transaction its
+     * cursor was read in.
+     */
+    protected void closeQuery(final ResultSet resultSet) throws SQLException
+    {
+        final Statement stmt = resultSet.getStatement();
+        try {
+            resultSet.close();
+            if (stmt != null) {
+                stmt.close();
+            }
+        } finally {
+            if (jdbcConnection != null && !jdbcConnection.isClosed()) {
+                jdbcConnection.setAutoCommit(true);
+            }
+        }
     }
 
 }
@@ -0,0 +1,486 @@
+package com.socrata.tools.importer;
+
+import com.socrata.tools.utils.BoundedInterner;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.*;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A compact, columnar batch of rows, used to move rows between the database and the upload.
+ *
+ * Each column is stored in its own direct (off-heap) buffer of fixed width slots: 8 bytes for numbers,
+ * booleans and dates, and 4 bytes for text, which is stored as a code into a dictionary of the distinct
+ * strings in the batch.  Nulls are tracked in an off-heap bitmap per column.  Compared to a Map per row,
+ * a full batch puts very little on the heap, and it can be cleared and refilled without allocating.
+ *
+ * Binary values aren't held at all: each one is streamed to a BinarySink as it's read, and only the
+ * handle the sink returns is kept.
+ *
+ * The values of text columns are also run through a BoundedInterner per column before they go into the
+ * dictionary, so a value that repeats from batch to batch is kept as one String, rather than once per
+ * batch.  Batches that are filled by the same thread can share their interners.
+ *
+ * NOTE: This class is not thread safe.  A batch should only be handed to another thread once
+ * it has been filled.
+ */
+public class RowBatch
+{
+    /**
+     * How the values of a column are stored.
+     */
+    public enum Kind
+    {
+        /** Whole numbers, stored as longs */
+        LONG,
+        /** Floating point numbers, stored as doubles */
+        DOUBLE,
+        /** Exact numbers, stored as their string in the dictionary */
+        DECIMAL,
+        /** Stored as a long of 0 or 1 */
+        BOOLEAN,
+        /** Stored as milliseconds since the epoch */
+        DATE,
+        /** Stored as milliseconds since the epoch */
+        TIMESTAMP,
+        /** Stored in the dictionary.  Types with no other kind are stored as the string of their value. */
+        STRING,
+        /** Streamed to the BinarySink, which returns a handle to write in its place.  Always null without a sink. */
+        BINARY
+    }
+
+    /**
+     * Takes the binary values of the rows as they are read, e.g. to upload them as documents.
+     */
+    public interface BinarySink
+    {
+        /**
+         * Takes a binary value.  The stream has to be read before this returns, since it's only valid
+         * until the result set moves on, but anything else can be done in the background.
+         *
+         * @param bytes the value
+         * @return the handle to write out in place of the value, once it's ready
+         */
+        Future<?> accept(InputStream bytes) throws IOException;
+    }
+
+    static final ThreadLocal<DateFormat> ISO_FORMAT = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        }
+    };
+
+    final int           capacity;
+    final Kind[]        kinds;
+    final int[]         sqlTypes;
+    final ByteBuffer[]  values;
+    final ByteBuffer[]  nulls;
+
+    final BoundedInterner[]     interners;
+    final List<String>          dictionary = new ArrayList<String>();
+    final Map<String, Integer>  dictionaryCodes = new HashMap<String, Integer>();
+    final List<Future<?>>       binaries = new ArrayList<Future<?>>();
+
+    BinarySink binarySink;
+
+    int size;
+
+    /**
+     * Creates an empty batch for the columns of a query.
+     *
+     * @param metaData the metadata of the query the rows come from
+     * @param capacity the maximum number of rows in the batch
+     */
+    public RowBatch(ResultSetMetaData metaData, int capacity) throws SQLException
+    {
+        this(metaData, capacity, textInterners(metaData));
+    }
+
+    /**
+     * Creates an empty batch that interns its text values with the given interners.  Interners aren't
+     * thread safe, so only batches that are all filled by one thread should share them.
+     *
+     * @param metaData the metadata of the query the rows come from
+     * @param capacity the maximum number of rows in the batch
+     * @param interners the interner for each column, or null for columns that aren't interned
+     */
+    public RowBatch(ResultSetMetaData metaData, int capacity, BoundedInterner[] interners) throws SQLException
+    {
+        final int numColumns = metaData.getColumnCount();
+
+        this.capacity = capacity;
+        this.interners = interners;
+        this.kinds = new Kind[numColumns];
+        this.sqlTypes = new int[numColumns];
+        this.values = new ByteBuffer[numColumns];
+        this.nulls = new ByteBuffer[numColumns];
+
+        for (int i=0; i<numColumns; i++) {
+            sqlTypes[i] = metaData.getColumnType(i+1);
+            kinds[i] = kindOf(sqlTypes[i]);
+            final int width = (kinds[i] == Kind.STRING || kinds[i] == Kind.DECIMAL || kinds[i] == Kind.BINARY) ? 4 : 8;
+            values[i] = ByteBuffer.allocateDirect(capacity * width).order(ByteOrder.nativeOrder());
+            nulls[i] = ByteBuffer.allocateDirect((capacity + 7) / 8);
+        }
+    }
+
+    /**
+     * Creates an interner for each column of a query that's imported as text.
+     */
+    public static BoundedInterner[] textInterners(ResultSetMetaData metaData) throws SQLException
+    {
+        final BoundedInterner[] interners = new BoundedInterner[metaData.getColumnCount()];
+        for (int i=0; i<interners.length; i++) {
+            final int sqlType = metaData.getColumnType(i+1);
+            if (kindOf(sqlType) == Kind.STRING && JdbcImporter.isTextColumn(sqlType)) {
+                interners[i] = new BoundedInterner();
+            }
+        }
+        return interners;
+    }
+
+    /**
+     * Figures out how a column of a given SQL type is stored.
+     */
+    static Kind kindOf(int sqlType)
+    {
+        switch (sqlType) {
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return Kind.LONG;
+
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return Kind.DOUBLE;
+
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return Kind.DECIMAL;
+
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Kind.BOOLEAN;
+
+            case Types.DATE:
+                return Kind.DATE;
+
+            case Types.TIMESTAMP:
+                return Kind.TIMESTAMP;
+
+            case Types.BLOB:
+            case Types.LONGVARBINARY:
+            case Types.VARBINARY:
+                return Kind.BINARY;
+
+            default:
+                return Kind.STRING;
+        }
+    }
+
+    /**
+     * Sets where binary values go.  Without a sink, binary columns are left null.
+     */
+    public void setBinarySink(BinarySink binarySink)
+    {
+        this.binarySink = binarySink;
+    }
+
+    /**
+     * Copies the current row of a result set into the batch.
+     *
+     * @param resultSet a result set that has already had "next" called on it
+     * @return true if the batch is now full
+     */
+    public boolean add(ResultSet resultSet) throws SQLException, IOException
+    {
+        if (size >= capacity) {
+            throw new IllegalStateException("RowBatch is full");
+        }
+
+        final int row = size;
+        for (int i=0; i<kinds.length; i++) {
+            final int column = i+1;
+            boolean isNull = false;
+            switch (kinds[i]) {
+                case LONG:
+                    values[i].putLong(row * 8, resultSet.getLong(column));
+                    isNull = resultSet.wasNull();
+                    break;
+
+                case DOUBLE:
+                    values[i].putDouble(row * 8, resultSet.getDouble(column));
+                    isNull = resultSet.wasNull();
+                    break;
+
+                case BOOLEAN:
+                    values[i].putLong(row * 8, resultSet.getBoolean(column) ? 1 : 0);
+                    isNull = resultSet.wasNull();
+                    break;
+
+                case DATE:
+                    final java.sql.Date date = resultSet.getDate(column);
+                    isNull = date == null;
+                    values[i].putLong(row * 8, isNull ? 0 : date.getTime());
+                    break;
+
+                case TIMESTAMP:
+                    final Timestamp timestamp = resultSet.getTimestamp(column);
+                    isNull = timestamp == null;
+                    values[i].putLong(row * 8, isNull ? 0 : timestamp.getTime());
+                    break;
+
+                case DECIMAL:
+                case STRING:
+                    String string = readString(resultSet, column, sqlTypes[i]);
+                    isNull = string == null;
+                    if (!isNull && interners[i] != null) {
+                        string = interners[i].intern(string);
+                    }
+                    values[i].putInt(row * 4, isNull ? 0 : encode(string));
+                    break;
+
+                case BINARY:
+                    final InputStream bytes = binarySink == null ? null : resultSet.getBinaryStream(column);
+                    isNull = bytes == null;
+                    if (!isNull) {
+                        try {
+                            binaries.add(binarySink.accept(bytes));
+                        } finally {
+                            bytes.close();
+                        }
+                        values[i].putInt(row * 4, binaries.size() - 1);
+                    }
+                    break;
+            }
+            setNull(row, i, isNull);
+        }
+
+        size++;
+        return size >= capacity;
+    }
+
+    /**
+     * Empties the batch so it can be filled again.  The off-heap buffers are kept.
+     */
+    public void clear()
+    {
+        size = 0;
+        dictionary.clear();
+        dictionaryCodes.clear();
+        binaries.clear();
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int getColumnCount()
+    {
+        return kinds.length;
+    }
+
+    public Kind getKind(int column)
+    {
+        return kinds[column];
+    }
+
+    public boolean isNull(int row, int column)
+    {
+        return (nulls[column].get(row >> 3) & (1 << (row & 7))) != 0;
+    }
+
+    public long getLong(int row, int column)
+    {
+        return values[column].getLong(row * 8);
+    }
+
+    public double getDouble(int row, int column)
+    {
+        return values[column].getDouble(row * 8);
+    }
+
+    /**
+     * Formats a double the way CSVWriter does, without an exponent.  REAL columns are formatted as the
+     * float they were read as, so 1.1 doesn't come out as 1.100000023841858.  NaN and the infinities,
+     * which have no plain decimal form, are formatted with Double.toString.
+     */
+    public String getDoubleString(int row, int column)
+    {
+        final double value = getDouble(row, column);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return Double.toString(value);
+        }
+        if (sqlTypes[column] == Types.REAL) {
+            return Float.toString((float) value);
+        }
+        return java.math.BigDecimal.valueOf(value).toPlainString();
+    }
+
+    public boolean getBoolean(int row, int column)
+    {
+        return values[column].getLong(row * 8) != 0;
+    }
+
+    public String getString(int row, int column)
+    {
+        return dictionary.get(values[column].getInt(row * 4));
+    }
+
+    /**
+     * Waits for the handle of a binary value from the BinarySink.
+     */
+    public Object getBinaryHandle(int row, int column) throws IOException
+    {
+        try {
+            return binaries.get(values[column].getInt(row * 4)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a binary value");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed storing a binary value", e.getCause());
+        }
+    }
+
+    /**
+     * Writes every row in the batch as a JSON object.  Binary values are written as the handle the
+     * BinarySink returned for them.
+     *
+     * @param generator the generator to write to
+     * @param fieldNames the field names of the columns
+     */
+    public void writeJson(JsonGenerator generator, String[] fieldNames) throws IOException
+    {
+        for (int row=0; row<size; row++) {
+            generator.writeStartObject();
+            for (int i=0; i<kinds.length; i++) {
+                generator.writeFieldName(fieldNames[i]);
+                if (isNull(row, i)) {
+                    generator.writeNull();
+                    continue;
+                }
+
+                switch (kinds[i]) {
+                    case LONG:
+                        generator.writeNumber(getLong(row, i));
+                        break;
+                    case DOUBLE:
+                        final double value = getDouble(row, i);
+                        if (Double.isNaN(value) || Double.isInfinite(value)) {
+                            generator.writeNumber(value);
+                        } else {
+                            generator.writeNumber(getDoubleString(row, i));
+                        }
+                        break;
+                    case DECIMAL:
+                        generator.writeNumber(getString(row, i));
+                        break;
+                    case BOOLEAN:
+                        generator.writeBoolean(getBoolean(row, i));
+                        break;
+                    case DATE:
+                    case TIMESTAMP:
+                        generator.writeString(ISO_FORMAT.get().format(new java.util.Date(getLong(row, i))));
+                        break;
+                    case BINARY:
+                        generator.writeObject(getBinaryHandle(row, i));
+                        break;
+                    default:
+                        generator.writeString(getString(row, i));
+                        break;
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private int encode(String string)
+    {
+        Integer code = dictionaryCodes.get(string);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(string);
+            dictionaryCodes.put(string, code);
+        }
+        return code;
+    }
+
+    private void setNull(int row, int column, boolean isNull)
+    {
+        final ByteBuffer bitmap = nulls[column];
+        final int        index = row >> 3;
+        final int        bit = 1 << (row & 7);
+        final byte       current = bitmap.get(index);
+        bitmap.put(index, (byte) (isNull ? (current | bit) : (current & ~bit)));
+    }
+
+    private static String readString(ResultSet resultSet, int column, int sqlType) throws SQLException, IOException
+    {
+        if (kindOf(sqlType) == Kind.DECIMAL) {
+            final java.math.BigDecimal decimal = resultSet.getBigDecimal(column);
+            return decimal == null ? null : decimal.toString();
+        }
+
+        if (sqlType == Types.CLOB) {
+            final Clob clob = resultSet.getClob(column);
+            return clob == null ? null : readClob(clob);
+        }
+
+        if (sqlType == Types.TIME) {
+            //Like CSVWriter, a time is written as HH:mm:ss rather than with the date formats
+            final Time time = resultSet.getTime(column);
+            return time == null ? null : time.toString();
+        }
+
+        if (JdbcImporter.isTextColumn(sqlType)) {
+            return resultSet.getString(column);
+        }
+
+        //Anything else, e.g. uuid, json or arrays in PostgreSQL, is written as the string of its value
+        final Object value = resultSet.getObject(column);
+        return value == null ? null : value.toString();
+    }
+
+    static String readClob(Clob clob) throws SQLException, IOException
+    {
+        final StringBuilder sb = new StringBuilder((int) clob.length());
+        final Reader reader = clob.getCharacterStream();
+        try {
+            final char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return sb.toString();
+    }
+}
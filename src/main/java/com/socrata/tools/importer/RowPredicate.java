@@ -0,0 +1,311 @@
+package com.socrata.tools.importer;
+
+import com.google.common.collect.Lists;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A simple condition on the columns of a query, checked against the rows of a RowBatch.
+ *
+ * The supported syntax is a list of comparisons joined with AND:
+ * <pre>
+ *     column = 'text' AND amount >= 100 AND closed_at IS NULL
+ * </pre>
+ * Comparisons are =, !=, &lt;&gt;, &lt;, &lt;=, &gt; and &gt;= against a literal, which is a number, a 'quoted'
+ * string (with '' for a quote), true or false.  Dates and timestamps compare against quoted literals
+ * like '2014-01-31' or '2014-01-31 12:00:00'.  IS NULL and IS NOT NULL are supported as well.  As in SQL,
+ * a comparison with a null value never matches.
+ *
+ * Column names are matched without regard to case, against either the query's column name or the
+ * field name it gets in the dataset.
+ */
+public class RowPredicate
+{
+    enum Op
+    {
+        EQ, NE, LT, LE, GT, GE, IS_NULL, IS_NOT_NULL
+    }
+
+    /**
+     * A single comparison of a column with a literal.
+     */
+    static class Condition
+    {
+        final int       column;
+        final Op        op;
+        final String    literal;
+
+        Condition(int column, Op op, String literal)
+        {
+            this.column = column;
+            this.op = op;
+            this.literal = literal;
+        }
+
+        boolean matches(RowBatch batch, int row)
+        {
+            final boolean isNull = batch.isNull(row, column);
+            if (op == Op.IS_NULL) {
+                return isNull;
+            }
+            if (op == Op.IS_NOT_NULL) {
+                return !isNull;
+            }
+            if (isNull) {
+                return false;
+            }
+
+            final int comparison = compare(batch, row);
+            switch (op) {
+                case EQ: return comparison == 0;
+                case NE: return comparison != 0;
+                case LT: return comparison < 0;
+                case LE: return comparison <= 0;
+                case GT: return comparison > 0;
+                default: return comparison >= 0;
+            }
+        }
+
+        /**
+         * Compares the value in the row with the literal.
+         */
+        private int compare(RowBatch batch, int row)
+        {
+            switch (batch.getKind(column)) {
+                case LONG:
+                    return BigDecimal.valueOf(batch.getLong(row, column)).compareTo(new BigDecimal(literal));
+                case DOUBLE:
+                    final double value = batch.getDouble(row, column);
+                    if (Double.isNaN(value) || Double.isInfinite(value)) {
+                        //These have no BigDecimal.  As in PostgreSQL, NaN sorts above every number.
+                        return Double.compare(value, new BigDecimal(literal).doubleValue());
+                    }
+                    return BigDecimal.valueOf(value).compareTo(new BigDecimal(literal));
+                case DECIMAL:
+                    return new BigDecimal(batch.getString(row, column)).compareTo(new BigDecimal(literal));
+                case BOOLEAN:
+                    return Boolean.valueOf(batch.getBoolean(row, column)).compareTo(Boolean.valueOf(literal));
+                case DATE:
+                case TIMESTAMP:
+                    return Long.valueOf(batch.getLong(row, column)).compareTo(parseTime(literal));
+                case BINARY:
+                    return -1;
+                default:
+                    return batch.getString(row, column).compareTo(literal);
+            }
+        }
+    }
+
+    final List<Condition> conditions;
+
+    RowPredicate(List<Condition> conditions)
+    {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Parses a filter against the columns of a query.
+     *
+     * @param filter the filter, or null to match every row
+     * @param columnNames the query's column names
+     * @param fieldNames the field names of the same columns in the dataset
+     * @param kinds how each of the columns is stored in a RowBatch
+     * @return the parsed predicate
+     * @throws IllegalArgumentException if the filter can't be parsed, or names a column the query doesn't have
+     */
+    public static RowPredicate parse(String filter, String[] columnNames, String[] fieldNames, RowBatch.Kind[] kinds)
+    {
+        final List<Condition> conditions = Lists.newArrayList();
+        if (filter == null || filter.trim().isEmpty()) {
+            return new RowPredicate(conditions);
+        }
+
+        final List<String> tokens = tokenize(filter);
+        int i = 0;
+        while (true) {
+            if (i >= tokens.size()) {
+                throw new IllegalArgumentException("Filter \"" + filter + "\" ends with AND.");
+            }
+
+            final int column = findColumn(tokens.get(i++), columnNames, fieldNames, filter);
+            final String op = i < tokens.size() ? tokens.get(i++).toUpperCase(Locale.US) : "";
+            if (op.equals("IS")) {
+                final boolean not = i < tokens.size() && tokens.get(i).equalsIgnoreCase("NOT");
+                if (not) {
+                    i++;
+                }
+                if (i >= tokens.size() || !tokens.get(i++).equalsIgnoreCase("NULL")) {
+                    throw new IllegalArgumentException("Expected NULL after IS in filter \"" + filter + "\".");
+                }
+                conditions.add(new Condition(column, not ? Op.IS_NOT_NULL : Op.IS_NULL, null));
+            } else {
+                if (i >= tokens.size()) {
+                    throw new IllegalArgumentException("Expected a value after " + op + " in filter \"" + filter + "\".");
+                }
+                final String literal = literal(tokens.get(i++));
+                validateLiteral(literal, kinds[column], filter);
+                conditions.add(new Condition(column, parseOp(op, filter), literal));
+            }
+
+            if (i == tokens.size()) {
+                return new RowPredicate(conditions);
+            }
+            if (!tokens.get(i++).equalsIgnoreCase("AND")) {
+                throw new IllegalArgumentException("Expected AND at \"" + tokens.get(i - 1) + "\" in filter \"" + filter + "\".  Only AND is supported.");
+            }
+        }
+    }
+
+    /**
+     * @return true if the row matches every condition.
+     */
+    public boolean matches(RowBatch batch, int row)
+    {
+        for (Condition condition : conditions) {
+            if (!condition.matches(batch, row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a filter into names, operators and literals.  Quoted literals keep their quotes, so they
+     * can be told apart from names.
+     */
+    static List<String> tokenize(String filter)
+    {
+        final List<String> tokens = Lists.newArrayList();
+        int i = 0;
+        while (i < filter.length()) {
+            final char c = filter.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                final StringBuilder sb = new StringBuilder("'");
+                i++;
+                while (true) {
+                    if (i >= filter.length()) {
+                        throw new IllegalArgumentException("Unterminated string in filter \"" + filter + "\".");
+                    }
+                    if (filter.charAt(i) == '\'') {
+                        if (i + 1 < filter.length() && filter.charAt(i + 1) == '\'') {
+                            sb.append('\'');
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    sb.append(filter.charAt(i++));
+                }
+                tokens.add(sb.toString());
+            } else if ("=<>!".indexOf(c) != -1) {
+                final int start = i;
+                while (i < filter.length() && "=<>!".indexOf(filter.charAt(i)) != -1) {
+                    i++;
+                }
+                tokens.add(filter.substring(start, i));
+            } else {
+                final int start = i;
+                while (i < filter.length() && !Character.isWhitespace(filter.charAt(i)) && "=<>!'".indexOf(filter.charAt(i)) == -1) {
+                    i++;
+                }
+                tokens.add(filter.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static int findColumn(String name, String[] columnNames, String[] fieldNames, String filter)
+    {
+        for (int i=0; i<columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(name) || fieldNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Filter \"" + filter + "\" uses " + name + ", which isn't a column of the query.");
+    }
+
+    private static Op parseOp(String op, String filter)
+    {
+        if (op.equals("=")) {
+            return Op.EQ;
+        }
+        if (op.equals("!=") || op.equals("<>")) {
+            return Op.NE;
+        }
+        if (op.equals("<")) {
+            return Op.LT;
+        }
+        if (op.equals("<=")) {
+            return Op.LE;
+        }
+        if (op.equals(">")) {
+            return Op.GT;
+        }
+        if (op.equals(">=")) {
+            return Op.GE;
+        }
+        throw new IllegalArgumentException("Unknown comparison " + op + " in filter \"" + filter + "\".");
+    }
+
+    /**
+     * Strips the quote from a quoted literal, and lower cases true and false.
+     */
+    private static String literal(String token)
+    {
+        if (token.startsWith("'")) {
+            return token.substring(1);
+        }
+        if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+            return token.toLowerCase(Locale.US);
+        }
+        return token;
+    }
+
+    /**
+     * Checks up front that a literal can be compared with a column, so a bad filter fails before
+     * any rows are read rather than on the first row.
+     */
+    private static void validateLiteral(String literal, RowBatch.Kind kind, String filter)
+    {
+        try {
+            switch (kind) {
+                case LONG:
+                case DOUBLE:
+                case DECIMAL:
+                    new BigDecimal(literal);
+                    break;
+                case BOOLEAN:
+                    if (!literal.equalsIgnoreCase("true") && !literal.equalsIgnoreCase("false")) {
+                        throw new IllegalArgumentException("Expected true or false");
+                    }
+                    break;
+                case DATE:
+                case TIMESTAMP:
+                    parseTime(literal);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Value " + literal + " in filter \"" + filter + "\" doesn't match the type of its column.", e);
+        }
+    }
+
+    /**
+     * Parses a date or timestamp literal into milliseconds since the epoch, in the local time zone like
+     * the values read from JDBC.
+     */
+    static long parseTime(String literal)
+    {
+        if (literal.length() <= 10) {
+            return java.sql.Date.valueOf(literal).getTime();
+        }
+        return Timestamp.valueOf(literal.replace('T', ' ')).getTime();
+    }
+}
@@ -3,6 +3,8 @@ package com.socrata.tools.model;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -13,15 +15,30 @@ public class DataImportConfiguration
     final public String description;
     final public Map<String, Map<String, String>> metadata;
     final public String importQuery;
+    final public String datasetId;
+    final public ImportStrategy importStrategy;
+    final public boolean syncDeletes;
+    final public String schedule;
+    final public Map<String, DerivedOutputConfiguration> outputs;
 
     @JsonCreator
     public DataImportConfiguration(@JsonProperty(value = "description") String description,
                                    @JsonProperty(value = "metadata") Map<String, Map<String, String>> metadata,
-                                   @JsonProperty(value = "importQuery") String importQuery)
+                                   @JsonProperty(value = "importQuery") String importQuery,
+                                   @JsonProperty(value = "datasetId") String datasetId,
+                                   @JsonProperty(value = "importStrategy") ImportStrategy importStrategy,
+                                   @JsonProperty(value = "syncDeletes") Boolean syncDeletes,
+                                   @JsonProperty(value = "schedule") String schedule,
+                                   @JsonProperty(value = "outputs") LinkedHashMap<String, DerivedOutputConfiguration> outputs)
     {
         this.description = description;
         this.metadata = metadata;
         this.importQuery = importQuery;
+        this.datasetId = datasetId;
+        this.importStrategy = importStrategy != null ? importStrategy : ImportStrategy.WORKING_COPY;
+        this.syncDeletes = syncDeletes != null && syncDeletes;
+        this.schedule = schedule;
+        this.outputs = outputs != null ? outputs : Collections.<String, DerivedOutputConfiguration>emptyMap();
     }
 
     public String getDescription()
@@ -33,4 +50,53 @@ public class DataImportConfiguration
     {
         return metadata;
     }
+
+    public String getImportQuery()
+    {
+        return importQuery;
+    }
+
+    /**
+     * @return the id of an existing dataset to update, or null if a new dataset should be created.
+     */
+    public String getDatasetId()
+    {
+        return datasetId;
+    }
+
+    /**
+     * @return how rows get loaded into the existing dataset.  Defaults to WORKING_COPY.
+     */
+    public ImportStrategy getImportStrategy()
+    {
+        return importStrategy;
+    }
+
+    /**
+     * @return true if rows that are in the existing dataset, but no longer returned by the query, should
+     * be deleted after the update.  Defaults to false.
+     */
+    public boolean isSyncDeletes()
+    {
+        return syncDeletes;
+    }
+
+    /**
+     * @return the cron expression for when ImportDaemon runs this import, e.g. "0 2 * * *".  Null if
+     * it isn't scheduled.
+     */
+    public String getSchedule()
+    {
+        return schedule;
+    }
+
+    /**
+     * @return the outputs filled from a single run of importQuery, by the name of the dataset each one creates.
+     * When there are any, the rows of the query only go to these outputs, and datasetId, importStrategy and
+     * syncDeletes of this configuration aren't used.  Empty if there are none.
+     */
+    public Map<String, DerivedOutputConfiguration> getOutputs()
+    {
+        return outputs;
+    }
 }
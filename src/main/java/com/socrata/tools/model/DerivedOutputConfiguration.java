@@ -0,0 +1,71 @@
+package com.socrata.tools.model;
+
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.util.List;
+
+/**
+ * One of the outputs of a DataImportConfiguration that are all filled from a single run of its
+ * importQuery.  Each output takes some of the query's columns and the rows matching its filter.
+ */
+public class DerivedOutputConfiguration
+{
+    final public String description;
+    final public List<String> columns;
+    final public String filter;
+    final public String datasetId;
+    final public ImportStrategy importStrategy;
+
+    @JsonCreator
+    public DerivedOutputConfiguration(@JsonProperty(value = "description") String description,
+                                      @JsonProperty(value = "columns") List<String> columns,
+                                      @JsonProperty(value = "filter") String filter,
+                                      @JsonProperty(value = "datasetId") String datasetId,
+                                      @JsonProperty(value = "importStrategy") ImportStrategy importStrategy)
+    {
+        this.description = description;
+        this.columns = columns;
+        this.filter = filter;
+        this.datasetId = datasetId;
+        this.importStrategy = importStrategy != null ? importStrategy : ImportStrategy.WORKING_COPY;
+    }
+
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * @return the names of the query's columns to include, or null for all of them.
+     */
+    public List<String> getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * @return the condition rows have to match to be included, e.g. "state = 'WA' AND amount > 100".
+     * Null to include every row.  See RowPredicate for what's supported.
+     */
+    public String getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * @return the id of an existing dataset to update, or null if a new dataset should be created.
+     */
+    public String getDatasetId()
+    {
+        return datasetId;
+    }
+
+    /**
+     * @return how rows get loaded into the existing dataset.  Defaults to WORKING_COPY.
+     */
+    public ImportStrategy getImportStrategy()
+    {
+        return importStrategy;
+    }
+}
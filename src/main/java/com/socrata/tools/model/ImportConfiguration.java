@@ -12,15 +12,21 @@ public class ImportConfiguration
     final public JdbcConnectionInfo jdbcConnectionInfo;
     final public SocrataConnectionInfo socrataConnectionInfo;
     final public Map<String, DataImportConfiguration>   datasetsToImport;
+    final public int exportThreads;
+    final public int documentThreads;
 
     @JsonCreator
     public ImportConfiguration(@JsonProperty(value = "jdbcConnectionInfo") JdbcConnectionInfo jdbcConnectionInfo,
                                @JsonProperty(value = "socrataConnectionInfo") SocrataConnectionInfo socrataConnectionInfo,
-                               @JsonProperty(value = "datasetsToImport") Map<String, DataImportConfiguration> datasetsToImport)
+                               @JsonProperty(value = "datasetsToImport") Map<String, DataImportConfiguration> datasetsToImport,
+                               @JsonProperty(value = "exportThreads") Integer exportThreads,
+                               @JsonProperty(value = "documentThreads") Integer documentThreads)
     {
         this.jdbcConnectionInfo = jdbcConnectionInfo;
         this.socrataConnectionInfo = socrataConnectionInfo;
         this.datasetsToImport = datasetsToImport;
+        this.exportThreads = exportThreads != null ? exportThreads : 1;
+        this.documentThreads = documentThreads != null ? documentThreads : 4;
     }
 
     public JdbcConnectionInfo getJdbcConnectionInfo()
@@ -37,4 +43,20 @@ public class ImportConfiguration
     {
         return datasetsToImport;
     }
+
+    /**
+     * @return the number of threads used to format rows as CSV.  Defaults to 1.
+     */
+    public int getExportThreads()
+    {
+        return exportThreads;
+    }
+
+    /**
+     * @return the number of documents uploaded at the same time, for queries with binary columns.  Defaults to 4.
+     */
+    public int getDocumentThreads()
+    {
+        return documentThreads;
+    }
 }
@@ -0,0 +1,56 @@
+package com.socrata.tools.model;
+
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonValue;
+
+/**
+ * How the rows from a query get loaded into an existing dataset.
+ */
+public enum ImportStrategy
+{
+    /**
+     * Create a working copy, append the rows as a CSV, then publish.  This copies the whole
+     * dataset on the server, but the changes only become visible once they are all in.
+     */
+    WORKING_COPY("working_copy"),
+
+    /**
+     * Stream the rows as a CSV upsert straight into the published dataset.  No working copy is made.
+     */
+    UPSERT("upsert"),
+
+    /**
+     * Stream the rows as a CSV replacing ALL the rows in the published dataset.  No working copy is made.
+     */
+    REPLACE("replace"),
+
+    /**
+     * Choose between UPSERT and WORKING_COPY based on how many rows the query will return
+     * compared to how many rows are already in the dataset.
+     */
+    AUTO("auto");
+
+    final String value;
+
+    ImportStrategy(String value)
+    {
+        this.value = value;
+    }
+
+    @JsonValue
+    public String getValue()
+    {
+        return value;
+    }
+
+    @JsonCreator
+    public static ImportStrategy fromValue(String value)
+    {
+        for (ImportStrategy strategy : values()) {
+            if (strategy.value.equalsIgnoreCase(value) || strategy.name().equalsIgnoreCase(value)) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown import strategy '" + value + "'.  Must be one of working_copy, upsert, replace or auto.");
+    }
+}
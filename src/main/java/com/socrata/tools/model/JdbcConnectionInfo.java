@@ -12,17 +12,25 @@ public class JdbcConnectionInfo
     public final String connectionString;
     public final String userName;
     public final String password;
+    public final boolean useCopy;
+
+    public JdbcConnectionInfo(String driverClass, String connectionString, String userName, String password)
+    {
+        this(driverClass, connectionString, userName, password, null);
+    }
 
     @JsonCreator
     public JdbcConnectionInfo(@JsonProperty(value="driverClass")        String driverClass,
                               @JsonProperty(value="connectionString")   String connectionString,
                               @JsonProperty(value="userName")           String userName,
-                              @JsonProperty(value="password")           String password)
+                              @JsonProperty(value="password")           String password,
+                              @JsonProperty(value="useCopy")            Boolean useCopy)
     {
         this.driverClass = driverClass;
         this.connectionString = connectionString;
         this.userName = userName;
         this.password = password;
+        this.useCopy = useCopy != null && useCopy;
     }
 
     public String getDriverClass()
@@ -44,4 +52,12 @@ public class JdbcConnectionInfo
     {
         return password;
     }
+
+    /**
+     * @return true if large exports from a PostgreSQL database should use COPY TO STDOUT instead of a ResultSet.
+     */
+    public boolean isUseCopy()
+    {
+        return useCopy;
+    }
 }
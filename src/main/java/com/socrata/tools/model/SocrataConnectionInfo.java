@@ -9,6 +9,9 @@ import org.codehaus.jackson.annotate.JsonProperty;
  *
  *  This is normally loaded from the configuration file that contains all
  *  the connection information.
+ *
+ *  gzipRequests and gzipResponses turn on compression of upload bodies and
+ *  of query results for this domain.  Both are off unless set.
  */
 public class SocrataConnectionInfo
 {
@@ -16,17 +19,28 @@ public class SocrataConnectionInfo
     public final String user;
     public final String password;
     public final String token;
+    public final boolean gzipRequests;
+    public final boolean gzipResponses;
+
+    public SocrataConnectionInfo(String url, String user, String password, String token)
+    {
+        this(url, user, password, token, null, null);
+    }
 
     @JsonCreator
     public SocrataConnectionInfo(@JsonProperty(value="url") String url,
                                  @JsonProperty(value="user") String user,
                                  @JsonProperty(value="password") String password,
-                                 @JsonProperty(value="token") String token)
+                                 @JsonProperty(value="token") String token,
+                                 @JsonProperty(value="gzipRequests") Boolean gzipRequests,
+                                 @JsonProperty(value="gzipResponses") Boolean gzipResponses)
     {
         this.url = url;
         this.user = user;
         this.password = password;
         this.token = token;
+        this.gzipRequests = gzipRequests != null && gzipRequests;
+        this.gzipResponses = gzipResponses != null && gzipResponses;
     }
 
     public String getUrl()
@@ -48,4 +62,14 @@ public class SocrataConnectionInfo
     {
         return token;
     }
+
+    public boolean isGzipRequests()
+    {
+        return gzipRequests;
+    }
+
+    public boolean isGzipResponses()
+    {
+        return gzipResponses;
+    }
 }
@@ -0,0 +1,91 @@
+package com.socrata.tools.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Interns the values of a single text column, so repeated values share one String instance.
+ *
+ * This is meant for low cardinality columns (status, borough, agency, ...) that repeat the same
+ * handful of values millions of times.  The cache is bounded and evicts the least recently used
+ * value, so a column with more distinct values than expected can't grow it without limit.  If, after
+ * SAMPLE_SIZE lookups, fewer than MIN_HIT_RATE of them were hits, the column is clearly not repetitive,
+ * and the interner stops caching and just passes values through.
+ *
+ * NOTE: This class is not thread safe.
+ */
+public class BoundedInterner
+{
+    public static final int    DEFAULT_MAX_SIZE = 1024;
+    public static final int    SAMPLE_SIZE = 10000;
+    public static final double MIN_HIT_RATE = 0.5;
+
+    final LinkedHashMap<String, String> cache;
+
+    long    lookups;
+    long    hits;
+    boolean bypassed;
+
+    public BoundedInterner()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public BoundedInterner(final int maxSize)
+    {
+        this.cache = new LinkedHashMap<String, String>(Math.min(maxSize, 64), 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param value the value to intern
+     * @return the shared instance equal to value, or value itself if it isn't cached (or is null)
+     */
+    public String intern(String value)
+    {
+        if (value == null || bypassed) {
+            return value;
+        }
+
+        //Checked before the lookup, so the sample is judged whether its last lookup was a hit or a miss
+        if (lookups == SAMPLE_SIZE && hits < SAMPLE_SIZE * MIN_HIT_RATE) {
+            bypassed = true;
+            cache.clear();
+            return value;
+        }
+
+        lookups++;
+        final String existing = cache.get(value);
+        if (existing != null) {
+            hits++;
+            return existing;
+        }
+
+        cache.put(value, value);
+        return value;
+    }
+
+    /**
+     * @return true if the column turned out not to be repetitive, and values are no longer interned.
+     */
+    public boolean isBypassed()
+    {
+        return bypassed;
+    }
+
+    public long getLookups()
+    {
+        return lookups;
+    }
+
+    public long getHits()
+    {
+        return hits;
+    }
+}
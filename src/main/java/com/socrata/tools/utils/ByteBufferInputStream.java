@@ -0,0 +1,60 @@
+package com.socrata.tools.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads directly out of a ByteBuffer.  When the buffer is a MappedByteBuffer,
+ * this allows a region of a file to be handed to Jersey without copying it onto the heap first.
+ *
+ * The stream works on a duplicate of the buffer passed in, so the original buffer's position
+ * is never changed and the same buffer can be streamed multiple times (e.g. on retries).
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer)
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read()
+    {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len)
+    {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int toRead = Math.min(len, buffer.remaining());
+        buffer.get(bytes, off, toRead);
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        final int toSkip = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + toSkip);
+        return toSkip;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
@@ -19,6 +19,7 @@ import java.util.List;
  */
 public class CliUtils
 {
+    public static final String DRY_RUN_SINK = "sink";
 
     static public File defaultConfigFile() {
         File userHome = FileUtils.getUserDirectory();
@@ -41,6 +42,16 @@ public class CliUtils
 
     }
 
+    /**
+     * Checks the mode given to --dry-run.  The only mode is "sink", which runs the whole job against a
+     * sink that reads the rows and throws them away.
+     */
+    static public void validateDryRunMode(String mode) {
+        if (!DRY_RUN_SINK.equals(mode)) {
+            throw new IllegalArgumentException("Unknown dry run mode " + mode + ".  Only --dry-run=" + DRY_RUN_SINK + " is supported.");
+        }
+    }
+
     static public List<Pair<String, String>> parseOptions(String options, Charset charset) {
         if (StringUtils.isEmpty(options)) {
             return Collections.emptyList();
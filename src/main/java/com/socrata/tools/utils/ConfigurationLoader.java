@@ -6,29 +6,113 @@ import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Loads configuration files.
+ *
+ * Parsed configurations are cached by file, and only parsed again when the file's last modified time
+ * or length changes.  This keeps long running processes that check their configuration often from
+ * parsing the same JSON over and over.
  */
 public class ConfigurationLoader
 {
     static public final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+    static final ConcurrentMap<CacheKey, CachedConfig> CACHE = new ConcurrentHashMap<CacheKey, CachedConfig>();
+
     static public ImportConfiguration loadConfig(final File file)
+    {
+        return load(file, ImportConfiguration.class);
+    }
+
+    static public SocrataConnectionInfo loadSocrataConnectionConfig(final File file)
+    {
+        return load(file, SocrataConnectionInfo.class);
+    }
+
+    /**
+     * Checks whether a configuration file has changed since it was last loaded.
+     *
+     * @param file the configuration file
+     * @param configClass the class it was loaded as
+     * @return true if the file has changed, or has never been loaded as configClass.
+     */
+    static public boolean isModified(final File file, final Class<?> configClass)
     {
         try {
-            return OBJECT_MAPPER.readValue(file, ImportConfiguration.class);
+            final CachedConfig cached = CACHE.get(new CacheKey(file, configClass));
+            return cached == null || !cached.matches(file);
         } catch (IOException e) {
-            throw new IllegalArgumentException(e);
+            return true;
         }
     }
 
-    static public SocrataConnectionInfo loadSocrataConnectionConfig(final File file)
+    static <T> T load(final File file, final Class<T> configClass)
     {
         try {
-            return OBJECT_MAPPER.readValue(file, SocrataConnectionInfo.class);
+            final CacheKey      key = new CacheKey(file, configClass);
+            final CachedConfig  cached = CACHE.get(key);
+            if (cached != null && cached.matches(file)) {
+                return configClass.cast(cached.config);
+            }
+
+            //Read the stamp before parsing, so a change made while parsing is picked up next time
+            final long lastModified = file.lastModified();
+            final long length = file.length();
+            final T config = OBJECT_MAPPER.readValue(file, configClass);
+            CACHE.put(key, new CachedConfig(lastModified, length, config));
+            return config;
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    static final class CacheKey
+    {
+        final String    path;
+        final Class<?>  configClass;
+
+        CacheKey(File file, Class<?> configClass) throws IOException
+        {
+            this.path = file.getCanonicalPath();
+            this.configClass = configClass;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) o;
+            return path.equals(other.path) && configClass.equals(other.configClass);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * path.hashCode() + configClass.hashCode();
+        }
+    }
+
+    static final class CachedConfig
+    {
+        final long      lastModified;
+        final long      length;
+        final Object    config;
+
+        CachedConfig(long lastModified, long length, Object config)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.config = config;
+        }
+
+        boolean matches(File file)
+        {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
 }
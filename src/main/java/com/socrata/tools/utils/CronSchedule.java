@@ -0,0 +1,196 @@
+package com.socrata.tools.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A schedule written as a standard 5 field cron expression: minute, hour, day of month, month and
+ * day of week.  Each field can be "*", a number, a range ("1-5"), a step ("*&#47;15" or "0-30/10"),
+ * or a comma separated list of those.  Days of the week run from 0 (Sunday) to 6, and 7 is also Sunday.
+ *
+ * As with cron, if both the day of month and day of week are restricted, a day matches if either does.
+ *
+ * The shortcuts @hourly, @daily, @weekly and @monthly are also understood.
+ */
+public class CronSchedule
+{
+    /**
+     * How far ahead nextAfter will look for a matching time before deciding there isn't one, e.g. for "0 0 31 2 *".
+     */
+    static final int MAX_YEARS_AHEAD = 5;
+
+    final String    expression;
+    final BitSet    minutes;
+    final BitSet    hours;
+    final BitSet    daysOfMonth;
+    final BitSet    months;
+    final BitSet    daysOfWeek;
+    final boolean   anyDayOfMonth;
+    final boolean   anyDayOfWeek;
+    final TimeZone  timeZone;
+
+    public static CronSchedule parse(String expression)
+    {
+        return parse(expression, TimeZone.getDefault());
+    }
+
+    /**
+     * @param expression the cron expression
+     * @param timeZone the time zone the hours and days are in
+     * @throws IllegalArgumentException if the expression isn't valid
+     */
+    public static CronSchedule parse(String expression, TimeZone timeZone)
+    {
+        return new CronSchedule(expression, timeZone);
+    }
+
+    CronSchedule(String expression, TimeZone timeZone)
+    {
+        final String[] fields = StringUtils.split(expandShortcut(expression.trim()));
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Schedule \"" + expression + "\" should have 5 fields: minute hour dayOfMonth month dayOfWeek");
+        }
+
+        this.expression = expression;
+        this.timeZone = timeZone;
+        this.minutes = parseField(fields[0], 0, 59, expression);
+        this.hours = parseField(fields[1], 0, 23, expression);
+        this.daysOfMonth = parseField(fields[2], 1, 31, expression);
+        this.months = parseField(fields[3], 1, 12, expression);
+        this.daysOfWeek = parseField(fields[4], 0, 7, expression);
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        this.anyDayOfMonth = fields[2].equals("*");
+        this.anyDayOfWeek = fields[4].equals("*");
+    }
+
+    /**
+     * Finds the first time after a given time that matches the schedule.
+     *
+     * @param timeMillis the time to start from
+     * @return the next matching time, at the start of its minute.
+     * @throws IllegalStateException if nothing matches in the next few years
+     */
+    public long nextAfter(long timeMillis)
+    {
+        final Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(timeMillis);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MINUTE, 1);
+
+        final int lastYear = calendar.get(Calendar.YEAR) + MAX_YEARS_AHEAD;
+        while (calendar.get(Calendar.YEAR) <= lastYear) {
+            if (!months.get(calendar.get(Calendar.MONTH) + 1)) {
+                calendar.add(Calendar.MONTH, 1);
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                continue;
+            }
+
+            if (!matchesDay(calendar)) {
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                continue;
+            }
+
+            if (!hours.get(calendar.get(Calendar.HOUR_OF_DAY))) {
+                calendar.add(Calendar.HOUR_OF_DAY, 1);
+                calendar.set(Calendar.MINUTE, 0);
+                continue;
+            }
+
+            if (!minutes.get(calendar.get(Calendar.MINUTE))) {
+                calendar.add(Calendar.MINUTE, 1);
+                continue;
+            }
+
+            return calendar.getTimeInMillis();
+        }
+
+        throw new IllegalStateException("Schedule \"" + expression + "\" never matches.");
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+
+    private boolean matchesDay(Calendar calendar)
+    {
+        final boolean dayOfMonth = daysOfMonth.get(calendar.get(Calendar.DAY_OF_MONTH));
+        final boolean dayOfWeek = daysOfWeek.get(calendar.get(Calendar.DAY_OF_WEEK) - 1);
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dayOfMonth && dayOfWeek;
+        }
+        return dayOfMonth || dayOfWeek;
+    }
+
+    private static String expandShortcut(String expression)
+    {
+        if (expression.equals("@hourly")) {
+            return "0 * * * *";
+        }
+        if (expression.equals("@daily")) {
+            return "0 0 * * *";
+        }
+        if (expression.equals("@weekly")) {
+            return "0 0 * * 0";
+        }
+        if (expression.equals("@monthly")) {
+            return "0 0 1 * *";
+        }
+        return expression;
+    }
+
+    private static BitSet parseField(String field, int min, int max, String expression)
+    {
+        final BitSet values = new BitSet(max + 1);
+        for (String part : StringUtils.split(field, ',')) {
+            int step = 1;
+            final int slash = part.indexOf('/');
+            if (slash != -1) {
+                step = parseNumber(part.substring(slash + 1), 1, max, expression);
+                part = part.substring(0, slash);
+            }
+
+            int start;
+            int end;
+            if (part.equals("*")) {
+                start = min;
+                end = max;
+            } else if (part.indexOf('-') != -1) {
+                start = parseNumber(part.substring(0, part.indexOf('-')), min, max, expression);
+                end = parseNumber(part.substring(part.indexOf('-') + 1), start, max, expression);
+            } else {
+                start = parseNumber(part, min, max, expression);
+                end = slash != -1 ? max : start;
+            }
+
+            for (int i = start; i <= end; i += step) {
+                values.set(i);
+            }
+        }
+        return values;
+    }
+
+    private static int parseNumber(String number, int min, int max, String expression)
+    {
+        try {
+            final int value = Integer.parseInt(number);
+            if (value < min || value > max) {
+                throw new IllegalArgumentException("Schedule \"" + expression + "\" has " + value + " where a value from " + min + " to " + max + " is expected.");
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Schedule \"" + expression + "\" has \"" + number + "\" where a number is expected.");
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.socrata.tools.utils;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a CSV file into row aligned chunks, so that each chunk can be uploaded on its own.
+ *
+ * The file is scanned once through memory mapped windows.  The scan keeps track of whether it is
+ * inside a quoted field, so newlines embedded in quoted values never end a chunk.  Since both '"' and
+ * '\n' are single byte characters in UTF-8, this works on the raw bytes without any decoding.
+ *
+ * The first row of the file is treated as the header, and is returned separately so that
+ * it can be repeated at the front of each chunk.
+ */
+public class CsvChunker
+{
+    /**
+     * The size of the window that is mapped at one time while scanning for row boundaries.
+     */
+    static final int SCAN_WINDOW = 64 * 1024 * 1024;
+
+    /**
+     * The largest chunk allowed, since a single chunk has to fit in one MappedByteBuffer.
+     */
+    public static final long MAX_CHUNK_SIZE = 1024L * 1024L * 1024L;
+
+    /**
+     * A region of the file that starts at the beginning of a row and ends right after a row.
+     */
+    public static class Chunk
+    {
+        public final long start;
+        public final long end;
+
+        public Chunk(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getLength()
+        {
+            return end - start;
+        }
+
+        /**
+         * Maps this chunk of the file into memory.
+         */
+        public MappedByteBuffer map(FileChannel channel) throws IOException
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, getLength());
+        }
+    }
+
+    final byte[]        header;
+    final List<Chunk>   chunks;
+
+    private CsvChunker(byte[] header, List<Chunk> chunks)
+    {
+        this.header = header;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Scans a CSV file and figures out the chunk boundaries.
+     *
+     * @param channel channel for the file to split
+     * @param chunkSize target size of each chunk in bytes.  Chunks end at the first row boundary past this size.
+     * @return the header row + the chunks of the file after the header.
+     */
+    public static CsvChunker split(FileChannel channel, long chunkSize) throws IOException
+    {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + " bytes.");
+        }
+
+        final long        size = channel.size();
+        final List<Chunk> chunks = Lists.newArrayList();
+
+        boolean     inQuotes = false;
+        long        headerEnd = -1;
+        long        chunkStart = -1;
+
+        for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW) {
+            final int windowLength = (int) Math.min(SCAN_WINDOW, size - windowStart);
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+
+            for (int i = 0; i < windowLength; i++) {
+                final byte b = window.get(i);
+                if (b == '"') {
+                    inQuotes = !inQuotes;
+                } else if (b == '\n' && !inQuotes) {
+                    final long rowEnd = windowStart + i + 1;
+                    if (headerEnd < 0) {
+                        headerEnd = rowEnd;
+                        chunkStart = rowEnd;
+                    } else if (rowEnd - chunkStart >= chunkSize) {
+                        chunks.add(new Chunk(chunkStart, rowEnd));
+                        chunkStart = rowEnd;
+                    }
+                }
+            }
+        }
+
+        if (headerEnd < 0) {
+            //The whole file is the header
+            headerEnd = size;
+            chunkStart = size;
+        }
+
+        if (chunkStart < size) {
+            chunks.add(new Chunk(chunkStart, size));
+        }
+
+        final byte[] header = new byte[(int) headerEnd];
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd).get(header);
+        return new CsvChunker(withTrailingNewline(header), chunks);
+    }
+
+    public byte[] getHeader()
+    {
+        return header;
+    }
+
+    public List<Chunk> getChunks()
+    {
+        return chunks;
+    }
+
+    private static byte[] withTrailingNewline(byte[] header)
+    {
+        if (header.length == 0 || header[header.length - 1] == '\n') {
+            return header;
+        }
+
+        final byte[] retVal = Arrays.copyOf(header, header.length + 1);
+        retVal[header.length] = '\n';
+        return retVal;
+    }
+}
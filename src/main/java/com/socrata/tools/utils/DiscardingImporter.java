@@ -0,0 +1,141 @@
+package com.socrata.tools.utils;
+
+import com.google.common.collect.Lists;
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.SodaImporter;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.importer.Column;
+import com.socrata.model.importer.Dataset;
+import com.socrata.model.importer.DatasetInfo;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A SodaImporter for dry runs.  Datasets are created, changed and published only in memory, and files
+ * that would be imported are read to the end and thrown away, with their rows and bytes recorded as
+ * the "sink" stage of a StageTimer.  Nothing is written to the domain.
+ *
+ * Datasets created during the dry run get made up ids like dryr-0001.  Loading any other dataset still
+ * goes to the domain, so updates of existing datasets see their real schema.
+ */
+public class DiscardingImporter extends SodaImporter
+{
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    final StageTimer                stageTimer;
+    final Map<String, DatasetInfo>  datasets = new ConcurrentHashMap<String, DatasetInfo>();
+    final AtomicInteger             createdCount = new AtomicInteger();
+
+    public DiscardingImporter(HttpLowLevel httpLowLevel, StageTimer stageTimer)
+    {
+        super(httpLowLevel);
+        this.stageTimer = stageTimer;
+    }
+
+    @Override
+    public DatasetInfo loadDatasetInfo(String id) throws SodaError, InterruptedException
+    {
+        final DatasetInfo known = datasets.get(id);
+        if (known != null) {
+            return known;
+        }
+
+        final DatasetInfo loaded = super.loadDatasetInfo(id);
+        datasets.put(id, loaded);
+        return loaded;
+    }
+
+    @Override
+    public DatasetInfo createDataset(DatasetInfo dataset) throws SodaError, InterruptedException
+    {
+        final DatasetInfo created = withId(dataset, String.format("dryr-%04d", createdCount.incrementAndGet()));
+        datasets.put(created.getId(), created);
+        return created;
+    }
+
+    @Override
+    public DatasetInfo updateDatasetInfo(DatasetInfo dataset) throws SodaError, InterruptedException
+    {
+        return dataset;
+    }
+
+    @Override
+    public Column addColumn(String id, Column column) throws SodaError, InterruptedException
+    {
+        final DatasetInfo dataset = loadDatasetInfo(id);
+        if (dataset instanceof Dataset) {
+            final List<Column> columns = ((Dataset) dataset).getColumns() != null ? Lists.newArrayList(((Dataset) dataset).getColumns()) : Lists.<Column>newArrayList();
+            columns.add(column);
+            ((Dataset) dataset).setColumns(columns);
+        }
+        return column;
+    }
+
+    @Override
+    public DatasetInfo publish(String id) throws SodaError, InterruptedException
+    {
+        return loadDatasetInfo(id);
+    }
+
+    @Override
+    public DatasetInfo createWorkingCopy(String id) throws SodaError, InterruptedException
+    {
+        return loadDatasetInfo(id);
+    }
+
+    @Override
+    public void deleteDataset(String id) throws SodaError, InterruptedException
+    {
+        datasets.remove(id);
+    }
+
+    @Override
+    public DatasetInfo append(String id, File file, int skip, String translation) throws SodaError, InterruptedException, IOException
+    {
+        DiscardingProducer.discard(stageTimer, HttpLowLevel.CSV_TYPE, open(file));
+        return loadDatasetInfo(id);
+    }
+
+    @Override
+    public DatasetInfo replace(String id, File file, int skip, String translation) throws SodaError, InterruptedException, IOException
+    {
+        DiscardingProducer.discard(stageTimer, HttpLowLevel.CSV_TYPE, open(file));
+        return loadDatasetInfo(id);
+    }
+
+    private static InputStream open(File file) throws IOException
+    {
+        final InputStream is = new MappedFileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            return new BufferedInputStream(new GZIPInputStream(is, DiscardingProducer.BUFFER_SIZE), DiscardingProducer.BUFFER_SIZE);
+        }
+        return is;
+    }
+
+    /**
+     * Copies a dataset with a different id, by round tripping it through JSON the same way it's
+     * read from the domain.
+     */
+    private static DatasetInfo withId(DatasetInfo dataset, String id) throws SodaError
+    {
+        try {
+            final ObjectNode node = OBJECT_MAPPER.valueToTree(dataset);
+            node.put("id", id);
+            return OBJECT_MAPPER.treeToValue(node, DatasetInfo.class);
+        } catch (IOException e) {
+            throw new SodaError("Unable to make up the dry run dataset " + id + ": " + e.getMessage());
+        }
+    }
+}
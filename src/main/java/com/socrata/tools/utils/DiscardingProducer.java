@@ -0,0 +1,131 @@
+package com.socrata.tools.utils;
+
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Producer;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.UpsertResult;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A Soda2Producer for dry runs.  Everything that would be upserted is read to the end and thrown away,
+ * so the rest of a job runs exactly as it would, but nothing is written to the domain.  The rows and
+ * bytes read are recorded as the "sink" stage of a StageTimer.
+ *
+ * Queries still go to the domain, so anything that reads a dataset works as usual.
+ */
+public class DiscardingProducer extends Soda2Producer
+{
+    public static final String SINK_STAGE = "sink";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    final StageTimer stageTimer;
+
+    public DiscardingProducer(HttpLowLevel httpLowLevel, StageTimer stageTimer)
+    {
+        super(httpLowLevel);
+        this.stageTimer = stageTimer;
+    }
+
+    @Override
+    public UpsertResult upsertStream(String resourceId, MediaType mediaType, InputStream stream) throws SodaError, InterruptedException
+    {
+        return new UpsertResult(discard(stageTimer, mediaType, stream), 0, 0, null);
+    }
+
+    @Override
+    public UpsertResult replaceStream(String resourceId, MediaType mediaType, InputStream stream) throws SodaError, InterruptedException
+    {
+        return new UpsertResult(discard(stageTimer, mediaType, stream), 0, 0, null);
+    }
+
+    @Override
+    public UpsertResult upsert(String resourceId, List objects) throws SodaError, InterruptedException
+    {
+        stageTimer.record(SINK_STAGE, System.nanoTime(), objects.size(), 0);
+        return new UpsertResult(objects.size(), 0, 0, null);
+    }
+
+    @Override
+    public UpsertResult replace(String resourceId, List objects) throws SodaError, InterruptedException
+    {
+        stageTimer.record(SINK_STAGE, System.nanoTime(), objects.size(), 0);
+        return new UpsertResult(objects.size(), 0, 0, null);
+    }
+
+    /**
+     * Reads a stream of CSV or JSON rows to the end, counting the rows in it as it goes.
+     *
+     * @param stageTimer where to record the rows and bytes read
+     * @param mediaType the format of the rows.  CSV is expected to start with a header row, and JSON
+     *                  to be an array of objects.
+     * @param stream the rows
+     * @return the number of rows read
+     */
+    static long discard(StageTimer stageTimer, MediaType mediaType, InputStream stream) throws SodaError
+    {
+        final long      start = System.nanoTime();
+        final boolean   csv = HttpLowLevel.CSV_TYPE.isCompatible(mediaType);
+        final byte[]    buffer = new byte[BUFFER_SIZE];
+
+        long    bytes = 0;
+        long    records = 0;
+        int     depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int     last = '\n';
+
+        try {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                bytes += read;
+                for (int i=0; i<read; i++) {
+                    final int c = buffer[i];
+                    if (csv) {
+                        //A quoted field can have newlines in it, and "" inside quotes just toggles twice
+                        if (c == '"') {
+                            inString = !inString;
+                        } else if (c == '\n' && !inString) {
+                            records++;
+                        }
+                    } else if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"') {
+                            inString = false;
+                        }
+                    } else if (c == '"') {
+                        inString = true;
+                    } else if (c == '{' || c == '[') {
+                        if (c == '{' && depth == 1) {
+                            records++;
+                        }
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    last = c;
+                }
+            }
+        } catch (IOException e) {
+            throw new SodaError("Failed reading rows for the dry run: " + e.getMessage());
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                //Everything has already been read
+            }
+        }
+
+        //The last CSV record may not end with a newline, and the first one is the header
+        final long rows = !csv ? records : Math.max(0, records + (last != '\n' ? 1 : 0) - 1);
+        stageTimer.record(SINK_STAGE, start, rows, bytes);
+        return rows;
+    }
+}
@@ -0,0 +1,235 @@
+package com.socrata.tools.utils;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts a stream of row keys that may be too large to hold in memory.
+ *
+ * Keys are collected in memory until there are maxInMemory of them, then sorted and spilled to a
+ * temp file.  sortedKeys() merges the spilled runs (and whatever is still in memory) back together,
+ * returning each distinct key once, in String order.  Memory use is bounded by maxInMemory keys,
+ * plus one key per spilled run while merging.
+ *
+ * Keys are written to the runs as a length followed by their UTF-8 bytes, so there is no limit on
+ * the length of a key.  The temp files are deleted on close().
+ */
+public class ExternalKeySorter implements Closeable
+{
+    public static final int DEFAULT_MAX_IN_MEMORY = 500000;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final int           maxInMemory;
+    final List<String>  buffer = Lists.newArrayList();
+    final List<File>    runs = Lists.newArrayList();
+    final List<Integer> runSizes = Lists.newArrayList();
+
+    long    size;
+
+    public ExternalKeySorter()
+    {
+        this(DEFAULT_MAX_IN_MEMORY);
+    }
+
+    public ExternalKeySorter(int maxInMemory)
+    {
+        this.maxInMemory = maxInMemory;
+    }
+
+    public void add(String key) throws IOException
+    {
+        buffer.add(key);
+        size++;
+        if (buffer.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    public void addAll(Iterator<String> keys) throws IOException
+    {
+        while (keys.hasNext()) {
+            add(keys.next());
+        }
+    }
+
+    /**
+     * @return the number of keys added, including duplicates.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the distinct keys that have been added, in sorted order.  This can be called more than
+     * once, to walk the keys again, but no keys should be added after it has been called.
+     */
+    public Iterator<String> sortedKeys() throws IOException
+    {
+        Collections.sort(buffer);
+
+        final List<PeekingRun> cursors = Lists.newArrayList();
+        cursors.add(new PeekingRun(buffer.iterator()));
+        for (int i=0; i<runs.size(); i++) {
+            cursors.add(new PeekingRun(readRun(runs.get(i), runSizes.get(i))));
+        }
+
+        final PriorityQueue<PeekingRun> queue = new PriorityQueue<PeekingRun>(cursors.size(), new Comparator<PeekingRun>()
+        {
+            public int compare(PeekingRun o1, PeekingRun o2)
+            {
+                return o1.current.compareTo(o2.current);
+            }
+        });
+        for (PeekingRun cursor : cursors) {
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+
+        return new AbstractIterator<String>()
+        {
+            String last;
+
+            @Override
+            protected String computeNext()
+            {
+                while (!queue.isEmpty()) {
+                    final PeekingRun cursor = queue.poll();
+                    final String key = cursor.current;
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+
+                    if (!key.equals(last)) {
+                        last = key;
+                        return key;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    public void close()
+    {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        runSizes.clear();
+        buffer.clear();
+    }
+
+    /**
+     * Sorts the keys in memory, and writes them out to a new run file.
+     */
+    private void spill() throws IOException
+    {
+        Collections.sort(buffer);
+
+        final File run = File.createTempFile("SocrataKeys", ".run");
+        run.deleteOnExit();
+
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+        try {
+            for (String key : buffer) {
+                final byte[] bytes = key.getBytes(UTF_8);
+                os.writeInt(bytes.length);
+                os.write(bytes);
+            }
+        } finally {
+            os.close();
+        }
+
+        runs.add(run);
+        runSizes.add(buffer.size());
+        buffer.clear();
+    }
+
+    private static Iterator<String> readRun(final File run, final int runSize) throws IOException
+    {
+        final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 64 * 1024));
+        return new AbstractIterator<String>()
+        {
+            int read;
+
+            @Override
+            protected String computeNext()
+            {
+                try {
+                    if (read == runSize) {
+                        is.close();
+                        return endOfData();
+                    }
+                    read++;
+                    final byte[] bytes = new byte[is.readInt()];
+                    is.readFully(bytes);
+                    return new String(bytes, UTF_8);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read sorted keys from " + run, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * A sorted run, along with the key it's currently positioned on.
+     */
+    private static class PeekingRun
+    {
+        final Iterator<String>  keys;
+        String                  current;
+
+        PeekingRun(Iterator<String> keys)
+        {
+            this.keys = keys;
+        }
+
+        boolean advance()
+        {
+            current = keys.hasNext() ? keys.next() : null;
+            return current != null;
+        }
+    }
+
+    /**
+     * Walks two sorted, distinct key iterators, and returns the keys that are in the first but not the second.
+     *
+     * @param keys the keys to look through
+     * @param toRemove the keys to leave out
+     * @return the sorted keys that are in keys, but not in toRemove.
+     */
+    public static Iterator<String> difference(final Iterator<String> keys, final Iterator<String> toRemove)
+    {
+        return new AbstractIterator<String>()
+        {
+            String removeCurrent = toRemove.hasNext() ? toRemove.next() : null;
+
+            @Override
+            protected String computeNext()
+            {
+                while (keys.hasNext()) {
+                    final String key = keys.next();
+                    while (removeCurrent != null && removeCurrent.compareTo(key) < 0) {
+                        removeCurrent = toRemove.hasNext() ? toRemove.next() : null;
+                    }
+
+                    if (removeCurrent == null || !removeCurrent.equals(key)) {
+                        return key;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+}
@@ -0,0 +1,50 @@
+package com.socrata.tools.utils;
+
+import com.sun.jersey.api.client.AbstractClientRequestAdapter;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientRequestAdapter;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the body of every request that has one, with Content-Encoding: gzip.
+ *
+ * The body is compressed as it's written to the connection, so large upserts are never held in memory
+ * either whole or compressed.  Requests that already have a Content-Encoding are left alone.
+ *
+ * Jersey's GZIPContentEncodingFilter can do this too, but only together with asking for compressed
+ * responses, and the two are switched on separately for each domain.
+ */
+public class GzipRequestFilter extends ClientFilter
+{
+    public static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public ClientResponse handle(ClientRequest request) throws ClientHandlerException
+    {
+        if (request.getEntity() != null && !request.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            request.getHeaders().add(HttpHeaders.CONTENT_ENCODING, "gzip");
+            request.setAdapter(new GzipAdapter(request.getAdapter()));
+        }
+        return getNext().handle(request);
+    }
+
+    static class GzipAdapter extends AbstractClientRequestAdapter
+    {
+        GzipAdapter(ClientRequestAdapter adapter)
+        {
+            super(adapter);
+        }
+
+        public OutputStream adapt(ClientRequest request, OutputStream out) throws IOException
+        {
+            return new GZIPOutputStream(getAdapter().adapt(request, out), GZIP_BUFFER_SIZE);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.socrata.tools.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An InputStream over a file that reads through memory mapped windows instead of read() calls.
+ *
+ * The data is copied straight out of the page cache into the caller's buffer, so there is a
+ * single copy per byte and no syscall per read.  Files larger than a single window are mapped one
+ * window at a time, so this works on files of any size.
+ */
+public class MappedFileInputStream extends InputStream
+{
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile  file;
+    private final FileChannel       channel;
+    private final long              size;
+    private final int               windowSize;
+
+    private long                position;
+    private MappedByteBuffer    window;
+
+    public MappedFileInputStream(File file) throws IOException
+    {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedFileInputStream(File file, int windowSize) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!assureWindow()) {
+            return -1;
+        }
+        return window.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!assureWindow()) {
+            return -1;
+        }
+
+        final int toRead = Math.min(len, window.remaining());
+        window.get(bytes, off, toRead);
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        final long toSkip = Math.max(0, Math.min(n, remaining()));
+        if (window != null && toSkip <= window.remaining()) {
+            window.position(window.position() + (int) toSkip);
+        } else {
+            position = offset() + toSkip;
+            window = null;
+        }
+        return toSkip;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int) Math.min(Integer.MAX_VALUE, remaining());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        window = null;
+        file.close();
+    }
+
+    /**
+     * @return the offset in the file of the next byte to be read.  position is where the current
+     *         window ends, not where reading is.
+     */
+    private long offset()
+    {
+        return window != null ? position - window.remaining() : position;
+    }
+
+    /**
+     * @return the number of bytes left in the file, which can be more than available() reports.
+     */
+    private long remaining()
+    {
+        return size - offset();
+    }
+
+    /**
+     * Makes sure there is a window with data left in it, mapping the next one if needed.
+     *
+     * @return false if the end of the file has been reached.
+     */
+    private boolean assureWindow() throws IOException
+    {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+
+        if (position >= size) {
+            return false;
+        }
+
+        final int length = (int) Math.min(windowSize, size - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        position += length;
+        return true;
+    }
+}
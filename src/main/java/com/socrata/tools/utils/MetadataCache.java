@@ -0,0 +1,278 @@
+package com.socrata.tools.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.socrata.api.SodaDdl;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.importer.DatasetInfo;
+import com.socrata.tools.model.SocrataConnectionInfo;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps dataset metadata on disk between runs, so batch jobs and retries don't fetch the metadata
+ * of the same datasets over and over.
+ *
+ * Entries are kept in a directory per domain, one file per dataset, e.g.
+ * ~/.socrata/cache/data.example.gov/abcd-1234.json.  An entry younger than the TTL is used as is.
+ * An older entry is revalidated with a conditional request (If-None-Match / If-Modified-Since), so
+ * unchanged metadata costs a 304 rather than the whole view.  If the domain doesn't answer the
+ * conditional request, the metadata is loaded through SodaDdl as usual.
+ *
+ * Each hit touches the entry's file, and once there are more than maxEntries files the least
+ * recently used ones are deleted.
+ */
+public class MetadataCache
+{
+    public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+    public static final int  DEFAULT_MAX_ENTRIES = 1000;
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    static final FileFilter ENTRY_FILTER = new FileFilter()
+    {
+        public boolean accept(File file)
+        {
+            return file.isFile() && file.getName().endsWith(".json");
+        }
+    };
+
+    final File  dir;
+    final long  ttl;
+    final int   maxEntries;
+
+    /**
+     * The cached metadata of one dataset, as it's stored on disk.
+     */
+    public static class Entry
+    {
+        public final long   fetchedAt;
+        public final String etag;
+        public final String lastModified;
+        public final String body;
+
+        @JsonCreator
+        public Entry(@JsonProperty("fetchedAt") long fetchedAt,
+                     @JsonProperty("etag") String etag,
+                     @JsonProperty("lastModified") String lastModified,
+                     @JsonProperty("body") String body)
+        {
+            this.fetchedAt = fetchedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+
+    public MetadataCache(long ttl)
+    {
+        this(defaultCacheDir(), ttl, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param dir the directory to keep the entries in
+     * @param ttl how long, in milliseconds, an entry is used before it's revalidated
+     * @param maxEntries the most entries kept, across all domains
+     */
+    public MetadataCache(File dir, long ttl, int maxEntries)
+    {
+        this.dir = dir;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    static public File defaultCacheDir()
+    {
+        return new File(new File(FileUtils.getUserDirectory(), ".socrata"), "cache");
+    }
+
+    /**
+     * Loads the metadata of a dataset, from the cache if it's there and still valid.
+     *
+     * @param ddl the ddl for the domain, used for its http client and to fall back on
+     * @param domain the url of the domain
+     * @param connectionInfo the credentials for the domain
+     * @param datasetId the dataset to load
+     * @return the dataset's metadata
+     */
+    public DatasetInfo load(SodaDdl ddl, String domain, SocrataConnectionInfo connectionInfo, String datasetId) throws SodaError, InterruptedException
+    {
+        final File  file = entryFile(domain, datasetId);
+        final Entry entry = read(file);
+        final long  now = System.currentTimeMillis();
+
+        if (entry != null && now - entry.fetchedAt < ttl) {
+            final DatasetInfo cached = parse(entry.body);
+            if (cached != null) {
+                file.setLastModified(now);
+                return cached;
+            }
+        }
+
+        final ClientResponse response = conditionalGet(ddl, domain, connectionInfo, datasetId, entry);
+        if (response != null) {
+            try {
+                if (response.getStatus() == ClientResponse.Status.NOT_MODIFIED.getStatusCode() && entry != null) {
+                    final DatasetInfo cached = parse(entry.body);
+                    if (cached != null) {
+                        write(file, new Entry(now, entry.etag, entry.lastModified, entry.body));
+                        return cached;
+                    }
+                } else if (response.getStatus() == ClientResponse.Status.OK.getStatusCode()) {
+                    final String body = response.getEntity(String.class);
+                    final DatasetInfo fetched = parse(body);
+                    if (fetched != null) {
+                        write(file, new Entry(now,
+                                              response.getHeaders().getFirst(HttpHeaders.ETAG),
+                                              response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED),
+                                              body));
+                        return fetched;
+                    }
+                }
+            } finally {
+                response.close();
+            }
+        }
+
+        final DatasetInfo loaded = ddl.loadDatasetInfo(datasetId);
+        put(domain, loaded);
+        return loaded;
+    }
+
+    /**
+     * Stores metadata that was loaded some other way, e.g. returned by publish.  It has no validators,
+     * so it's loaded again in full once it's older than the TTL.
+     */
+    public void put(String domain, DatasetInfo datasetInfo)
+    {
+        try {
+            write(entryFile(domain, datasetInfo.getId()), new Entry(System.currentTimeMillis(), null, null, OBJECT_MAPPER.writeValueAsString(datasetInfo)));
+        } catch (IOException e) {
+            //The cache is only an optimization, so failing to write to it isn't an error
+        }
+    }
+
+    public void invalidate(String domain, String datasetId)
+    {
+        entryFile(domain, datasetId).delete();
+    }
+
+    private ClientResponse conditionalGet(SodaDdl ddl, String domain, SocrataConnectionInfo connectionInfo, String datasetId, Entry entry)
+    {
+        try {
+            WebResource.Builder request = ddl.getHttpLowLevel().getClient()
+                    .resource(StringUtils.removeEnd(domain, "/") + "/api/views/" + datasetId + ".json")
+                    .accept(MediaType.APPLICATION_JSON_TYPE)
+                    .header("X-App-Token", connectionInfo.getToken());
+            if (entry != null && entry.etag != null) {
+                request = request.header(HttpHeaders.IF_NONE_MATCH, entry.etag);
+            }
+            if (entry != null && entry.lastModified != null) {
+                request = request.header(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+            }
+            return request.get(ClientResponse.class);
+        } catch (ClientHandlerException e) {
+            return null;
+        }
+    }
+
+    private static DatasetInfo parse(String body)
+    {
+        try {
+            return OBJECT_MAPPER.readValue(body, DatasetInfo.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Entry read(File file)
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            return OBJECT_MAPPER.readValue(file, Entry.class);
+        } catch (IOException e) {
+            //A corrupt entry is just a miss
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry to a temp file and moves it into place, so copies running at the same time
+     * never see half an entry.
+     */
+    private void write(File file, Entry entry)
+    {
+        try {
+            Files.createParentDirs(file);
+            final File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            OBJECT_MAPPER.writeValue(tmp, entry);
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                }
+            }
+            evict();
+        } catch (IOException e) {
+            //The cache is only an optimization, so failing to write to it isn't an error
+        }
+    }
+
+    private synchronized void evict()
+    {
+        final List<File> entries = Lists.newArrayList();
+        final File[] domainDirs = dir.listFiles();
+        if (domainDirs == null) {
+            return;
+        }
+
+        for (File domainDir : domainDirs) {
+            final File[] files = domainDir.listFiles(ENTRY_FILTER);
+            if (files != null) {
+                Collections.addAll(entries, files);
+            }
+        }
+
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+
+        Collections.sort(entries, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        for (File file : entries.subList(0, entries.size() - maxEntries)) {
+            file.delete();
+        }
+    }
+
+    private File entryFile(String domain, String datasetId)
+    {
+        final String host = StringUtils.removeEnd(StringUtils.substringAfter(domain, "://"), "/");
+        return new File(new File(dir, (StringUtils.isEmpty(host) ? domain : host).replaceAll("[^A-Za-z0-9.-]", "_")),
+                        datasetId.replaceAll("[^A-Za-z0-9-]", "_") + ".json");
+    }
+}
@@ -0,0 +1,60 @@
+package com.socrata.tools.utils;
+
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Consumer;
+import com.socrata.api.Soda2Producer;
+import com.socrata.api.SodaDdl;
+import com.socrata.api.SodaImporter;
+import com.socrata.tools.model.SocrataConnectionInfo;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
+
+/**
+ * Creates the soda-api clients for a domain, with the compression switched on in its connection info.
+ *
+ * With gzipResponses, queries send Accept-Encoding: gzip and compressed results are inflated as they
+ * are read.  With gzipRequests, upsert and import bodies are compressed as they are sent.
+ */
+public class SodaClients
+{
+    static public HttpLowLevel newHttpLowLevel(String domain, SocrataConnectionInfo connectionInfo)
+    {
+        final HttpLowLevel httpLowLevel = HttpLowLevel.instantiateBasic(domain,
+                                                                        connectionInfo.getUser(),
+                                                                        connectionInfo.getPassword(),
+                                                                        connectionInfo.getToken());
+        final Client client = httpLowLevel.getClient();
+        if (connectionInfo.isGzipResponses()) {
+            client.addFilter(new GZIPContentEncodingFilter(false));
+        }
+        if (connectionInfo.isGzipRequests()) {
+            client.addFilter(new GzipRequestFilter());
+        }
+        return httpLowLevel;
+    }
+
+    static public HttpLowLevel newHttpLowLevel(SocrataConnectionInfo connectionInfo)
+    {
+        return newHttpLowLevel(connectionInfo.getUrl(), connectionInfo);
+    }
+
+    static public Soda2Consumer newConsumer(String domain, SocrataConnectionInfo connectionInfo)
+    {
+        return new Soda2Consumer(newHttpLowLevel(domain, connectionInfo));
+    }
+
+    static public Soda2Producer newProducer(String domain, SocrataConnectionInfo connectionInfo)
+    {
+        return new Soda2Producer(newHttpLowLevel(domain, connectionInfo));
+    }
+
+    static public SodaDdl newDdl(String domain, SocrataConnectionInfo connectionInfo)
+    {
+        return new SodaDdl(newHttpLowLevel(domain, connectionInfo));
+    }
+
+    static public SodaImporter newImporter(String domain, SocrataConnectionInfo connectionInfo)
+    {
+        return new SodaImporter(newHttpLowLevel(domain, connectionInfo));
+    }
+}
@@ -0,0 +1,69 @@
+package com.socrata.tools.utils;
+
+import com.socrata.api.HttpLowLevel;
+import com.socrata.api.Soda2Consumer;
+import com.socrata.builders.SoqlQueryBuilder;
+import com.socrata.exceptions.LongRunningQueryException;
+import com.socrata.exceptions.SodaError;
+import com.sun.jersey.api.client.ClientResponse;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small SoQL queries that are used to make decisions about how to move data around.
+ */
+public class SodaQueries
+{
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    static final TypeReference<List<Map<String, Object>>> ROWS_TYPE = new TypeReference<List<Map<String, Object>>>() {};
+
+    /**
+     * Counts the rows in a dataset with a count(*) query, so no rows have to be downloaded.
+     *
+     * @param consumer consumer for the domain the dataset is on
+     * @param datasetId the dataset to count
+     * @return the number of rows in the dataset
+     */
+    static public long countRows(Soda2Consumer consumer, String datasetId) throws LongRunningQueryException, SodaError, IOException
+    {
+        return countRows(consumer, datasetId, SourceQuery.ALL);
+    }
+
+    /**
+     * Counts the rows in a dataset that match a source query.
+     *
+     * @param consumer consumer for the domain the dataset is on
+     * @param datasetId the dataset to count
+     * @param sourceQuery the rows to count
+     * @return the number of matching rows
+     */
+    static public long countRows(Soda2Consumer consumer, String datasetId, SourceQuery sourceQuery) throws LongRunningQueryException, SodaError, IOException
+    {
+        final List<Map<String, Object>> rows = queryRows(consumer, datasetId, sourceQuery.newFilteredBuilder().addSelectPhrase("count(*)"));
+        if (rows.isEmpty() || rows.get(0).isEmpty()) {
+            return 0;
+        }
+
+        final Object count = rows.get(0).values().iterator().next();
+        return count == null ? 0 : Long.parseLong(count.toString());
+    }
+
+    /**
+     * Issues a query and reads the results as a list of maps from field name to value.
+     */
+    static public List<Map<String, Object>> queryRows(Soda2Consumer consumer, String datasetId, SoqlQueryBuilder query) throws LongRunningQueryException, SodaError, IOException
+    {
+        final ClientResponse response = consumer.query(datasetId, HttpLowLevel.JSON_TYPE, query.build());
+        final InputStream is = response.getEntityInputStream();
+        try {
+            return OBJECT_MAPPER.readValue(is, ROWS_TYPE);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.socrata.tools.utils;
+
+import com.google.common.collect.Lists;
+import com.socrata.builders.SoqlQueryBuilder;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.importer.Column;
+import com.socrata.model.importer.Dataset;
+import com.socrata.model.soql.ConditionalExpression;
+import com.socrata.model.soql.SoqlQuery;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of a source dataset to read: which columns ($select) and which rows ($where).
+ *
+ * Every query made against the source goes through this, so only the selected columns of the matching
+ * rows are ever sent over the network.  The destination schema is cut down to the same columns.
+ */
+public class SourceQuery
+{
+    /**
+     * Every column of every row.
+     */
+    public static final SourceQuery ALL = new SourceQuery(null, null);
+
+    final List<String>  columns;
+    final String        where;
+
+    /**
+     * @param columns the field names of the columns to read, or null for all of them
+     * @param where a SoQL where clause for the rows to read, or null for all of them
+     */
+    public SourceQuery(List<String> columns, String where)
+    {
+        this.columns = columns == null ? null : Collections.unmodifiableList(Lists.newArrayList(columns));
+        this.where = StringUtils.isBlank(where) ? null : where;
+    }
+
+    /**
+     * Builds a SourceQuery from the command line.
+     *
+     * @param select a comma separated list of field names, or null
+     * @param where a SoQL where clause, or null
+     */
+    public static SourceQuery parse(String select, String where)
+    {
+        if (StringUtils.isBlank(select)) {
+            return new SourceQuery(null, where);
+        }
+
+        final List<String> columns = Lists.newArrayList();
+        for (String column : StringUtils.split(select, ',')) {
+            if (StringUtils.isNotBlank(column)) {
+                columns.add(column.trim());
+            }
+        }
+        return new SourceQuery(columns, where);
+    }
+
+    /**
+     * @return true if this reads less than the whole dataset.
+     */
+    public boolean isFiltered()
+    {
+        return columns != null || where != null;
+    }
+
+    public List<String> getColumns()
+    {
+        return columns;
+    }
+
+    public String getWhere()
+    {
+        return where;
+    }
+
+    /**
+     * @return true if the column with this field name is read.
+     */
+    public boolean includes(String fieldName)
+    {
+        return columns == null || columns.contains(fieldName);
+    }
+
+    /**
+     * @return a builder for reading the selected columns of the matching rows.
+     */
+    public SoqlQueryBuilder newBuilder()
+    {
+        return newBuilder(null);
+    }
+
+    /**
+     * @param and another condition the rows have to match, e.g. a range of :id, or null for none
+     * @return a builder for reading the selected columns of the matching rows that also match and.
+     */
+    public SoqlQueryBuilder newBuilder(String and)
+    {
+        final SoqlQueryBuilder builder = columns == null ?
+                new SoqlQueryBuilder(SoqlQuery.SELECT_ALL) :
+                new SoqlQueryBuilder().setSelectPhrase(Lists.newArrayList(columns));
+        return applyWhere(builder, and);
+    }
+
+    /**
+     * @return a builder that only has the where clause set, for aggregates or key queries over the matching rows.
+     */
+    public SoqlQueryBuilder newFilteredBuilder()
+    {
+        return newFilteredBuilder(null);
+    }
+
+    /**
+     * @param and another condition the rows have to match, or null for none
+     * @return a builder that only has the where clause (and the extra condition) set.
+     */
+    public SoqlQueryBuilder newFilteredBuilder(String and)
+    {
+        return applyWhere(new SoqlQueryBuilder(), and);
+    }
+
+    /**
+     * Cuts the columns of a dataset down to the selected ones, for creating the destination schema.
+     *
+     * @param dataset the source dataset.  This is not changed.
+     * @return a copy of the dataset with only the selected columns, or the dataset itself if all columns are selected.
+     * @throws SodaError if a selected column doesn't exist, or the row identifier isn't selected
+     */
+    public Dataset filterSchema(Dataset dataset) throws SodaError
+    {
+        if (columns == null) {
+            return dataset;
+        }
+
+        final List<Column> selected = Lists.newArrayList();
+        for (String fieldName : columns) {
+            final Column column = findColumn(dataset, fieldName);
+            if (column == null) {
+                throw new SodaError("Dataset " + dataset.getId() + " does not have a column " + fieldName + ".");
+            }
+            selected.add(column);
+        }
+
+        final Column rowIdentifier = dataset.getRowIdentifierColumn();
+        if (rowIdentifier != null && !columns.contains(rowIdentifier.getFieldName())) {
+            throw new SodaError("The row identifier " + rowIdentifier.getFieldName() + " of " + dataset.getId() + " has to be one of the selected columns.");
+        }
+
+        final Dataset filtered = (Dataset) Dataset.copy(dataset);
+        filtered.setColumns(selected);
+        return filtered;
+    }
+
+    private SoqlQueryBuilder applyWhere(SoqlQueryBuilder builder, String and)
+    {
+        if (where != null && and != null) {
+            builder.setWhereClause(new ConditionalExpression("(" + where + ") AND " + and));
+        } else if (where != null || and != null) {
+            builder.setWhereClause(new ConditionalExpression(where != null ? where : and));
+        }
+        return builder;
+    }
+
+    private static Column findColumn(Dataset dataset, String fieldName)
+    {
+        for (Column column : dataset.getColumns()) {
+            if (column.getFieldName().equals(fieldName)) {
+                return column;
+            }
+        }
+        return null;
+    }
+}
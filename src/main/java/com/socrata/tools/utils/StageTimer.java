@@ -0,0 +1,94 @@
+package com.socrata.tools.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds up the time spent in each stage of an import or copy, along with the rows and bytes that went
+ * through it, so the slow stage of a job can be found.
+ *
+ * Stages can be recorded from several threads at once.  The time of a stage is the sum over all the
+ * threads that ran it, so a stage run on four threads can show more time than the whole job took.
+ */
+public class StageTimer
+{
+    /**
+     * The totals for one stage.
+     */
+    public static class Stage
+    {
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        public long getMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+        }
+
+        public long getRows()
+        {
+            return rows.get();
+        }
+
+        public long getBytes()
+        {
+            return bytes.get();
+        }
+    }
+
+    final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+    /**
+     * Adds to the totals of a stage.
+     *
+     * @param stage the name of the stage
+     * @param startNanos when this run of the stage started, from System.nanoTime()
+     * @param rows the rows that went through it, or 0 if the stage doesn't know
+     * @param bytes the bytes that went through it, or 0 if the stage doesn't know
+     */
+    public void record(String stage, long startNanos, long rows, long bytes)
+    {
+        final Stage totals = getStage(stage);
+        totals.nanos.addAndGet(System.nanoTime() - startNanos);
+        totals.rows.addAndGet(rows);
+        totals.bytes.addAndGet(bytes);
+    }
+
+    public synchronized Stage getStage(String stage)
+    {
+        Stage totals = stages.get(stage);
+        if (totals == null) {
+            totals = new Stage();
+            stages.put(stage, totals);
+        }
+        return totals;
+    }
+
+    /**
+     * Writes a line for each stage, in the order they were first recorded.
+     */
+    public synchronized void write(Writer output) throws IOException
+    {
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            final Stage stage = entry.getValue();
+            final long  time = Math.max(1, stage.getMillis());
+            output.write("{stage:" + entry.getKey() +
+                                 ", time:" + stage.getMillis() +
+                                 ", rows:" + stage.getRows() +
+                                 ", bytes:" + stage.getBytes() +
+                                 ", rowsPerSec:" + (stage.getRows() * 1000 / time) +
+                                 ", bytesPerSec:" + (stage.getBytes() * 1000 / time) + "}\n");
+        }
+        output.flush();
+    }
+
+    public synchronized void clear()
+    {
+        stages.clear();
+    }
+}
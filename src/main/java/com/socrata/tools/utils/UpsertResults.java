@@ -0,0 +1,34 @@
+package com.socrata.tools.utils;
+
+import com.google.common.collect.Lists;
+import com.socrata.model.UpsertError;
+import com.socrata.model.UpsertResult;
+
+import java.util.List;
+
+/**
+ * Helpers for working with the results of upserts that were split into multiple requests.
+ */
+public class UpsertResults
+{
+    /**
+     * Adds up the counts (and errors) of a number of upsert results.
+     */
+    static public UpsertResult combine(List<UpsertResult> results)
+    {
+        long                rowsCreated = 0;
+        long                rowsUpdated = 0;
+        long                rowsDeleted = 0;
+        List<UpsertError>   errors = Lists.newArrayList();
+
+        for (UpsertResult result : results) {
+            rowsCreated += result.getRowsCreated();
+            rowsUpdated += result.getRowsUpdated();
+            rowsDeleted += result.getRowsDeleted();
+            if (result.getErrors() != null) {
+                errors.addAll(result.getErrors());
+            }
+        }
+        return new UpsertResult(rowsCreated, rowsUpdated, rowsDeleted, errors);
+    }
+}
@@ -0,0 +1,134 @@
+package com.socrata.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.socrata.api.Soda2Producer;
+import com.socrata.exceptions.SodaError;
+import com.socrata.model.UpsertResult;
+import junit.framework.TestCase;
+
+import javax.ws.rs.core.MediaType;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for ParallelFileUploader, uploading to a producer that fails chunks on demand.
+ */
+public class ParallelFileUploaderTest extends TestCase
+{
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("ParallelFileUploaderTest", ".csv");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("a,b\n1,2\n3,4\n5,6\n".getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testUploadsEveryChunkWithTheHeader() throws Exception
+    {
+        final FakeProducer producer = new FakeProducer();
+        final UpsertResult result = new ParallelFileUploader(producer, 2, 4).upload("abcd-1234", file, null);
+
+        assertEquals(3, result.getRowsCreated());
+        assertEquals(Lists.newArrayList("a,b\n1,2\n", "a,b\n3,4\n", "a,b\n5,6\n"), producer.sortedBodies());
+    }
+
+    public void testRetriesAFailedChunkOnItsOwn() throws Exception
+    {
+        final FakeProducer producer = new FakeProducer();
+        producer.failures.put("a,b\n3,4\n", 1);
+        final UpsertResult result = new ParallelFileUploader(producer, 2, 4, 2).upload("abcd-1234", file, null);
+
+        assertEquals(3, result.getRowsCreated());
+        assertEquals(Lists.newArrayList("a,b\n1,2\n", "a,b\n3,4\n", "a,b\n3,4\n", "a,b\n5,6\n"), producer.sortedBodies());
+    }
+
+    public void testGivesUpAfterMaxAttempts() throws Exception
+    {
+        final FakeProducer producer = new FakeProducer();
+        producer.failures.put("a,b\n5,6\n", 3);
+        try {
+            new ParallelFileUploader(producer, 2, 4, 2).upload("abcd-1234", file, null);
+            fail("Expected the chunk that always fails to fail the upload");
+        } catch (SodaError e) {
+            assertEquals("failed a,b\n5,6\n", e.getMessage());
+        }
+    }
+
+    public void testUsesAPresplitFile() throws Exception
+    {
+        final FakeProducer producer = new FakeProducer();
+        final UpsertResult result = new ParallelFileUploader(producer, 1, 1000).upload("abcd-1234", file, ParallelFileUploader.split(file, 8), null);
+
+        assertEquals(3, result.getRowsCreated());
+        assertEquals(Lists.newArrayList("a,b\n1,2\n3,4\n", "a,b\n5,6\n"), producer.sortedBodies());
+    }
+
+    /**
+     * Records every body it's sent, counting each line after the header as a created row.  A body listed
+     * in failures fails that many times first, alternating between a SodaError and the runtime exceptions
+     * Jersey throws for connection failures.
+     */
+    static class FakeProducer extends Soda2Producer
+    {
+        final List<String>          bodies = Collections.synchronizedList(Lists.<String>newArrayList());
+        final Map<String, Integer>  failures = Collections.synchronizedMap(new HashMap<String, Integer>());
+
+        FakeProducer()
+        {
+            super(null);
+        }
+
+        @Override
+        public UpsertResult upsertStream(String resourceId, MediaType mediaType, InputStream stream) throws SodaError
+        {
+            final String body;
+            try {
+                body = new String(ByteStreams.toByteArray(stream), UTF_8);
+            } catch (IOException e) {
+                throw new SodaError(e.getMessage());
+            }
+            bodies.add(body);
+
+            final Integer failuresLeft = failures.get(body);
+            if (failuresLeft != null && failuresLeft > 0) {
+                failures.put(body, failuresLeft - 1);
+                if (failuresLeft % 2 == 0) {
+                    throw new SodaError("failed " + body);
+                }
+                throw new IllegalStateException("connection reset");
+            }
+
+            final int rows = body.split("\n").length - 1;
+            return new UpsertResult(rows, 0, 0, null);
+        }
+
+        List<String> sortedBodies()
+        {
+            final List<String> sorted = Lists.newArrayList(bodies);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.socrata.tools.importer;
+
+import com.socrata.tools.model.DataImportConfiguration;
+import com.socrata.tools.model.DerivedOutputConfiguration;
+import com.socrata.tools.model.ImportConfiguration;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+
+/**
+ * Tests for ImportDaemon, reloading and rescheduling its configuration.  Nothing here is due for
+ * hours, so no import actually runs.
+ */
+public class ImportDaemonTest extends TestCase
+{
+    static final String CONNECTIONS =
+            "\"jdbcConnectionInfo\" : { \"driverClass\" : \"org.postgresql.Driver\", \"connectionString\" : \"jdbc:postgresql://localhost/test\", \"userName\" : \"user\", \"password\" : \"password\" }, " +
+            "\"socrataConnectionInfo\" : { \"url\" : \"https://localhost\", \"user\" : \"user\", \"password\" : \"password\", \"token\" : \"token\" }, ";
+
+    //Never due within a test run
+    static final String SCHEDULE = "\"schedule\" : \"0 0 1 1 *\"";
+
+    File            configFile;
+    ImportDaemon    importDaemon;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        configFile = File.createTempFile("ImportDaemonTest", ".json");
+        importDaemon = new ImportDaemon(configFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        importDaemon.close();
+        configFile.delete();
+    }
+
+    public void testSchedulesOnlyEntriesThatUpdateExistingDatasets() throws IOException
+    {
+        writeConfig("\"scheduled\" : { \"importQuery\" : \"select 1\", \"datasetId\" : \"abcd-1234\", " + SCHEDULE + " }, " +
+                    "\"unscheduled\" : { \"importQuery\" : \"select 2\", \"datasetId\" : \"abcd-1235\" }, " +
+                    "\"newDataset\" : { \"importQuery\" : \"select 3\", " + SCHEDULE + " }, " +
+                    "\"badSchedule\" : { \"importQuery\" : \"select 4\", \"datasetId\" : \"abcd-1236\", \"schedule\" : \"not a schedule\" }");
+        importDaemon.reload();
+
+        assertEquals(4, importDaemon.importConfiguration.getDatasetsToImport().size());
+        assertEquals(1, importDaemon.scheduled.size());
+    }
+
+    public void testUnchangedConfigIsNotReloaded() throws IOException
+    {
+        writeConfig("\"scheduled\" : { \"importQuery\" : \"select 1\", \"datasetId\" : \"abcd-1234\", " + SCHEDULE + " }");
+        importDaemon.reload();
+        final ImportConfiguration loaded = importDaemon.importConfiguration;
+        final JdbcImporter jdbcImporter = importDaemon.jdbcImporter;
+
+        importDaemon.reload();
+        assertTrue(loaded == importDaemon.importConfiguration);
+        assertTrue(jdbcImporter == importDaemon.jdbcImporter);
+        assertEquals(1, importDaemon.scheduled.size());
+    }
+
+    public void testChangedConfigIsRescheduled() throws IOException
+    {
+        writeConfig("\"scheduled\" : { \"importQuery\" : \"select 1\", \"datasetId\" : \"abcd-1234\", " + SCHEDULE + " }");
+        importDaemon.reload();
+        final ImportConfiguration loaded = importDaemon.importConfiguration;
+
+        writeConfig("\"first\" : { \"importQuery\" : \"select 1\", \"datasetId\" : \"abcd-1234\", " + SCHEDULE + " }, " +
+                    "\"second\" : { \"importQuery\" : \"select 2\", \"datasetId\" : \"abcd-1235\", " + SCHEDULE + " }");
+        importDaemon.reload();
+
+        assertTrue(loaded != importDaemon.importConfiguration);
+        assertEquals(2, importDaemon.importConfiguration.getDatasetsToImport().size());
+        //The first configuration's run was cancelled, not left alongside the new ones
+        assertEquals(2, importDaemon.scheduled.size());
+    }
+
+    public void testBrokenConfigKeepsTheCurrentOne() throws IOException
+    {
+        writeConfig("\"scheduled\" : { \"importQuery\" : \"select 1\", \"datasetId\" : \"abcd-1234\", " + SCHEDULE + " }");
+        importDaemon.reload();
+        final ImportConfiguration loaded = importDaemon.importConfiguration;
+
+        write("{ this isn't json");
+        importDaemon.reload();
+
+        assertTrue(loaded == importDaemon.importConfiguration);
+        assertEquals(1, importDaemon.scheduled.size());
+        assertTrue(!importDaemon.scheduled.get(0).isCancelled());
+    }
+
+    public void testFindNewDataset()
+    {
+        assertEquals(null, ImportDaemon.findNewDataset("existing", importConfig("abcd-1234", null)));
+        assertEquals("created", ImportDaemon.findNewDataset("created", importConfig(null, null)));
+
+        final LinkedHashMap<String, DerivedOutputConfiguration> outputs = new LinkedHashMap<String, DerivedOutputConfiguration>();
+        outputs.put("existingOutput", new DerivedOutputConfiguration(null, null, null, "abcd-1235", null));
+        assertEquals(null, ImportDaemon.findNewDataset("outputs", importConfig(null, outputs)));
+
+        outputs.put("newOutput", new DerivedOutputConfiguration(null, null, null, null, null));
+        assertEquals("Its output newOutput", ImportDaemon.findNewDataset("outputs", importConfig("abcd-1234", outputs)));
+    }
+
+    static DataImportConfiguration importConfig(String datasetId, LinkedHashMap<String, DerivedOutputConfiguration> outputs)
+    {
+        return new DataImportConfiguration(null, null, "select 1", datasetId, null, null, "0 0 1 1 *", outputs);
+    }
+
+    void writeConfig(String datasetsToImport) throws IOException
+    {
+        write("{ " + CONNECTIONS + "\"datasetsToImport\" : { " + datasetsToImport + " } }");
+    }
+
+    void write(String contents) throws IOException
+    {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(configFile), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.socrata.tools.importer;
+
+import junit.framework.TestCase;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Tests for how RowBatch stores and writes the values of each kind of column.
+ */
+public class RowBatchTest extends TestCase
+{
+    static final int[]      SQL_TYPES = {Types.VARCHAR, Types.BIT, Types.OTHER, Types.ARRAY, Types.SQLXML};
+    static final String[]   FIELD_NAMES = {"name", "open", "key", "tags", "doc"};
+    static final UUID       KEY = UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e");
+
+    public void testKinds()
+    {
+        assertEquals(RowBatch.Kind.BOOLEAN, RowBatch.kindOf(Types.BIT));
+        assertEquals(RowBatch.Kind.BOOLEAN, RowBatch.kindOf(Types.BOOLEAN));
+        assertEquals(RowBatch.Kind.STRING, RowBatch.kindOf(Types.OTHER));
+        assertEquals(RowBatch.Kind.STRING, RowBatch.kindOf(Types.ARRAY));
+        assertEquals(RowBatch.Kind.STRING, RowBatch.kindOf(Types.TIME));
+        assertEquals(RowBatch.Kind.BINARY, RowBatch.kindOf(Types.BLOB));
+    }
+
+    public void testUnknownTypesAreCarriedAsStrings() throws SQLException, IOException
+    {
+        final RowBatch batch = filledBatch();
+        assertEquals(KEY.toString(), batch.getString(0, 2));
+        assertEquals("[a, b]", batch.getString(0, 3));
+        assertEquals("<doc/>", batch.getString(0, 4));
+        assertEquals(KEY.toString(), CsvExportPipeline.format(batch, 0, 2));
+        assertEquals("true", CsvExportPipeline.format(batch, 0, 1));
+        assertTrue(batch.isNull(1, 2));
+        assertEquals("", CsvExportPipeline.format(batch, 1, 2));
+    }
+
+    public void testJson() throws SQLException, IOException
+    {
+        final StringWriter out = new StringWriter();
+        final JsonGenerator generator = new JsonFactory().createJsonGenerator(out);
+        filledBatch().writeJson(generator, FIELD_NAMES);
+        generator.close();
+
+        assertEquals("{\"name\":\"a\",\"open\":true,\"key\":\"" + KEY + "\",\"tags\":\"[a, b]\",\"doc\":\"<doc/>\"}" +
+                     " {\"name\":null,\"open\":false,\"key\":null,\"tags\":null,\"doc\":null}",
+                     out.toString());
+    }
+
+    private static RowBatch filledBatch() throws SQLException, IOException
+    {
+        final RowBatch batch = new RowBatch(metaData(), 4);
+        batch.add(row("a", true, KEY, Arrays.asList("a", "b"), "<doc/>"));
+        batch.add(row(null, false, null, null, null));
+        return batch;
+    }
+
+    private static ResultSetMetaData metaData()
+    {
+        return (ResultSetMetaData) Proxy.newProxyInstance(RowBatchTest.class.getClassLoader(), new Class[] {ResultSetMetaData.class}, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getColumnCount")) {
+                    return SQL_TYPES.length;
+                }
+                if (method.getName().equals("getColumnType")) {
+                    return SQL_TYPES[(Integer) args[0] - 1];
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * A result set positioned on a single row, which only supports the getters RowBatch uses.
+     */
+    private static ResultSet row(final Object... values)
+    {
+        return (ResultSet) Proxy.newProxyInstance(RowBatchTest.class.getClassLoader(), new Class[] {ResultSet.class}, new InvocationHandler()
+        {
+            Object last;
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("wasNull")) {
+                    return last == null;
+                }
+
+                last = values[(Integer) args[0] - 1];
+                final String name = method.getName();
+                if (name.equals("getBoolean")) {
+                    return last != null && (Boolean) last;
+                }
+                if (name.equals("getObject")) {
+                    return last;
+                }
+                if (name.equals("getString")) {
+                    return last == null ? null : last.toString();
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
@@ -0,0 +1,193 @@
+package com.socrata.tools.importer;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Tests for RowPredicate, run against a RowBatch filled from a fake result set.
+ */
+public class RowPredicateTest extends TestCase
+{
+    static final String[]   COLUMN_NAMES = {"State", "Amount", "Ratio", "Open", "Closed_At"};
+    static final String[]   FIELD_NAMES = {"state", "amount", "ratio", "open", "closed_at"};
+    static final int[]      SQL_TYPES = {Types.VARCHAR, Types.INTEGER, Types.DOUBLE, Types.BOOLEAN, Types.TIMESTAMP};
+
+    RowBatch batch;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        batch = new RowBatch(metaData(), 8);
+        batch.add(row("WA", 100L, 0.5, true, null));
+        batch.add(row("O'Brien", 5L, Double.NaN, false, Timestamp.valueOf("2014-01-31 12:00:00")));
+        batch.add(row(null, null, Double.POSITIVE_INFINITY, null, null));
+        batch.add(row("NY", 250L, Double.NEGATIVE_INFINITY, true, Timestamp.valueOf("2013-06-01 00:00:00")));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        batch.clear();
+    }
+
+    public void testEmptyFilterMatchesEverything()
+    {
+        assertMatches(null, true, true, true, true);
+        assertMatches("  ", true, true, true, true);
+    }
+
+    public void testTextComparisons()
+    {
+        assertMatches("state = 'WA'", true, false, false, false);
+        assertMatches("STATE != 'WA'", false, true, false, true);
+        assertMatches("state = 'O''Brien'", false, true, false, false);
+    }
+
+    public void testNumberComparisons()
+    {
+        assertMatches("amount >= 100", true, false, false, true);
+        assertMatches("Amount < 100.5", true, true, false, false);
+        assertMatches("amount <> 5", true, false, false, true);
+    }
+
+    public void testNonFiniteDoubles()
+    {
+        assertMatches("ratio > 1000000", false, true, true, false);
+        assertMatches("ratio < 0", false, false, false, true);
+        assertMatches("ratio = 0.5", true, false, false, false);
+    }
+
+    public void testBooleans()
+    {
+        assertMatches("open = true", true, false, false, true);
+        assertMatches("open = FALSE", false, true, false, false);
+    }
+
+    public void testTimestamps()
+    {
+        assertMatches("closed_at > '2014-01-01'", false, true, false, false);
+        assertMatches("closed_at <= '2014-01-31T12:00:00'", false, true, false, true);
+    }
+
+    public void testNulls()
+    {
+        assertMatches("closed_at IS NULL", true, false, true, false);
+        assertMatches("state IS NOT NULL AND closed_at is not null", false, true, false, true);
+    }
+
+    public void testAnd()
+    {
+        assertMatches("amount > 10 AND state = 'NY'", false, false, false, true);
+    }
+
+    public void testInvalidFilters()
+    {
+        assertInvalid("nope = 1");
+        assertInvalid("amount = 'abc'");
+        assertInvalid("open = 1");
+        assertInvalid("open = 'yes'");
+        assertInvalid("closed_at > 'yesterday'");
+        assertInvalid("amount = 1 OR amount = 2");
+        assertInvalid("amount = 1 AND");
+        assertInvalid("amount ==");
+        assertInvalid("state = 'WA");
+        assertInvalid("state IS 'WA'");
+    }
+
+    public void testTokenize()
+    {
+        assertEquals(java.util.Arrays.asList("a", ">=", "'b c", "AND", "d", "IS", "NULL"),
+                     RowPredicate.tokenize("a>='b c' AND d IS NULL"));
+    }
+
+    private void assertMatches(String filter, boolean... expected)
+    {
+        final RowPredicate predicate = RowPredicate.parse(filter, COLUMN_NAMES, FIELD_NAMES, kinds());
+        for (int row=0; row<expected.length; row++) {
+            assertEquals(filter + " on row " + row, expected[row], predicate.matches(batch, row));
+        }
+    }
+
+    private void assertInvalid(String filter)
+    {
+        try {
+            RowPredicate.parse(filter, COLUMN_NAMES, FIELD_NAMES, kinds());
+            fail("Expected \"" + filter + "\" to be rejected");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    private static RowBatch.Kind[] kinds()
+    {
+        final RowBatch.Kind[] kinds = new RowBatch.Kind[SQL_TYPES.length];
+        for (int i=0; i<kinds.length; i++) {
+            kinds[i] = RowBatch.kindOf(SQL_TYPES[i]);
+        }
+        return kinds;
+    }
+
+    private static ResultSetMetaData metaData()
+    {
+        return (ResultSetMetaData) Proxy.newProxyInstance(RowPredicateTest.class.getClassLoader(), new Class[] {ResultSetMetaData.class}, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getColumnCount")) {
+                    return SQL_TYPES.length;
+                }
+                if (method.getName().equals("getColumnType")) {
+                    return SQL_TYPES[(Integer) args[0] - 1];
+                }
+                if (method.getName().equals("getColumnName")) {
+                    return COLUMN_NAMES[(Integer) args[0] - 1];
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * A result set positioned on a single row, which only supports the getters RowBatch uses.
+     */
+    private static ResultSet row(final Object... values)
+    {
+        return (ResultSet) Proxy.newProxyInstance(RowPredicateTest.class.getClassLoader(), new Class[] {ResultSet.class}, new InvocationHandler()
+        {
+            Object last;
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("wasNull")) {
+                    return last == null;
+                }
+
+                last = values[(Integer) args[0] - 1];
+                final String name = method.getName();
+                if (name.equals("getLong")) {
+                    return last == null ? 0L : ((Number) last).longValue();
+                }
+                if (name.equals("getDouble")) {
+                    return last == null ? 0.0 : ((Number) last).doubleValue();
+                }
+                if (name.equals("getBoolean")) {
+                    return last != null && (Boolean) last;
+                }
+                if (name.equals("getTimestamp") || name.equals("getObject")) {
+                    return last;
+                }
+                if (name.equals("getString")) {
+                    return last == null ? null : last.toString();
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
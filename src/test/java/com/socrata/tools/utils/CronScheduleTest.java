@@ -0,0 +1,100 @@
+package com.socrata.tools.utils;
+
+import junit.framework.TestCase;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Tests for CronSchedule, with times in UTC.
+ */
+public class CronScheduleTest extends TestCase
+{
+    static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    public void testEveryMinute() throws ParseException
+    {
+        assertNext("* * * * *", "2014-01-31 12:00:30", "2014-01-31 12:01");
+    }
+
+    public void testDaily() throws ParseException
+    {
+        assertNext("0 2 * * *", "2014-01-31 01:59:59", "2014-01-31 02:00");
+        assertNext("0 2 * * *", "2014-01-31 02:00:00", "2014-02-01 02:00");
+        assertNext("@daily", "2014-12-31 23:59:00", "2015-01-01 00:00");
+    }
+
+    public void testStepsRangesAndLists() throws ParseException
+    {
+        assertNext("*/15 * * * *", "2014-01-31 12:14:00", "2014-01-31 12:15");
+        assertNext("10-30/10 * * * *", "2014-01-31 12:31:00", "2014-01-31 13:10");
+        assertNext("5,45 9 * * *", "2014-01-31 09:06:00", "2014-01-31 09:45");
+    }
+
+    public void testDayOfWeek() throws ParseException
+    {
+        //2014-02-01 was a Saturday
+        assertNext("0 0 * * 1-5", "2014-01-31 12:00:00", "2014-02-03 00:00");
+        assertNext("0 0 * * 0", "2014-01-31 12:00:00", "2014-02-02 00:00");
+        assertNext("0 0 * * 7", "2014-01-31 12:00:00", "2014-02-02 00:00");
+        assertNext("@weekly", "2014-01-31 12:00:00", "2014-02-02 00:00");
+    }
+
+    public void testDayOfMonthOrDayOfWeek() throws ParseException
+    {
+        //Both are restricted, so either one matching is enough
+        assertNext("0 0 15 * 0", "2014-01-31 12:00:00", "2014-02-02 00:00");
+        assertNext("0 0 1 * 3", "2014-01-30 12:00:00", "2014-02-01 00:00");
+    }
+
+    public void testMonths() throws ParseException
+    {
+        assertNext("0 0 29 2 *", "2014-01-31 12:00:00", "2016-02-29 00:00");
+        assertNext("@monthly", "2014-01-31 12:00:00", "2014-02-01 00:00");
+    }
+
+    public void testNeverMatches()
+    {
+        try {
+            CronSchedule.parse("0 0 31 2 *", UTC).nextAfter(0);
+            fail("Expected February 31st to never match");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    public void testInvalidExpressions()
+    {
+        assertInvalid("* * * *");
+        assertInvalid("60 * * * *");
+        assertInvalid("* 24 * * *");
+        assertInvalid("* * 0 * *");
+        assertInvalid("* * * 13 *");
+        assertInvalid("* * * * 8");
+        assertInvalid("5-1 * * * *");
+        assertInvalid("*/0 * * * *");
+        assertInvalid("a * * * *");
+    }
+
+    private static void assertNext(String expression, String from, String expected) throws ParseException
+    {
+        final SimpleDateFormat seconds = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        final SimpleDateFormat minutes = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        seconds.setTimeZone(UTC);
+        minutes.setTimeZone(UTC);
+
+        final long next = CronSchedule.parse(expression, UTC).nextAfter(seconds.parse(from).getTime());
+        assertEquals(expression + " after " + from, expected, minutes.format(next));
+    }
+
+    private static void assertInvalid(String expression)
+    {
+        try {
+            CronSchedule.parse(expression, UTC);
+            fail("Expected \"" + expression + "\" to be rejected");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+}
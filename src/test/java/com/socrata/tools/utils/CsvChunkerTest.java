@@ -0,0 +1,125 @@
+package com.socrata.tools.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Tests for CsvChunker, splitting small files into tiny chunks.
+ */
+public class CsvChunkerTest extends TestCase
+{
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("CsvChunkerTest", ".csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testSplitsOnRowBoundaries() throws IOException
+    {
+        final CsvChunker chunker = split("a,b\n1,2\n3,4\n5,6\n", 4);
+        assertEquals("a,b\n", new String(chunker.getHeader(), UTF_8));
+        assertChunks(chunker, "1,2\n", "3,4\n", "5,6\n");
+    }
+
+    public void testChunksEndAfterTheirSize() throws IOException
+    {
+        final CsvChunker chunker = split("a\n1\n2\n3\n4\n5\n", 5);
+        assertChunks(chunker, "1\n2\n3\n", "4\n5\n");
+    }
+
+    public void testQuotedNewlinesDontEndRows() throws IOException
+    {
+        final CsvChunker chunker = split("a,b\n\"x\ny\",1\n\"\"\"q\"\"\n\",2\n3,4\n", 1);
+        assertChunks(chunker, "\"x\ny\",1\n", "\"\"\"q\"\"\n\",2\n", "3,4\n");
+    }
+
+    public void testLastRowWithoutNewline() throws IOException
+    {
+        final CsvChunker chunker = split("a\n1\n2", 2);
+        assertChunks(chunker, "1\n", "2");
+    }
+
+    public void testHeaderOnly() throws IOException
+    {
+        final CsvChunker chunker = split("a,b", 10);
+        assertEquals("a,b\n", new String(chunker.getHeader(), UTF_8));
+        assertTrue(chunker.getChunks().isEmpty());
+    }
+
+    public void testEmptyFile() throws IOException
+    {
+        final CsvChunker chunker = split("", 10);
+        assertEquals(0, chunker.getHeader().length);
+        assertTrue(chunker.getChunks().isEmpty());
+    }
+
+    public void testMultiByteCharacters() throws IOException
+    {
+        final CsvChunker chunker = split("name\nJosé\nZoë\n", 1);
+        assertChunks(chunker, "José\n", "Zoë\n");
+    }
+
+    public void testInvalidChunkSize() throws IOException
+    {
+        try {
+            split("a\n1\n", 0);
+            fail("Expected a chunk size of 0 to be rejected");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    private CsvChunker split(String contents, long chunkSize) throws IOException
+    {
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(contents.getBytes(UTF_8));
+        } finally {
+            os.close();
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return CsvChunker.split(raf.getChannel(), chunkSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertChunks(CsvChunker chunker, String... expected) throws IOException
+    {
+        final List<CsvChunker.Chunk> chunks = chunker.getChunks();
+        assertEquals(expected.length, chunks.size());
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            for (int i=0; i<expected.length; i++) {
+                final MappedByteBuffer buffer = chunks.get(i).map(channel);
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                assertEquals("chunk " + i, expected[i], new String(bytes, UTF_8));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.socrata.tools.utils;
+
+import com.socrata.tools.CopyDataset;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compares reading data files the way CopyDataset.importDataFile used to, through a plain
+ * FileInputStream and a default GZIPInputStream, with reading them through MappedFileInputStream
+ * and a large inflater the way it does now.  Each file is drained with the 8KB buffer Jersey copies
+ * request bodies with, so only the file source differs.
+ *
+ * This isn't a unit test, since it needs large files to mean anything.  Run it by hand with the files
+ * to read, and it prints a {benchmarkTime:...} line for each run of each path:
+ *
+ * java -cp ... com.socrata.tools.utils.MappedFileInputStreamBenchmark data.csv data.csv.gz
+ */
+public class MappedFileInputStreamBenchmark
+{
+    static final int JERSEY_BUFFER_SIZE = 8 * 1024;
+    static final int RUNS = 3;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0) {
+            System.err.println("Usage: MappedFileInputStreamBenchmark <file> [<file>...]");
+            System.exit(1);
+        }
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (String name : args) {
+            final File file = new File(name);
+            //Alternate the paths, so neither one always gets the warmer page cache
+            for (int run=0; run<RUNS; run++) {
+                for (boolean mapped : new boolean[] { false, true }) {
+                    final long start = System.nanoTime();
+                    final long startCpu = threads.getCurrentThreadCpuTime();
+                    final long bytes = drain(mapped ? openMapped(file) : openPlain(file));
+                    final long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+                    final long cpuMillis = (threads.getCurrentThreadCpuTime() - startCpu) / 1000000;
+                    System.out.println("{benchmarkTime:" + millis +
+                                               ", cpuTime:" + cpuMillis +
+                                               ", path:" + (mapped ? "mapped" : "plain") +
+                                               ", file:" + file.getName() +
+                                               ", bytes:" + bytes +
+                                               ", bytesPerSec:" + (bytes * 1000 / millis) + "}");
+                }
+            }
+        }
+    }
+
+    static InputStream openPlain(File file) throws IOException
+    {
+        final InputStream is = new FileInputStream(file);
+        return file.getName().endsWith(".gz") ? new GZIPInputStream(is) : is;
+    }
+
+    static InputStream openMapped(File file) throws IOException
+    {
+        final InputStream is = new MappedFileInputStream(file);
+        return file.getName().endsWith(".gz") ? new BufferedInputStream(new GZIPInputStream(is, CopyDataset.GZIP_BUFFER_SIZE), CopyDataset.GZIP_BUFFER_SIZE) : is;
+    }
+
+    static long drain(InputStream is) throws IOException
+    {
+        final byte[] buffer = new byte[JERSEY_BUFFER_SIZE];
+        long bytes = 0;
+        try {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                bytes += read;
+            }
+        } finally {
+            is.close();
+        }
+        return bytes;
+    }
+}
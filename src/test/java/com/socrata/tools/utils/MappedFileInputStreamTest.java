@@ -0,0 +1,132 @@
+package com.socrata.tools.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for MappedFileInputStream, mostly with tiny windows so reads and skips cross them.
+ */
+public class MappedFileInputStreamTest extends TestCase
+{
+    File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("MappedFileInputStreamTest", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testReadsAcrossWindows() throws IOException
+    {
+        write(bytes(100));
+        final MappedFileInputStream is = new MappedFileInputStream(file, 7);
+        try {
+            final byte[] read = new byte[100];
+            int total = 0;
+            int count;
+            while ((count = is.read(read, total, read.length - total)) > 0) {
+                assertTrue(count <= 7);
+                total += count;
+            }
+            assertEquals(100, total);
+            for (int i=0; i<100; i++) {
+                assertEquals((byte) i, read[i]);
+            }
+            assertEquals(-1, is.read());
+            assertEquals(0, is.available());
+        } finally {
+            is.close();
+        }
+    }
+
+    public void testSkipsWithinAndPastWindows() throws IOException
+    {
+        write(bytes(100));
+        final MappedFileInputStream is = new MappedFileInputStream(file, 10);
+        try {
+            assertEquals(0, is.read());
+            assertEquals(3, is.skip(3));
+            assertEquals(4, is.read());
+            assertEquals(20, is.skip(20));
+            assertEquals(25, is.read());
+            assertEquals(74, is.available());
+            assertEquals(74, is.skip(1000));
+            assertEquals(-1, is.read());
+            assertEquals(0, is.skip(1));
+        } finally {
+            is.close();
+        }
+    }
+
+    public void testEmptyFile() throws IOException
+    {
+        final MappedFileInputStream is = new MappedFileInputStream(file);
+        try {
+            assertEquals(-1, is.read());
+            assertEquals(-1, is.read(new byte[10], 0, 10));
+            assertEquals(0, is.skip(10));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * available() can't report more than 2GB, so skipping in a bigger file has to work from the
+     * offset rather than from what's available.  The file is sparse, so it takes no real space.
+     */
+    public void testSkipsInFilesOverTwoGigabytes() throws IOException
+    {
+        final long hundredMegabytes = 100L * 1024 * 1024;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(3L * 1024 * 1024 * 1024);
+            raf.seek(hundredMegabytes);
+            raf.write(42);
+            raf.seek(2L * 1024 * 1024 * 1024 + 10);
+            raf.write(43);
+        } finally {
+            raf.close();
+        }
+
+        final MappedFileInputStream is = new MappedFileInputStream(file, 1024 * 1024);
+        try {
+            assertEquals(Integer.MAX_VALUE, is.available());
+            assertEquals(0, is.read());
+            assertEquals(hundredMegabytes - 1, is.skip(hundredMegabytes - 1));
+            assertEquals(42, is.read());
+            assertEquals(2L * 1024 * 1024 * 1024 + 10 - hundredMegabytes - 1, is.skip(2L * 1024 * 1024 * 1024 + 10 - hundredMegabytes - 1));
+            assertEquals(43, is.read());
+        } finally {
+            is.close();
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException
+    {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] bytes(int length)
+    {
+        final byte[] bytes = new byte[length];
+        for (int i=0; i<length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+}